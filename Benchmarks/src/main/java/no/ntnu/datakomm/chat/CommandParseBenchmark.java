@@ -0,0 +1,96 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the old String.split parsing with the single-pass CommandDecoder. Both variants
+ * produce the objects the listeners receive (TextMessage, String[] etc.), so the comparison is
+ * fair. Run with -prof gc to see the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParseBenchmark {
+
+    @Param({"loginok", "loginerr", "users", "msg", "privmsg", "msgerr", "cmderr", "supported", "joke",
+            "joined", "left", "unknown"})
+    public String command;
+
+    private String line;
+    private Blackhole blackhole;
+    private CommandDecoder.Handler handler;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        this.handler = new BlackholeHandler();
+        line = SampleLines.forCommand(command);
+    }
+
+    @Benchmark
+    public void split() {
+        SplitCommandParser.parse(line, blackhole::consume);
+    }
+
+    @Benchmark
+    public void decoder() {
+        CommandDecoder.decode(line, handler);
+    }
+
+    /**
+     * Builds the same event objects as TCPClient does and feeds them to the blackhole.
+     */
+    private class BlackholeHandler implements CommandDecoder.Handler {
+        @Override
+        public void onLoginResult(boolean success, String line) {
+            blackhole.consume(success ? "Log in OK!" : "Log in error");
+        }
+
+        @Override
+        public void onUsers(String line, int listStart) {
+            blackhole.consume(CommandDecoder.words(line, listStart));
+        }
+
+        @Override
+        public void onMessage(boolean priv, String line, int senderStart, int senderEnd, int textStart) {
+            blackhole.consume(new TextMessage(line.substring(senderStart, senderEnd), priv,
+                    line.substring(textStart)));
+        }
+
+        @Override
+        public void onMessageError(String line) {
+            blackhole.consume(line + "\n The message didnt go thru");
+        }
+
+        @Override
+        public void onCommandError(String line) {
+            blackhole.consume(line + "\n The commmand was invalid");
+        }
+
+        @Override
+        public void onSupported(String line, int listStart) {
+            blackhole.consume(CommandDecoder.words(line, listStart));
+        }
+
+        @Override
+        public void onJoke(String line) {
+            blackhole.consume(line);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU cost of compressing and decompressing pasted stack traces of different sizes with the
+ * MessageCompressor. Run the main method to see the compression ratios:
+ *
+ * <pre>
+ *     java -cp target/benchmarks.jar no.ntnu.datakomm.chat.CompressionBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"20", "100", "1000"})
+    public int frames;
+
+    private MessageCompressor compressor;
+    private String line;
+    private byte[] deflated;
+
+    @Setup
+    public void setup() {
+        compressor = new MessageCompressor(0);
+        line = "msg " + stackTrace(frames);
+        deflated = compressor.compress(stackTrace(frames).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] encodeFrame() {
+        return compressor.encodeFrame(line);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws DataFormatException {
+        return compressor.decompress(deflated, 0, deflated.length);
+    }
+
+    /**
+     * @param frames Number of "at" lines
+     * @return A stack trace, like the ones users paste into the chat
+     */
+    static String stackTrace(int frames) {
+        String[] classes = {"java.base/java.util.concurrent.ThreadPoolExecutor.runWorker",
+                "no.ntnu.datakomm.chat.TCPClient.sendCommand", "no.ntnu.datakomm.chat.GUIController.sendMessage",
+                "javafx.graphics/com.sun.javafx.application.PlatformImpl.lambda$runLater$10",
+                "java.base/java.lang.Thread.run"};
+        StringBuilder trace = new StringBuilder("Exception in thread \"main\" java.lang.IllegalStateException: "
+                + "Connection reset");
+        for (int i = 0; i < frames; i++) {
+            String method = classes[i % classes.length];
+            String file = method.substring(method.lastIndexOf('/') + 1).replaceAll("\\..*", "");
+            trace.append("\n\tat ").append(method).append('(').append(file).append(".java:")
+                    .append(37 * i % 900 + 10).append(')');
+        }
+        return trace.toString();
+    }
+
+    /**
+     * Print the compression ratio for stack traces of different sizes.
+     *
+     * @param args Not used
+     */
+    public static void main(String[] args) {
+        MessageCompressor compressor = new MessageCompressor(0);
+        System.out.printf("%-7s %8s %8s %6s%n", "frames", "text", "deflated", "ratio");
+        for (int frames : new int[]{1, 5, 20, 100, 1000}) {
+            byte[] text = stackTrace(frames).getBytes(StandardCharsets.UTF_8);
+            byte[] deflated = compressor.compress(text);
+            int size = deflated == null ? text.length : deflated.length;
+            System.out.printf("%-7d %8d %8d %6.2f%n", frames, text.length, size, (double) size / text.length);
+        }
+        System.out.println(compressor);
+    }
+}
@@ -0,0 +1,144 @@
+package no.ntnu.datakomm.chat;
+
+import java.net.ProtocolException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * CPU cost of text lines versus binary frames: encoding a command, and decoding received bytes
+ * up to the handler call. Run the main method to see the size of each command on the wire:
+ *
+ * <pre>
+ *     java -cp target/benchmarks.jar no.ntnu.datakomm.chat.FramingBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+    private static final String[] COMMANDS = {"loginok", "users", "msg", "privmsg", "supported", "joined",
+            "unknown"};
+
+    @Param({"users", "msg", "privmsg", "joined"})
+    public String command;
+
+    private String line;
+    private byte[] textBytes;
+    private byte[] frameBytes;
+    private InboundDecoder textDecoder;
+    private InboundDecoder frameDecoder;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        line = SampleLines.forCommand(command);
+        textBytes = FrameCodec.encodeLine(line);
+        frameBytes = FrameCodec.encodeFrame(line);
+        CommandDecoder.Handler handler = new BlackholeHandler(blackhole);
+        InboundDecoder.Sink sink = (command, args) -> CommandDecoder.decodeFrame(command, args.toString(), handler);
+        textDecoder = new InboundDecoder(sink);
+        frameDecoder = new InboundDecoder(sink);
+        frameDecoder.setBinary(true);
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        return FrameCodec.encodeLine(line);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return FrameCodec.encodeFrame(line);
+    }
+
+    @Benchmark
+    public void decodeText() throws ProtocolException {
+        textDecoder.feed(textBytes, 0, textBytes.length);
+    }
+
+    @Benchmark
+    public void decodeBinary() throws ProtocolException {
+        frameDecoder.feed(frameBytes, 0, frameBytes.length);
+    }
+
+    /**
+     * Print the size of the sample commands as text lines and as binary frames.
+     *
+     * @param args Not used
+     */
+    public static void main(String[] args) {
+        System.out.printf("%-10s %6s %6s %7s%n", "command", "text", "binary", "saved");
+        for (String command : COMMANDS) {
+            String line = SampleLines.forCommand(command);
+            int text = FrameCodec.encodeLine(line).length;
+            int binary = FrameCodec.encodeFrame(line).length;
+            System.out.printf("%-10s %6d %6d %6.1f%%%n", command, text, binary, 100.0 * (text - binary) / text);
+        }
+    }
+
+    /**
+     * Creates the event objects the listeners would receive, like TCPClient does.
+     */
+    private static class BlackholeHandler implements CommandDecoder.Handler {
+        private final Blackhole blackhole;
+
+        BlackholeHandler(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String line) {
+            blackhole.consume(success);
+        }
+
+        @Override
+        public void onUsers(String line, int listStart) {
+            blackhole.consume(CommandDecoder.words(line, listStart));
+        }
+
+        @Override
+        public void onMessage(boolean priv, String line, int senderStart, int senderEnd, int textStart) {
+            blackhole.consume(new TextMessage(line.substring(senderStart, senderEnd), priv,
+                    line.substring(textStart)));
+        }
+
+        @Override
+        public void onMessageError(String line) {
+            blackhole.consume(line);
+        }
+
+        @Override
+        public void onCommandError(String line) {
+            blackhole.consume(line);
+        }
+
+        @Override
+        public void onSupported(String line, int listStart) {
+            blackhole.consume(CommandDecoder.words(line, listStart));
+        }
+
+        @Override
+        public void onJoke(String line) {
+            blackhole.consume(line);
+        }
+
+        @Override
+        public void onUserJoined(String line, int userStart) {
+            blackhole.consume(line.substring(userStart));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups in a full MessageHistory of a million messages from 1000 users, with a vocabulary of
+ * 5000 words of which some are frequent ("common", in every 10th message) and most are rare.
+ * Adding a message includes dropping the oldest one and its index entries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g", "-XX:MaxDirectMemorySize=512m"})
+public class HistoryBenchmark {
+    private static final int MESSAGES = 1_000_000;
+    private static final int USERS = 1000;
+    private static final int WORDS = 5000;
+    private static final int RESULTS = 100;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    private MessageHistory history;
+    private TextMessage[] newMessages;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        history = new MessageHistory(MESSAGES, 128 * 1024 * 1024, offHeap);
+        for (int i = 0; i < MESSAGES; i++) {
+            history.add(randomMessage(random, i));
+        }
+        newMessages = new TextMessage[1024];
+        for (int i = 0; i < newMessages.length; i++) {
+            newMessages[i] = randomMessage(random, i);
+        }
+    }
+
+    private static TextMessage randomMessage(Random random, int i) {
+        StringBuilder text = new StringBuilder();
+        if (i % 10 == 0) {
+            text.append("common ");
+        }
+        int words = 3 + random.nextInt(12);
+        for (int w = 0; w < words; w++) {
+            // Skewed towards the low word numbers, like real text
+            int word = (int) (WORDS * Math.pow(random.nextDouble(), 3));
+            text.append("word").append(word).append(' ');
+        }
+        return new TextMessage("user" + random.nextInt(USERS), false, text.toString());
+    }
+
+    @Benchmark
+    public List<TextMessage> fromSender() {
+        return history.fromSender("user42", RESULTS);
+    }
+
+    @Benchmark
+    public List<TextMessage> searchRareWord() {
+        return history.search("word4321", RESULTS);
+    }
+
+    @Benchmark
+    public List<TextMessage> searchTwoWords() {
+        return history.search("common word4000", RESULTS);
+    }
+
+    @Benchmark
+    public long add() {
+        return history.add(newMessages[next++ & (newMessages.length - 1)]);
+    }
+}
@@ -0,0 +1,112 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long TCPClient needs to turn one received line into listener events, with N
+ * listeners registered. No socket is involved: the line is handed straight to
+ * handleServerResponse(), as the listen thread would do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerDispatchBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int listenerCount;
+
+    @Param({"msg", "users"})
+    public String command;
+
+    private TCPClient client;
+    private String line;
+    private PrintStream originalOut;
+
+    /**
+     * A listener doing a minimum of work, so the dispatch itself is measured.
+     */
+    public static class CountingListener implements ChatListener {
+        public int events;
+
+        @Override
+        public void onDisconnect() {
+            events++;
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+            events++;
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            events += message.getText().length();
+        }
+
+        @Override
+        public void onMessageError(String errMsg) {
+            events++;
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+            events += usernames.length;
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+            events++;
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+            events++;
+        }
+
+        @Override
+        public void onJoke(String joke) {
+            events++;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // The client logs every received command to stdout, keep it out of the results
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        client = new TCPClient();
+        for (int i = 0; i < listenerCount; i++) {
+            client.addListener(new CountingListener());
+        }
+        line = SampleLines.forCommand(command);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void dispatch() {
+        client.handleServerResponse(line);
+    }
+}
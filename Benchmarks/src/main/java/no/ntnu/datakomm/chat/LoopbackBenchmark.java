@@ -0,0 +1,104 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.helpers.EmptyListener;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end round trips over a loopback socket against an in-process ChatServer: request and
+ * reply (users), and a private message sent to ourselves and received by the listener.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    // Number of requests sent before waiting for the replies in the pipelined benchmark
+    private static final int PIPELINE_DEPTH = 16;
+
+    @Param({"BLOCKING", "NIO"})
+    public TransportMode transport;
+
+    private ChatServer server;
+    private TCPClient client;
+    private String username;
+    private PrintStream originalOut;
+    private volatile CompletableFuture<TextMessage> expectedMessage;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new ChatServer(0);
+        server.start();
+        client = new TCPClient(transport);
+        if (!client.connect("localhost", server.getPort())) {
+            throw new IOException("Could not connect to the local server");
+        }
+        client.addListener(new EmptyListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                CompletableFuture<TextMessage> expected = expectedMessage;
+                if (expected != null) {
+                    expected.complete(message);
+                }
+            }
+        });
+        client.startListenThread();
+        username = "bench" + System.nanoTime();
+        client.loginAsync(username).join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.disconnect();
+        server.stop();
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public List<String> usersRoundTrip() throws Exception {
+        return client.usersAsync().get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Several requests in flight at once. The result is the time for all of them.
+     */
+    @Benchmark
+    public Object usersPipelined() throws Exception {
+        CompletableFuture<?>[] replies = new CompletableFuture<?>[PIPELINE_DEPTH];
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            replies[i] = client.usersAsync();
+        }
+        return CompletableFuture.allOf(replies).get(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public TextMessage privateMessageRoundTrip() throws Exception {
+        CompletableFuture<TextMessage> expected = new CompletableFuture<>();
+        expectedMessage = expected;
+        client.sendPrivateMessage(username, "ping");
+        return expected.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,120 @@
+package no.ntnu.datakomm.chat;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Turning a chunk of 64 received lines into events: decoding every line to a String first (as
+ * a BufferedReader does) versus the InboundDecoder, which matches the command word on the bytes
+ * and only decodes what is used. With "wanted" false nobody listens to the command, which the
+ * byte path skips without decoding. Run with -prof gc to see the allocation per chunk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveBenchmark {
+    private static final int LINES = 64;
+
+    @Param({"msg", "unknown"})
+    public String command;
+
+    @Param({"true", "false"})
+    public boolean wanted;
+
+    private byte[] chunk;
+    private Blackhole blackhole;
+    private CommandDecoder.Handler handler;
+    private InboundDecoder decoder;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            lines.append(SampleLines.forCommand(command)).append('\n');
+        }
+        chunk = lines.toString().getBytes(StandardCharsets.UTF_8);
+        handler = new MessageHandler();
+        decoder = new InboundDecoder(this::onCommand);
+    }
+
+    @Benchmark
+    public void stringLines() {
+        int start = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            if (chunk[i] == '\n') {
+                String line = new String(chunk, start, i - start, StandardCharsets.UTF_8);
+                if (wanted) {
+                    CommandDecoder.decode(line, handler);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    @Benchmark
+    public void byteSlices() throws ProtocolException {
+        decoder.feed(chunk, 0, chunk.length);
+    }
+
+    private void onCommand(Command received, ByteSlice args) {
+        if (!wanted || received != Command.MSG) {
+            return;
+        }
+        int senderEnd = args.indexOf(' ', 0);
+        blackhole.consume(new TextMessage(args.toString(0, senderEnd), false,
+                args.toString(senderEnd + 1, args.length())));
+    }
+
+    /**
+     * Creates the TextMessage like TCPClient does, ignores the other commands.
+     */
+    private class MessageHandler implements CommandDecoder.Handler {
+        @Override
+        public void onMessage(boolean priv, String line, int senderStart, int senderEnd, int textStart) {
+            blackhole.consume(new TextMessage(line.substring(senderStart, senderEnd), priv,
+                    line.substring(textStart)));
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String line) {
+        }
+
+        @Override
+        public void onUsers(String line, int listStart) {
+        }
+
+        @Override
+        public void onMessageError(String line) {
+        }
+
+        @Override
+        public void onCommandError(String line) {
+        }
+
+        @Override
+        public void onSupported(String line, int listStart) {
+        }
+
+        @Override
+        public void onJoke(String line) {
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Typical lines received from the chat server, one per command type.
+ */
+public final class SampleLines {
+
+    private SampleLines() {
+    }
+
+    /**
+     * @param command Command word, or "unknown" for a line the client does not handle
+     * @return A realistic line starting with that command
+     */
+    public static String forCommand(String command) {
+        switch (command) {
+            case "loginerr":
+                return "loginerr incorrect username format";
+            case "users":
+                return "users alice bob carol dave erin frank grace heidi ivan judy mallory oscar";
+            case "msg":
+                return "msg alice Did anyone see the game yesterday? That last goal was unbelievable";
+            case "privmsg":
+                return "privmsg bob Meet me in the lab at 14:00, bring the Wireshark captures";
+            case "msgerr":
+                return "msgerr incorrect recipient nobody";
+            case "cmderr":
+                return "cmderr command not supported";
+            case "supported":
+                return "supported login msg privmsg users help joke presence";
+            case "joke":
+                return "joke Why do Java developers wear glasses? Because they don't C#";
+            case "joined":
+                return "joined mallory";
+            case "left":
+                return "left mallory";
+            case "unknown":
+                return "msgok 12";
+            default:
+                return command;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the send path (sendPublicMessage), writing to an in-process ChatServer over
+ * loopback, with and without batching, as text lines or binary frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+
+    @Param({"BLOCKING", "NIO"})
+    public TransportMode transport;
+
+    @Param({"false", "true"})
+    public boolean batched;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private ChatServer server;
+    private TCPClient client;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new ChatServer(0);
+        server.start();
+        client = new TCPClient(transport);
+        if (!client.connect("localhost", server.getPort())) {
+            throw new IOException("Could not connect to the local server");
+        }
+        client.startListenThread();
+        if (binary && !client.negotiateBinaryFraming().join()) {
+            throw new IOException("The server does not support binary framing");
+        }
+        client.loginAsync("sender" + System.nanoTime()).join();
+        if (batched) {
+            client.enableBatching(16 * 1024, 5);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void flush() {
+        client.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.disconnect();
+        server.stop();
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public boolean sendPublicMessage() {
+        return client.sendPublicMessage("Did anyone see the game yesterday? That last goal was unbelievable");
+    }
+}
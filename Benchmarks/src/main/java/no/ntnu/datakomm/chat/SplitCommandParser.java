@@ -0,0 +1,65 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The String.split based parsing that TCPClient.parseIncomingCommands() used before the
+ * CommandDecoder was introduced. Kept here as the baseline for the benchmarks.
+ */
+public final class SplitCommandParser {
+
+    private SplitCommandParser() {
+    }
+
+    /**
+     * Parse one line the old way and hand the produced event objects to the sink.
+     *
+     * @param response One line received from the server
+     * @param sink     Receives whatever the listeners would have received
+     */
+    public static void parse(String response, Consumer<Object> sink) {
+        String regex = " ";
+        String command = response.split(regex)[0];
+        switch (command) {
+            case "loginok":
+                sink.accept("Log in OK!");
+                break;
+            case "loginerr":
+                sink.accept("Log in error");
+                break;
+            case "users":
+                sink.accept(filterCommandAndGetStringList(response));
+                break;
+            case "msg":
+                sink.accept(new TextMessage(response.split(regex)[1], false, response.split(regex, 3)[2]));
+                break;
+            case "privmsg":
+                sink.accept(new TextMessage(response.split(regex)[1], true, response.split(regex, 3)[2]));
+                break;
+            case "msgerr":
+                sink.accept(response + "\n The message didnt go thru");
+                break;
+            case "cmderr":
+                sink.accept(response + "\n The commmand was invalid");
+                break;
+            case "supported":
+                sink.accept(response.split(regex));
+                break;
+            case "joke":
+                sink.accept(response);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static String[] filterCommandAndGetStringList(String string) {
+        String[] stringList = string.split(" ");
+        ArrayList<String> stringArrayList = new ArrayList<String>(Arrays.asList(stringList));
+        stringArrayList.remove(0);
+        stringList = stringArrayList.toArray(new String[0]);
+        return stringList;
+    }
+}
@@ -0,0 +1,153 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of creating, hashing and comparing TextMessage objects. Run the main method to see the
+ * heap retained per message, with a new sender String per message (as before the senders were
+ * interned), with interned senders, and with the text kept as UTF-8:
+ *
+ * <pre>
+ *     java -cp target/benchmarks.jar no.ntnu.datakomm.chat.TextMessageBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextMessageBenchmark {
+    private static final int RETAINED = 1_000_000;
+    private static final int SENDERS = 300;
+
+    private String sender;
+    private String text;
+    private TextMessage message;
+    private TextMessage equalMessage;
+    private TextMessage utf8Message;
+    private TextMessage collidingMessage;
+    private SymbolTable senderNames;
+    private ByteSlice received;
+
+    @Setup
+    public void setup() {
+        // Build the strings at run time, so they are not shared constants
+        sender = new StringBuilder("alice").toString();
+        text = new StringBuilder("Did anyone see the game yesterday? That last goal was unbelievable").toString();
+        message = new TextMessage(sender, false, text);
+        equalMessage = new TextMessage(new String(sender), false, new String(text));
+        utf8Message = equalMessage.toUtf8();
+        // Same sender and length, differs only in the last character
+        collidingMessage = new TextMessage(sender, false, text.substring(0, text.length() - 1) + "!");
+        senderNames = new SymbolTable(1024);
+        byte[] line = SampleLines.forCommand("msg").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(line.length);
+        buffer.put(line);
+        received = new ByteSlice();
+        received.set(buffer, 4, line.length);
+        senderNames.intern(received, 0, 5);
+    }
+
+    @Benchmark
+    public TextMessage construct() {
+        return new TextMessage(sender, false, text);
+    }
+
+    @Benchmark
+    public int hash() {
+        return message.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsEqual() {
+        return message.equals(equalMessage);
+    }
+
+    @Benchmark
+    public boolean equalsUtf8() {
+        return message.equals(utf8Message);
+    }
+
+    @Benchmark
+    public boolean equalsDifferent() {
+        return message.equals(collidingMessage);
+    }
+
+    @Benchmark
+    public String senderDecoded() {
+        return received.toString(0, 5);
+    }
+
+    @Benchmark
+    public String senderInterned() {
+        return senderNames.intern(received, 0, 5);
+    }
+
+    /**
+     * Print the heap retained per message for a million messages from a few hundred senders.
+     *
+     * @param args Not used
+     */
+    public static void main(String[] args) {
+        String[] senders = new String[SENDERS];
+        for (int i = 0; i < SENDERS; i++) {
+            senders[i] = "user" + i;
+        }
+        String[] texts = {
+                "Did anyone see the game yesterday? That last goal was unbelievable",
+                "Meet me in the lab at 14:00, bring the Wireshark captures",
+                "Blåbærsyltetøy på brødskiva, takk 🙂"
+        };
+        System.out.printf("%-22s %s%n", "variant", "bytes/message");
+        for (String variant : new String[]{"new sender strings", "interned senders", "interned + UTF-8"}) {
+            SymbolTable table = new SymbolTable(1024);
+            long before = usedHeap();
+            TextMessage[] retained = new TextMessage[RETAINED];
+            for (int i = 0; i < RETAINED; i++) {
+                String name = senders[i % SENDERS];
+                // Decoded from the received bytes, the text is a new String for every message
+                String text = new String(texts[i % texts.length].getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+                switch (variant) {
+                    case "new sender strings":
+                        retained[i] = new TextMessage(new String(name), false, text);
+                        break;
+                    case "interned senders":
+                        retained[i] = new TextMessage(table.intern(name), false, text);
+                        break;
+                    default:
+                        retained[i] = new TextMessage(table.intern(name), false, text.getBytes(StandardCharsets.UTF_8));
+                        break;
+                }
+            }
+            long after = usedHeap();
+            System.out.printf("%-22s %.1f%n", variant, (after - before) / (double) RETAINED);
+            if (retained[RETAINED - 1] == null) {
+                throw new AssertionError();
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
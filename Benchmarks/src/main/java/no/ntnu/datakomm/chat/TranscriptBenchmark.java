@@ -0,0 +1,67 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The TranscriptLog: appending a message (without syncing), and reading the last 200 messages
+ * the way the GUI does at startup, from a transcript of 500000 messages in 16 MB segments.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranscriptBenchmark {
+    private static final int MESSAGES = 500_000;
+
+    private Path directory;
+    private TranscriptLog transcript;
+    private TextMessage message;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("transcript-bench");
+        transcript = new TranscriptLog(directory, 16 * 1024 * 1024, TranscriptLog.SyncPolicy.NONE, 0);
+        message = new TextMessage("alice", false, SampleLines.forCommand("msg").substring("msg alice ".length()));
+        for (int i = 0; i < MESSAGES; i++) {
+            transcript.append(message);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        transcript.close();
+        for (Path segment : transcript.getSegments()) {
+            Files.delete(segment);
+        }
+        Files.deleteIfExists(directory.resolve("transcript.lock"));
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        transcript.append(message);
+    }
+
+    @Benchmark
+    public List<TextMessage> readLast200() throws IOException {
+        return transcript.readLast(200);
+    }
+}
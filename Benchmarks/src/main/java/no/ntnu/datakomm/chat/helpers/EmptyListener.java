@@ -0,0 +1,42 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import no.ntnu.datakomm.chat.ChatListener;
+import no.ntnu.datakomm.chat.TextMessage;
+
+/**
+ * A ChatListener which ignores all events. Benchmarks override the events they need.
+ */
+public class EmptyListener implements ChatListener {
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+
+    @Override
+    public void onJoke(String joke) {
+    }
+}
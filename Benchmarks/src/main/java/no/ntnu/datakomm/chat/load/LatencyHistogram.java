@@ -0,0 +1,103 @@
+package no.ntnu.datakomm.chat.load;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log-linear histogram of latencies in microseconds. Values below 64 are counted exactly,
+ * larger values in buckets of 32 per power of two, so every value is known within about 3%.
+ * Recording is lock-free and may happen from any thread.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKETS = 32;
+    // Enough buckets for any positive long
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + 58 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param micros The latency to count. Negative values are counted as 0.
+     */
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(bucketOf(value));
+        total.increment();
+        max.accumulate(value);
+    }
+
+    /**
+     * @return Number of recorded values
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * @return The highest recorded value, 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile A percentile, between 0 and 100
+     * @return The upper bound of the bucket holding the value at that percentile, 0 if nothing
+     * was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Print the non-empty buckets as "upper bound (us), count, cumulative fraction" rows.
+     *
+     * @param out Where to print
+     */
+    public void printBuckets(PrintStream out) {
+        long count = getCount();
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long n = counts.get(i);
+            if (n > 0) {
+                seen += n;
+                out.printf("  %12d us %10d %9.5f%n", upperBound(i), n, (double) seen / count);
+            }
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - 5;
+        int top = (int) (value >>> shift);
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long top = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,336 @@
+package no.ntnu.datakomm.chat.load;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import no.ntnu.datakomm.chat.SessionThreads;
+import no.ntnu.datakomm.chat.TCPClient;
+import no.ntnu.datakomm.chat.TextMessage;
+import no.ntnu.datakomm.chat.TransportMode;
+import no.ntnu.datakomm.chat.helpers.EmptyListener;
+import no.ntnu.datakomm.chat.server.ChatServer;
+
+/**
+ * Load generator for the chat server, grown out of the Warmup MultiClientTest: instead of three
+ * clients with random sleeps it runs any number of chat clients, started gradually, each sending
+ * a mix of msg, privmsg and users commands at a fixed rate. At the end it prints the throughput
+ * and the latency distribution per command type.
+ *
+ * <p>Latency is measured from the time a command was scheduled to be sent (not when it was
+ * actually sent, so a stalled client does not hide its own delay) until it arrives: for msg at
+ * every receiving client, for privmsg at the recipient, and for users when the reply arrives.
+ * All clients run in this JVM, so the send time travels inside the message text.
+ *
+ * <p>Usage: LoadGenerator [option value]... with the options
+ * <ul>
+ *     <li>--host (localhost) and --port (0: start a ChatServer in this JVM)</li>
+ *     <li>--clients (50) number of concurrent clients</li>
+ *     <li>--ramp-up (5) seconds until all clients are started, linearly</li>
+ *     <li>--rate (10) commands per second per client</li>
+ *     <li>--duration (30) seconds of load after the ramp-up</li>
+ *     <li>--mix (msg:20,privmsg:70,users:10) relative weights of the commands</li>
+ *     <li>--transport (BLOCKING) BLOCKING or NIO</li>
+ *     <li>--histogram (false) also print the histogram buckets</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    // Prefix of the message texts which carry a send time
+    private static final String STAMP = "lg ";
+    private static final String PADDING = " The quick brown fox jumps over the lazy dog";
+
+    private final String host;
+    private final int clientCount;
+    private final long rampUpNanos;
+    private final long intervalNanos;
+    private final long durationNanos;
+    private final int msgWeight;
+    private final int privmsgWeight;
+    private final int usersWeight;
+    private final TransportMode transport;
+
+    private int port;
+    private volatile boolean running = true;
+    // Number of clients which are logged in, they are numbered from 0
+    private final AtomicInteger loggedIn = new AtomicInteger();
+    // Only messages sent after this time are counted
+    private volatile long measureFrom;
+
+    private final LatencyHistogram msgLatency = new LatencyHistogram();
+    private final LatencyHistogram privmsgLatency = new LatencyHistogram();
+    private final LatencyHistogram usersLatency = new LatencyHistogram();
+    private final LongAdder msgSent = new LongAdder();
+    private final LongAdder privmsgSent = new LongAdder();
+    private final LongAdder usersSent = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private LoadGenerator(Options options) {
+        host = options.get("host", "localhost");
+        port = Integer.parseInt(options.get("port", "0"));
+        clientCount = Integer.parseInt(options.get("clients", "50"));
+        rampUpNanos = TimeUnit.MILLISECONDS.toNanos((long) (Double.parseDouble(options.get("ramp-up", "5")) * 1000));
+        intervalNanos = (long) (1e9 / Double.parseDouble(options.get("rate", "10")));
+        durationNanos = TimeUnit.MILLISECONDS.toNanos((long) (Double.parseDouble(options.get("duration", "30")) * 1000));
+        transport = TransportMode.valueOf(options.get("transport", "BLOCKING").toUpperCase());
+        int msg = 0;
+        int privmsg = 0;
+        int users = 0;
+        for (String part : options.get("mix", "msg:20,privmsg:70,users:10").split(",")) {
+            String[] kv = part.split(":");
+            int weight = Integer.parseInt(kv[1].trim());
+            switch (kv[0].trim()) {
+                case "msg":
+                    msg = weight;
+                    break;
+                case "privmsg":
+                    privmsg = weight;
+                    break;
+                case "users":
+                    users = weight;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown command in mix: " + kv[0]);
+            }
+        }
+        if (msg + privmsg + users <= 0) {
+            throw new IllegalArgumentException("The mix must contain at least one command");
+        }
+        msgWeight = msg;
+        privmsgWeight = privmsg;
+        usersWeight = users;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        LoadGenerator generator = new LoadGenerator(options);
+        PrintStream out = System.out;
+        // TCPClient logs every received command, that would drown the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            generator.run(out);
+        } finally {
+            System.setOut(out);
+        }
+        if (Boolean.parseBoolean(options.get("histogram", "false"))) {
+            generator.printHistograms(out);
+        }
+    }
+
+    private void run(PrintStream out) throws IOException, InterruptedException {
+        ChatServer server = null;
+        if (port == 0) {
+            server = new ChatServer(0);
+            server.start();
+            port = server.getPort();
+        }
+        out.println("Load: " + clientCount + " clients on " + host + ":" + port + " (" + transport
+                + "), one command every " + intervalNanos / 1000 + " us per client, ramp-up "
+                + rampUpNanos / 1_000_000 + " ms, measuring " + durationNanos / 1_000_000 + " ms");
+
+        ThreadFactory threads = SessionThreads.factory("load-client-");
+        List<Thread> clients = new ArrayList<>(clientCount);
+        long start = System.nanoTime();
+        measureFrom = start + rampUpNanos;
+        for (int i = 0; i < clientCount; i++) {
+            final int id = i;
+            long startAt = start + (clientCount > 1 ? rampUpNanos * i / (clientCount - 1) : 0);
+            Thread t = threads.newThread(() -> runClient(id, startAt));
+            t.start();
+            clients.add(t);
+        }
+
+        long end = measureFrom + durationNanos;
+        long lastReport = System.nanoTime();
+        long lastSent = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(1000);
+            long now = System.nanoTime();
+            long sent = totalSent();
+            out.printf("%6.1f s  clients %5d  sent %8.0f/s  errors %d%n", (now - start) / 1e9,
+                    loggedIn.get(), (sent - lastSent) * 1e9 / (now - lastReport), errors.sum());
+            lastSent = sent;
+            lastReport = now;
+        }
+        running = false;
+        for (Thread t : clients) {
+            t.join();
+        }
+        if (server != null) {
+            server.stop();
+        }
+        printSummary(out);
+    }
+
+    /**
+     * One simulated user: connect, log in, then send commands at the given rate until the test
+     * is over. Commands are scheduled at fixed times, a client which falls behind sends the
+     * missed ones as fast as it can.
+     */
+    private void runClient(int id, long startAt) {
+        LockSupport.parkNanos(startAt - System.nanoTime());
+        TCPClient client = new TCPClient(transport);
+        if (!client.connect(host, port)) {
+            errors.increment();
+            return;
+        }
+        client.addListener(new EmptyListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                recordDelivery(message);
+            }
+
+            @Override
+            public void onMessageError(String errMsg) {
+                errors.increment();
+            }
+
+            @Override
+            public void onCommandError(String errMsg) {
+                errors.increment();
+            }
+        });
+        client.startListenThread();
+        try {
+            if (!client.loginAsync(username(id)).get(10, TimeUnit.SECONDS).isSuccess()) {
+                errors.increment();
+                client.disconnect();
+                return;
+            }
+        } catch (Exception e) {
+            errors.increment();
+            client.disconnect();
+            return;
+        }
+        loggedIn.incrementAndGet();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Spread the clients over the interval, so they don't all send at the same moment
+        long next = System.nanoTime() + random.nextLong(intervalNanos);
+        while (running && client.isConnectionActive()) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            sendOne(client, random, next);
+            next += intervalNanos;
+        }
+        // Give the last messages a moment to arrive before hanging up
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(500));
+        client.disconnect();
+    }
+
+    private void sendOne(TCPClient client, ThreadLocalRandom random, long scheduled) {
+        boolean measured = scheduled >= measureFrom;
+        String text = STAMP + scheduled + PADDING;
+        int pick = random.nextInt(msgWeight + privmsgWeight + usersWeight);
+        boolean ok;
+        if (pick < msgWeight) {
+            ok = client.sendPublicMessage(text);
+            if (measured) {
+                msgSent.increment();
+            }
+        } else if (pick < msgWeight + privmsgWeight) {
+            ok = client.sendPrivateMessage(username(random.nextInt(loggedIn.get())), text);
+            if (measured) {
+                privmsgSent.increment();
+            }
+        } else {
+            ok = true;
+            client.usersAsync().whenComplete((users, error) -> {
+                if (error != null) {
+                    errors.increment();
+                } else if (measured) {
+                    usersLatency.record((System.nanoTime() - scheduled) / 1000);
+                }
+            });
+            if (measured) {
+                usersSent.increment();
+            }
+        }
+        if (!ok) {
+            errors.increment();
+        }
+    }
+
+    private void recordDelivery(TextMessage message) {
+        long now = System.nanoTime();
+        String text = message.getText();
+        if (!text.startsWith(STAMP)) {
+            return;
+        }
+        int end = text.indexOf(' ', STAMP.length());
+        long scheduled = Long.parseLong(text.substring(STAMP.length(), end < 0 ? text.length() : end));
+        if (scheduled >= measureFrom) {
+            LatencyHistogram histogram = message.isPrivate() ? privmsgLatency : msgLatency;
+            histogram.record((now - scheduled) / 1000);
+        }
+    }
+
+    private static String username(int id) {
+        return "load" + id;
+    }
+
+    private long totalSent() {
+        return msgSent.sum() + privmsgSent.sum() + usersSent.sum();
+    }
+
+    private void printSummary(PrintStream out) {
+        double seconds = durationNanos / 1e9;
+        out.println();
+        out.printf("Sent %d commands in %.1f s: %.0f commands/s, %d errors%n", totalSent(), seconds,
+                totalSent() / seconds, errors.sum());
+        out.printf("%-8s %10s %12s %12s %10s %10s %10s %10s%n", "command", "sent", "delivered",
+                "delivered/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        printRow(out, "msg", msgSent.sum(), msgLatency, seconds);
+        printRow(out, "privmsg", privmsgSent.sum(), privmsgLatency, seconds);
+        printRow(out, "users", usersSent.sum(), usersLatency, seconds);
+    }
+
+    private static void printRow(PrintStream out, String name, long sent, LatencyHistogram h,
+                                 double seconds) {
+        out.printf("%-8s %10d %12d %12.0f %10.3f %10.3f %10.3f %10.3f%n", name, sent, h.getCount(),
+                h.getCount() / seconds, h.getPercentile(50) / 1000.0, h.getPercentile(99) / 1000.0,
+                h.getPercentile(99.9) / 1000.0, h.getMax() / 1000.0);
+    }
+
+    private void printHistograms(PrintStream out) {
+        out.println();
+        out.println("msg latency:");
+        msgLatency.printBuckets(out);
+        out.println("privmsg latency:");
+        privmsgLatency.printBuckets(out);
+        out.println("users latency:");
+        usersLatency.printBuckets(out);
+    }
+
+    /**
+     * Command line options of the form --name value.
+     */
+    private static class Options {
+        private final Map<String, String> values = new HashMap<>();
+
+        Options(String[] args) {
+            for (int i = 0; i < args.length; i++) {
+                if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+                }
+                values.put(args[i].substring(2), args[++i]);
+            }
+        }
+
+        String get(String name, String defaultValue) {
+            return values.getOrDefault(name, defaultValue);
+        }
+    }
+}
@@ -1,7 +1,9 @@
 module no.ntnu.datakomm.chat {
   requires javafx.controls;
   requires javafx.fxml;
+  requires java.management;
 
   opens no.ntnu.datakomm.chat to javafx.fxml;
   exports no.ntnu.datakomm.chat;
+  exports no.ntnu.datakomm.chat.server;
 }
\ No newline at end of file
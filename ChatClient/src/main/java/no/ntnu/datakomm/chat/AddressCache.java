@@ -0,0 +1,69 @@
+package no.ntnu.datakomm.chat;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers resolved host names for a while, so that many clients connecting to the same server
+ * do one DNS lookup instead of one each. Entries expire after a fixed time, and can be dropped
+ * earlier when connecting to the cached address fails.
+ */
+public class AddressCache {
+    private static final AddressCache SHARED = new AddressCache(60000);
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttlMillis How long a resolved address is used, in milliseconds
+     */
+    public AddressCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return A cache shared by the whole application, keeping addresses for one minute
+     */
+    public static AddressCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Get the address of a host, from the cache if possible.
+     *
+     * @param host Host name or IP address
+     * @return The address
+     * @throws UnknownHostException When the host name could not be resolved
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(host);
+        if (entry == null || entry.expires < now) {
+            // Concurrent misses may resolve twice, which is harmless
+            entry = new Entry(InetAddress.getByName(host), now + ttlMillis);
+            entries.put(host, entry);
+        }
+        return entry.address;
+    }
+
+    /**
+     * Forget the address of a host, so the next resolve() does a new lookup.
+     *
+     * @param host Host name or IP address
+     */
+    public void invalidate(String host) {
+        entries.remove(host);
+    }
+
+    private static class Entry {
+        final InetAddress address;
+        final long expires;
+
+        Entry(InetAddress address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+}
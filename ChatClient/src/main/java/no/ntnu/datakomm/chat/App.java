@@ -17,6 +17,9 @@ import javafx.stage.Stage;
  */
 public class App extends Application {
 
+    // Null until the layout was loaded
+    private GUIController controller;
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -36,7 +39,11 @@ public class App extends Application {
         boolean loaded = false;
         if (fxmlUrl != null && cssUrl != null && iconUrl != null) {
             try {
-                root = FXMLLoader.load(fxmlUrl);
+                FXMLLoader loader = new FXMLLoader(fxmlUrl);
+                root = loader.load();
+                controller = loader.getController();
+                // Also when the process is stopped without closing the window
+                Runtime.getRuntime().addShutdownHook(new Thread(controller::shutdown, "chat-shutdown"));
                 Scene scene = new Scene(root, 600, 400);
                 scene.getStylesheets().add(cssUrl.toURI().toString());
                 primaryStage.setTitle("NTNU Ålesund - ChatClient");
@@ -63,4 +70,14 @@ public class App extends Application {
             Platform.exit();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * This method is called automatically by JavaFX when the application stops
+     */
+    @Override
+    public void stop() {
+        if (controller != null) {
+            controller.shutdown();
+        }
+    }
+}
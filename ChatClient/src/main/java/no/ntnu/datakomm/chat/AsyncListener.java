@@ -0,0 +1,292 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ChatListener which hands the events over to another listener on a separate thread, through a
+ * bounded queue. A slow listener (a logger writing to disk, for example) then no longer holds up
+ * the thread reading from the socket. Register the AsyncListener instead of the slow listener:
+ *
+ * <pre>
+ *     AsyncListener logger = new AsyncListener(new FileLogger(), 1000, AsyncListener.OverflowPolicy.DROP_OLDEST);
+ *     tcpClient.addListener(logger);
+ * </pre>
+ *
+ * The events reach the wrapped listener in the order they were received, one at a time. What
+ * happens when the queue is full is decided by the OverflowPolicy. Note that the dropping
+ * policies may drop any event, including onDisconnect.
+ */
+public class AsyncListener implements ChatListener {
+    /**
+     * What to do with a new event when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until there is room in the queue. Nothing is lost, but the reading thread stalls.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest queued event to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new event.
+         */
+        DROP_NEWEST
+    }
+
+    private final ChatListener delegate;
+    private final BlockingQueue<Runnable> queue;
+    private final OverflowPolicy policy;
+    private final Executor executor;
+    // Only set when the executor was created here, and must be shut down by close()
+    private final ExecutorService ownExecutor;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    // Set by close(); events arriving later are dropped
+    private volatile boolean closed = false;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * Deliver the events on a thread of its own.
+     *
+     * @param delegate The listener to call
+     * @param capacity Maximum number of queued events
+     * @param policy   What to do when the queue is full
+     */
+    public AsyncListener(ChatListener delegate, int capacity, OverflowPolicy policy) {
+        this(delegate, capacity, policy, null);
+    }
+
+    /**
+     * Deliver the events using the given executor. The executor may be shared with other
+     * listeners, the events of this listener still run one at a time and in order.
+     *
+     * @param delegate The listener to call
+     * @param capacity Maximum number of queued events
+     * @param policy   What to do when the queue is full
+     * @param executor Runs the deliveries, null to create a thread for this listener
+     */
+    public AsyncListener(ChatListener delegate, int capacity, OverflowPolicy policy, Executor executor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        if (executor == null) {
+            ownExecutor = Executors.newSingleThreadExecutor(SessionThreads.factory("chat-listener-"));
+            this.executor = ownExecutor;
+        } else {
+            ownExecutor = null;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * @return The listener which receives the events
+     */
+    public ChatListener getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return Number of events dropped because the queue was full, or because they arrived
+     * after close()
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Number of events delivered to the wrapped listener
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return Number of events waiting in the queue right now
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The highest number of events which were waiting at the same time
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Stop accepting events, and stop the thread created for this listener after the queued
+     * events were delivered. A shared executor is not stopped. Events which still arrive, from a
+     * client which had not removed this listener yet, are counted as dropped.
+     */
+    public void close() {
+        closed = true;
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Like close(), and wait until the queued events were delivered. Remove this listener from
+     * the client first, so no new events arrive meanwhile.
+     *
+     * @param timeout Maximum time to wait
+     * @param unit    Unit of the timeout
+     * @return true when the queued events were delivered, false on timeout or when a shared
+     * executor was given
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        close();
+        return ownExecutor != null && ownExecutor.awaitTermination(timeout, unit);
+    }
+
+    private void enqueue(Runnable event) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        boolean queued;
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(event);
+                    queued = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    queued = false;
+                }
+                break;
+            case DROP_OLDEST:
+                queued = queue.offer(event);
+                while (!queued) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                    queued = queue.offer(event);
+                }
+                break;
+            default:
+                queued = queue.offer(event);
+                break;
+        }
+        if (!queued) {
+            dropped.incrementAndGet();
+            return;
+        }
+        maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Closed meanwhile: nobody will deliver what is queued. Must not reach the
+                // thread reading from the socket.
+                draining.set(false);
+                while (queue.poll() != null) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deliver the queued events. Runs on the executor, only one drain at a time.
+     */
+    private void drain() {
+        Runnable event;
+        while ((event = queue.poll()) != null) {
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                // A failing listener must not stop the delivery of the following events
+                e.printStackTrace();
+            }
+            delivered.incrementAndGet();
+        }
+        draining.set(false);
+        // An event may have been queued after the last poll, but before draining was cleared
+        if (!queue.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+        enqueue(delegate::onDisconnect);
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        enqueue(() -> delegate.onLoginResult(success, errMsg));
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        enqueue(() -> delegate.onMessageReceived(message));
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        enqueue(() -> delegate.onMessageError(errMsg));
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        enqueue(() -> delegate.onUserList(usernames));
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        enqueue(() -> delegate.onSupportedCommands(commands));
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        enqueue(() -> delegate.onCommandError(errMsg));
+    }
+
+    @Override
+    public void onJoke(String joke) {
+        enqueue(() -> delegate.onJoke(joke));
+    }
+
+    @Override
+    public void onUserJoined(String username) {
+        enqueue(() -> delegate.onUserJoined(username));
+    }
+
+    @Override
+    public void onUserLeft(String username) {
+        enqueue(() -> delegate.onUserLeft(username));
+    }
+
+    @Override
+    public void onReconnecting(int attempt, long delayMillis) {
+        enqueue(() -> delegate.onReconnecting(attempt, delayMillis));
+    }
+
+    @Override
+    public void onReconnected() {
+        enqueue(delegate::onReconnected);
+    }
+}
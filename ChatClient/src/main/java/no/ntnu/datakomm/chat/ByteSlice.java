@@ -0,0 +1,110 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A part of a receive buffer: the arguments of one received command, still as UTF-8 bytes.
+ * Strings are only created when asked for, so commands nobody is interested in are never
+ * decoded. The slice is reused for the next command, so it is only valid during the call it is
+ * passed to. Indices are relative to the start of the slice.
+ */
+public final class ByteSlice {
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    // Direct buffers have no array, their bytes are copied here for decoding
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Point the slice to another part of a buffer.
+     *
+     * @param buffer The buffer
+     * @param start  Index of the first byte in the buffer
+     * @param end    Index after the last byte in the buffer
+     */
+    void set(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return Number of bytes
+     */
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * @return true if there are no bytes
+     */
+    public boolean isEmpty() {
+        return end == start;
+    }
+
+    /**
+     * @param index Index in the slice
+     * @return The byte at the index
+     */
+    public byte byteAt(int index) {
+        return buffer.get(start + index);
+    }
+
+    /**
+     * @param b    The byte to look for, an ASCII character
+     * @param from Index to start searching at
+     * @return Index of the first occurrence at or after from, -1 if there is none
+     */
+    public int indexOf(char b, int from) {
+        for (int i = start + from; i < end; i++) {
+            if (buffer.get(i) == b) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param from Index of the first byte
+     * @param to   Index after the last byte
+     * @return The bytes decoded as UTF-8
+     */
+    public String toString(int from, int to) {
+        int length = to - from;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start + from, length, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(start + from, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return All bytes decoded as UTF-8
+     */
+    @Override
+    public String toString() {
+        return toString(0, length());
+    }
+
+    /**
+     * @return A copy of the bytes
+     */
+    public byte[] toByteArray() {
+        return toByteArray(0, length());
+    }
+
+    /**
+     * @param from Index of the first byte
+     * @param to   Index after the last byte
+     * @return A copy of the bytes
+     */
+    public byte[] toByteArray(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(start + from, bytes);
+        return bytes;
+    }
+}
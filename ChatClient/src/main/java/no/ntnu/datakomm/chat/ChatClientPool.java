@@ -0,0 +1,368 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of connected and logged-in chat sessions, for bots that need a session for a short
+ * task now and then. Connecting and logging in happens ahead of time (prewarm()) or the first
+ * time a session is needed; after that, sessions are handed out by acquire() and taken back by
+ * Session.close(), ready for the next task. Every session has its own username: the prefix
+ * given to the pool followed by a number.
+ *
+ * <pre>
+ *     ChatClientPool pool = new ChatClientPool("localhost", 1300, TransportMode.NIO, "bot", 20);
+ *     pool.prewarm(5);
+ *     try (ChatClientPool.Session session = pool.acquire(5, TimeUnit.SECONDS)) {
+ *         session.getClient().sendPublicMessage("Hello from " + session.getUsername());
+ *     }
+ * </pre>
+ */
+public class ChatClientPool implements AutoCloseable {
+    // How many usernames are tried when the server says a name is taken
+    private static final int MAX_LOGIN_TRIES = 5;
+
+    private final String host;
+    private final int port;
+    private final TransportMode transport;
+    private final String usernamePrefix;
+    private final int maxSize;
+    private final AddressCache addresses;
+
+    // Sessions ready for use. The most recently released one is handed out first.
+    private final Deque<Session> idle = new ConcurrentLinkedDeque<>();
+    // One permit per session that may be handed out
+    private final Semaphore leases;
+    // Sessions which are open or being opened. A place is reserved before a session is opened,
+    // so acquire() and prewarm() together never open more than maxSize.
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final AtomicInteger nextUserId = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * Create a pool using the shared address cache. No connection is opened yet.
+     *
+     * @param host           Host name or IP address of the chat server
+     * @param port           TCP port of the chat server
+     * @param transport      Transport of the clients
+     * @param usernamePrefix Usernames are this prefix followed by a number
+     * @param maxSize        Maximum number of open sessions
+     */
+    public ChatClientPool(String host, int port, TransportMode transport, String usernamePrefix, int maxSize) {
+        this(host, port, transport, usernamePrefix, maxSize, AddressCache.shared());
+    }
+
+    /**
+     * Create a pool. No connection is opened yet.
+     *
+     * @param host           Host name or IP address of the chat server
+     * @param port           TCP port of the chat server
+     * @param transport      Transport of the clients
+     * @param usernamePrefix Usernames are this prefix followed by a number
+     * @param maxSize        Maximum number of open sessions
+     * @param addresses      Cache for the server address
+     */
+    public ChatClientPool(String host, int port, TransportMode transport, String usernamePrefix,
+                          int maxSize, AddressCache addresses) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.host = host;
+        this.port = port;
+        this.transport = transport;
+        this.usernamePrefix = usernamePrefix;
+        this.maxSize = maxSize;
+        this.addresses = addresses;
+        this.leases = new Semaphore(maxSize);
+    }
+
+    /**
+     * Open sessions in parallel until there are at least the given number of open sessions (or
+     * the pool is full), and wait for them.
+     *
+     * @param count The number of sessions wanted
+     * @return The number of sessions which were opened
+     */
+    public int prewarm(int count) {
+        List<CompletableFuture<Boolean>> opening = new ArrayList<>();
+        while (!closed && reserve(Math.min(count, maxSize))) {
+            opening.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    Session session = openReserved();
+                    idle.addLast(session);
+                    // close() may have emptied the idle sessions before this one was added
+                    if (closed && idle.remove(session)) {
+                        discard(session);
+                        return false;
+                    }
+                    sessionsChanged();
+                    return true;
+                } catch (IOException e) {
+                    System.out.println("Could not open a pooled session: " + e.getMessage());
+                    return false;
+                }
+            }, task -> SessionThreads.start("chat-pool-open", task)));
+        }
+        int opened = 0;
+        for (CompletableFuture<Boolean> future : opening) {
+            if (future.join()) {
+                opened++;
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * Get a logged-in session. An idle session is used if there is one, otherwise a new one is
+     * opened, unless the pool is full: then this waits until a session is released.
+     *
+     * @param timeout How long to wait for a free session
+     * @param unit    Unit of the timeout
+     * @return The session. Call close() on it when done.
+     * @throws IOException          When a new session could not be opened
+     * @throws TimeoutException     When no session became free in time
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public Session acquire(long timeout, TimeUnit unit) throws IOException, TimeoutException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("The pool is closed");
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!leases.tryAcquire(timeout, unit)) {
+            throw new TimeoutException("All " + maxSize + " sessions are in use");
+        }
+        try {
+            Session session = takeIdleOrOpen(deadline);
+            session.leased.set(true);
+            return session;
+        } catch (IOException | TimeoutException | InterruptedException | RuntimeException e) {
+            leases.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Take an idle session, or open a new one if the pool has room. When every place is taken
+     * by a session which prewarm() is still opening, wait for it.
+     *
+     * @param deadline When to give up, in System.nanoTime()
+     */
+    private Session takeIdleOrOpen(long deadline) throws IOException, TimeoutException, InterruptedException {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("The pool is closed");
+            }
+            Session session;
+            while ((session = idle.pollFirst()) != null) {
+                if (session.client.isConnectionActive()) {
+                    return session;
+                }
+                // The server closed it while it was idle
+                discard(session);
+            }
+            if (reserve(maxSize)) {
+                return openReserved();
+            }
+            synchronized (idle) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException("All " + maxSize + " sessions are being opened");
+                }
+                if (idle.isEmpty() && openCount.get() >= maxSize && !closed) {
+                    TimeUnit.NANOSECONDS.timedWait(idle, remaining);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserve the place of one more open session.
+     *
+     * @param limit The number of open sessions which must not be exceeded
+     * @return false when limit sessions are open (or being opened) already
+     */
+    private boolean reserve(int limit) {
+        int open;
+        do {
+            open = openCount.get();
+            if (open >= limit) {
+                return false;
+            }
+        } while (!openCount.compareAndSet(open, open + 1));
+        return true;
+    }
+
+    /**
+     * Open a session in a place reserved with reserve(). The place is given back when opening
+     * fails.
+     */
+    private Session openReserved() throws IOException {
+        try {
+            return open();
+        } catch (IOException | RuntimeException e) {
+            openCount.decrementAndGet();
+            sessionsChanged();
+            throw e;
+        }
+    }
+
+    /**
+     * Wake up acquire() calls waiting for a session which prewarm() is opening.
+     */
+    private void sessionsChanged() {
+        synchronized (idle) {
+            idle.notifyAll();
+        }
+    }
+
+    /**
+     * @return Number of sessions waiting to be acquired
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return Number of open sessions, idle or in use
+     */
+    public int getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * Disconnect the idle sessions. Sessions in use are disconnected when they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Session session;
+        while ((session = idle.pollFirst()) != null) {
+            discard(session);
+        }
+        sessionsChanged();
+    }
+
+    /**
+     * Connect and log in a new session, in a place reserved with reserve().
+     */
+    private Session open() throws IOException {
+        InetAddress address = addresses.resolve(host);
+        TCPClient client = new TCPClient(transport);
+        if (!client.connect(address, port)) {
+            // The server may have moved
+            addresses.invalidate(host);
+            throw new IOException("Could not connect to " + host + ":" + port);
+        }
+        client.startListenThread();
+        String error = "";
+        try {
+            for (int i = 0; i < MAX_LOGIN_TRIES; i++) {
+                String username = usernamePrefix + nextUserId.incrementAndGet();
+                // Fails when the server does not answer in time (see TCPClient.setRequestTimeout())
+                LoginResult result = client.loginAsync(username).get();
+                if (result.isSuccess()) {
+                    return new Session(client, username);
+                }
+                error = result.getMessage();
+            }
+        } catch (ExecutionException e) {
+            error = e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "interrupted";
+        }
+        client.disconnect();
+        throw new IOException("Could not log in: " + error);
+    }
+
+    private void release(Session session) {
+        if (!session.leased.compareAndSet(true, false)) {
+            return;
+        }
+        session.removeListeners();
+        session.client.flush();
+        if (closed || !session.client.isConnectionActive()) {
+            discard(session);
+        } else {
+            idle.addFirst(session);
+            // close() may have emptied the idle sessions before this one was added
+            if (closed && idle.remove(session)) {
+                discard(session);
+            }
+            sessionsChanged();
+        }
+        leases.release();
+    }
+
+    private void discard(Session session) {
+        openCount.decrementAndGet();
+        session.client.disconnect();
+        sessionsChanged();
+    }
+
+    /**
+     * A logged-in client borrowed from the pool. Listeners added through the session are
+     * removed again when it goes back to the pool.
+     */
+    public class Session implements AutoCloseable {
+        private final TCPClient client;
+        private final String username;
+        private final AtomicBoolean leased = new AtomicBoolean(false);
+        private final List<ChatListener> listeners = new ArrayList<>();
+
+        private Session(TCPClient client, String username) {
+            this.client = client;
+            this.username = username;
+        }
+
+        /**
+         * @return The client. Don't disconnect it or add listeners to it directly.
+         */
+        public TCPClient getClient() {
+            return client;
+        }
+
+        /**
+         * @return The username the session is logged in with
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * Add a listener for as long as the session is borrowed.
+         *
+         * @param listener The listener
+         */
+        public synchronized void addListener(ChatListener listener) {
+            listeners.add(listener);
+            client.addListener(listener);
+        }
+
+        private synchronized void removeListeners() {
+            for (ChatListener listener : listeners) {
+                client.removeListener(listener);
+            }
+            listeners.clear();
+        }
+
+        /**
+         * Give the session back to the pool. Calling it again has no effect.
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The kinds of events a ChatListener receives, one per listener method. Used to register a
+ * listener only for the events it cares about.
+ */
+public enum ChatEvent {
+    DISCONNECT,
+    LOGIN_RESULT,
+    MESSAGE,
+    MESSAGE_ERROR,
+    USER_LIST,
+    SUPPORTED_COMMANDS,
+    COMMAND_ERROR,
+    JOKE,
+    USER_JOINED,
+    USER_LEFT,
+    RECONNECTING,
+    RECONNECTED
+}
@@ -62,4 +62,39 @@ public interface ChatListener {
 
     public void onJoke(String joke);
 
+    /**
+     * This method is called when a user has logged in. Only used when the client has
+     * subscribed to presence events (see TCPClient.negotiatePresence()).
+     *
+     * @param username The user who joined
+     */
+    public default void onUserJoined(String username) {
+    }
+
+    /**
+     * This method is called when a user has logged out or disconnected. Only used when the
+     * client has subscribed to presence events (see TCPClient.negotiatePresence()).
+     *
+     * @param username The user who left
+     */
+    public default void onUserLeft(String username) {
+    }
+
+    /**
+     * This method is called when the connection was lost and the client will try to reconnect.
+     * Only used when reconnecting is enabled (see TCPClient.enableReconnect()).
+     *
+     * @param attempt     Number of the coming attempt, starting at 1
+     * @param delayMillis Time until the attempt, in milliseconds
+     */
+    public default void onReconnecting(int attempt, long delayMillis) {
+    }
+
+    /**
+     * This method is called when the client has reconnected and logged in again after a lost
+     * connection.
+     */
+    public default void onReconnected() {
+    }
+
 }
@@ -0,0 +1,72 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+/**
+ * Renders one ChatLogEntry in the chat window. The ListView only creates as many cells as
+ * fit on the screen and reuses them while scrolling, so the nodes below are created once per
+ * cell and only their text and style change.
+ */
+class ChatLogCell extends ListCell<ChatLogEntry> {
+    // Horizontal space taken by the cell padding and the scroll bar
+    private static final double CELL_INSETS = 40;
+
+    private final HBox message = new HBox();
+    private final VBox messageContent = new VBox();
+    private final Label messageSender = new Label();
+    private final Label messageText = new Label();
+    private final Pane spacer = new Pane();
+
+    ChatLogCell() {
+        messageText.setWrapText(true);
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        spacer.setMinSize(10, 1);
+        // Wrap long messages instead of making the list wider
+        setPrefWidth(0);
+        messageContent.maxWidthProperty().bind(widthProperty().subtract(CELL_INSETS));
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+    }
+
+    @Override
+    protected void updateItem(ChatLogEntry entry, boolean empty) {
+        super.updateItem(entry, empty);
+        if (empty || entry == null) {
+            setGraphic(null);
+            return;
+        }
+        TextMessage msg = entry.getMessage();
+        messageText.setText(msg.getText());
+        if (entry.isWarning()) {
+            // This message is a warning/info, add specific style to it
+            messageText.getStyleClass().setAll("label", "message",
+                    msg.getSender().equals("err") ? "warning" : "info");
+            messageContent.getChildren().setAll(messageText);
+            message.getChildren().setAll(messageContent);
+        } else if (entry.isLocal()) {
+            messageText.getStyleClass().setAll("label", "message",
+                    entry.isFailed() ? "failedMessage" : "sentMessage");
+            // Add empty space first (left), then the message (right)
+            messageContent.getChildren().setAll(messageText);
+            message.getChildren().setAll(spacer, messageContent);
+        } else {
+            messageText.getStyleClass().setAll("label", "message", "otherMessage");
+            if (msg.isPrivate()) {
+                messageSender.setText("Private from " + msg.getSender() + ":");
+                messageSender.getStyleClass().setAll("label", "sender", "private");
+            } else {
+                messageSender.setText(msg.getSender() + ":");
+                messageSender.getStyleClass().setAll("label", "sender");
+            }
+            // Add message first (left), then empty space (right)
+            messageContent.getChildren().setAll(messageSender, messageText);
+            message.getChildren().setAll(messageContent, spacer);
+        }
+        setGraphic(message);
+    }
+}
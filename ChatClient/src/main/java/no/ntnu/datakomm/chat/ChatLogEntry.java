@@ -0,0 +1,41 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * One line in the chat window: a message together with how it must be displayed.
+ */
+class ChatLogEntry {
+
+    private final TextMessage message;
+    private final boolean local;
+    private final boolean warning;
+    private final boolean failed;
+
+    /**
+     * @param message The message to display
+     * @param local   When true, this message was sent by us. When false - received from another user
+     * @param warning When true, this message is a warning/info to the user
+     * @param failed  When true, this is a local message which could not be sent (no connection)
+     */
+    ChatLogEntry(TextMessage message, boolean local, boolean warning, boolean failed) {
+        this.message = message;
+        this.local = local;
+        this.warning = warning;
+        this.failed = failed;
+    }
+
+    TextMessage getMessage() {
+        return message;
+    }
+
+    boolean isLocal() {
+        return local;
+    }
+
+    boolean isWarning() {
+        return warning;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+}
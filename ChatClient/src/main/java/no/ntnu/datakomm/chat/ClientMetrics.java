@@ -0,0 +1,324 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings of one TCPClient: commands and bytes in both directions, connect and
+ * round-trip latencies, reconnects and listener dispatch time. Recording is cheap and lock-free
+ * (LongAdders), so it is always on. Register the metrics with JMX to read them from a running
+ * client, e.g. with JConsole or a JMX exporter:
+ *
+ * <pre>
+ *     client.getMetrics().register("bot1");
+ * </pre>
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+    /**
+     * Domain of the JMX object names.
+     */
+    public static final String JMX_DOMAIN = "no.ntnu.datakomm.chat";
+
+    private static final Command[] COMMANDS = Command.values();
+
+    private final LongAdder[] sent = newCounters();
+    private final LongAdder[] received = newCounters();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final Latency connect = new Latency();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder rejectedCommands = new LongAdder();
+    private final Latency login = new Latency();
+    private final Latency users = new Latency();
+    private final Latency help = new Latency();
+    private final LongAdder reconnectAttempts = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final Latency dispatch = new Latency();
+
+    private ObjectName registeredName;
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[COMMANDS.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * Register these metrics with the platform MBean server, as
+     * no.ntnu.datakomm.chat:type=TCPClient,name=(name). Replaces an earlier registration of
+     * these metrics.
+     *
+     * @param name Name of the client, unique among the clients of this process
+     * @return The object name
+     * @throws JMException When the name is invalid or already used
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=TCPClient,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, objectName);
+        registeredName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Remove the JMX registration, if there is one.
+     */
+    public synchronized void unregister() {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                // Already gone
+            }
+            registeredName = null;
+        }
+    }
+
+    void commandSent(Command command) {
+        sent[command.ordinal()].increment();
+    }
+
+    void commandReceived(Command command) {
+        received[command.ordinal()].increment();
+    }
+
+    void bytesSent(int bytes) {
+        bytesSent.add(bytes);
+    }
+
+    void bytesReceived(int bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void connected(long nanos) {
+        connect.record(nanos);
+    }
+
+    void connectFailed() {
+        connectFailures.increment();
+    }
+
+    void commandRejected() {
+        rejectedCommands.increment();
+    }
+
+    Latency loginLatency() {
+        return login;
+    }
+
+    Latency usersLatency() {
+        return users;
+    }
+
+    Latency helpLatency() {
+        return help;
+    }
+
+    void reconnectAttempt() {
+        reconnectAttempts.increment();
+    }
+
+    void reconnected() {
+        reconnects.increment();
+    }
+
+    void dispatched(long nanos) {
+        dispatch.record(nanos);
+    }
+
+    /**
+     * @param command A command
+     * @return Number of times it was sent
+     */
+    public long getSent(Command command) {
+        return sent[command.ordinal()].sum();
+    }
+
+    /**
+     * @param command A command
+     * @return Number of times it was received
+     */
+    public long getReceived(Command command) {
+        return received[command.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getSentByCommand() {
+        return byCommand(sent);
+    }
+
+    @Override
+    public Map<String, Long> getReceivedByCommand() {
+        return byCommand(received);
+    }
+
+    private static Map<String, Long> byCommand(LongAdder[] counters) {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Command command : COMMANDS) {
+            long count = counters[command.ordinal()].sum();
+            if (count > 0) {
+                counts.put(command == Command.UNKNOWN ? "unknown" : command.getKeyword(), count);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public LatencySummary getConnectLatency() {
+        return connect.summary();
+    }
+
+    @Override
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    @Override
+    public long getRejectedCommands() {
+        return rejectedCommands.sum();
+    }
+
+    @Override
+    public LatencySummary getLoginRoundTrip() {
+        return login.summary();
+    }
+
+    @Override
+    public LatencySummary getUsersRoundTrip() {
+        return users.summary();
+    }
+
+    @Override
+    public LatencySummary getHelpRoundTrip() {
+        return help.summary();
+    }
+
+    @Override
+    public long getReconnectAttempts() {
+        return reconnectAttempts.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public LatencySummary getDispatchTime() {
+        return dispatch.summary();
+    }
+
+    @Override
+    public void reset() {
+        for (Command command : COMMANDS) {
+            sent[command.ordinal()].reset();
+            received[command.ordinal()].reset();
+        }
+        bytesSent.reset();
+        bytesReceived.reset();
+        connect.reset();
+        connectFailures.reset();
+        rejectedCommands.reset();
+        login.reset();
+        users.reset();
+        help.reset();
+        reconnectAttempts.reset();
+        reconnects.reset();
+        dispatch.reset();
+    }
+
+    /**
+     * Count, total and maximum of a kind of duration.
+     */
+    static class Latency {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        /**
+         * @param nanos A duration, in nanoseconds
+         */
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * @param startNanos When the timed operation started (System.nanoTime())
+         */
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        LatencySummary summary() {
+            return new LatencySummary(count.sum(), totalNanos.sum(), maxNanos.get());
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+        }
+    }
+
+    /**
+     * A snapshot of a kind of duration.
+     */
+    public static class LatencySummary {
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        LatencySummary(long count, long totalNanos, long maxNanos) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * @return Number of recorded durations
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return Average duration in milliseconds, 0 if nothing was recorded
+         */
+        public double getAverageMillis() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        /**
+         * @return Longest duration in milliseconds
+         */
+        public double getMaxMillis() {
+            return maxNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d, avg %.3f ms, max %.3f ms", count, getAverageMillis(), getMaxMillis());
+        }
+    }
+}
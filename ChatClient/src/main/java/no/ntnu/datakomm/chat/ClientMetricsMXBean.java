@@ -0,0 +1,79 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Map;
+
+/**
+ * The metrics of one TCPClient as seen over JMX (see ClientMetrics.register()). Maps become
+ * tables and LatencySummary becomes a composite value, so any JMX client can read them.
+ */
+public interface ClientMetricsMXBean {
+    /**
+     * @return Number of commands sent, by command word
+     */
+    Map<String, Long> getSentByCommand();
+
+    /**
+     * @return Number of commands received, by command word ("unknown" for unknown commands)
+     */
+    Map<String, Long> getReceivedByCommand();
+
+    /**
+     * @return Bytes written to the server
+     */
+    long getBytesSent();
+
+    /**
+     * @return Bytes received from the server
+     */
+    long getBytesReceived();
+
+    /**
+     * @return Time to open the connection, for every successful connect
+     */
+    ClientMetrics.LatencySummary getConnectLatency();
+
+    /**
+     * @return Number of failed connection attempts
+     */
+    long getConnectFailures();
+
+    /**
+     * @return Number of commands not sent because the server does not support them
+     */
+    long getRejectedCommands();
+
+    /**
+     * @return Time from sending login to the loginok/loginerr reply
+     */
+    ClientMetrics.LatencySummary getLoginRoundTrip();
+
+    /**
+     * @return Time from sending users to the reply
+     */
+    ClientMetrics.LatencySummary getUsersRoundTrip();
+
+    /**
+     * @return Time from sending help to the reply
+     */
+    ClientMetrics.LatencySummary getHelpRoundTrip();
+
+    /**
+     * @return Number of reconnect attempts
+     */
+    long getReconnectAttempts();
+
+    /**
+     * @return Number of successful reconnects
+     */
+    long getReconnects();
+
+    /**
+     * @return Time spent turning received commands into listener events, including the listeners
+     */
+    ClientMetrics.LatencySummary getDispatchTime();
+
+    /**
+     * Set all metrics back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,138 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Command words of the chat protocol, both the ones sent by the client and the ones received
+ * from the server.
+ */
+public enum Command {
+    LOGIN("login", 1),
+    LOGINOK("loginok", 2),
+    LOGINERR("loginerr", 3),
+    USERS("users", 4),
+    MSG("msg", 5),
+    PRIVMSG("privmsg", 6),
+    MSGERR("msgerr", 7),
+    CMDERR("cmderr", 8),
+    HELP("help", 9),
+    SUPPORTED("supported", 10),
+    JOKE("joke", 11),
+    // Subscription to presence events, and the server's acknowledgement
+    PRESENCE("presence", 12),
+    PRESENCEOK("presenceok", 13),
+    // Presence events pushed by the server
+    JOINED("joined", 14),
+    LEFT("left", 15),
+    // Switch to binary frames, and the server's acknowledgement
+    FRAMING("framing", 16),
+    FRAMINGOK("framingok", 17),
+    // Messages with deflated text, only used as binary frames (see MessageCompressor)
+    ZMSG("zmsg", 18),
+    ZPRIVMSG("zprivmsg", 19),
+    // Switch on compression, and the server's acknowledgement
+    COMPRESS("compress", 20),
+    COMPRESSOK("compressok", 21),
+    // Any command word not known by this client. As a binary frame: a complete text line.
+    UNKNOWN("", 0);
+
+    private static final Command[] BY_OPCODE = new Command[32];
+    // values() creates a new array on every call
+    private static final Command[] VALUES = values();
+
+    static {
+        for (Command command : values()) {
+            BY_OPCODE[command.opcode] = command;
+        }
+    }
+
+    private final String keyword;
+    private final byte[] keywordBytes;
+    private final int opcode;
+
+    Command(String keyword, int opcode) {
+        this.keyword = keyword;
+        this.keywordBytes = keyword.getBytes(StandardCharsets.US_ASCII);
+        this.opcode = opcode;
+    }
+
+    /**
+     * @return The command word as it is written on the wire
+     */
+    public String getKeyword() {
+        return keyword;
+    }
+
+    /**
+     * @return The code of the command in binary frames
+     */
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * @return true for the frames whose payload is compressed, and not UTF-8 text
+     */
+    public boolean isCompressed() {
+        return this == ZMSG || this == ZPRIVMSG;
+    }
+
+    /**
+     * @param opcode The code from a binary frame
+     * @return The command with this code, null if there is none
+     */
+    public static Command fromOpcode(int opcode) {
+        return opcode >= 0 && opcode < BY_OPCODE.length ? BY_OPCODE[opcode] : null;
+    }
+
+    /**
+     * Find the command word at the start of a line. Unlike CommandDecoder.identify() this knows
+     * the commands sent by the client as well.
+     *
+     * @param line    The line
+     * @param wordEnd Index after the last character of the first word
+     * @return The command, UNKNOWN if the word is no known command
+     */
+    public static Command lookup(String line, int wordEnd) {
+        for (Command command : VALUES) {
+            String keyword = command.keyword;
+            if (keyword.length() == wordEnd && wordEnd > 0 && line.startsWith(keyword)) {
+                return command;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Find the command word in received bytes, without decoding them.
+     *
+     * @param buffer  The received bytes
+     * @param start   Index of the first byte of the word
+     * @param wordEnd Index after the last byte of the word
+     * @return The command, UNKNOWN if the word is no known command
+     */
+    public static Command lookup(ByteBuffer buffer, int start, int wordEnd) {
+        int length = wordEnd - start;
+        if (length <= 0) {
+            return UNKNOWN;
+        }
+        byte first = buffer.get(start);
+        for (Command command : VALUES) {
+            byte[] word = command.keywordBytes;
+            if (word.length == length && word[0] == first && matches(buffer, start, word)) {
+                return command;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int start, byte[] word) {
+        for (int i = 1; i < word.length; i++) {
+            if (buffer.get(start + i) != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,292 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Decodes one line received from the chat server. The line is scanned once: the command is
+ * identified by its prefix and the positions of the arguments are handed over to a Handler, so
+ * that no intermediate arrays or regular expressions are needed. Strings are only created by the
+ * handler, for the parts it actually uses.
+ */
+public final class CommandDecoder {
+
+    private CommandDecoder() {
+    }
+
+    /**
+     * Receives the decoded commands. Offsets are indices into the original line.
+     */
+    public interface Handler {
+        /**
+         * @param success True for loginok, false for loginerr
+         * @param line    The whole line
+         */
+        void onLoginResult(boolean success, String line);
+
+        /**
+         * @param line      The whole line
+         * @param listStart Index of the first username (may be equal to the line length)
+         */
+        void onUsers(String line, int listStart);
+
+        /**
+         * @param priv        True for privmsg, false for msg
+         * @param line        The whole line
+         * @param senderStart Index of the first character of the sender
+         * @param senderEnd   Index after the last character of the sender
+         * @param textStart   Index of the first character of the message text
+         */
+        void onMessage(boolean priv, String line, int senderStart, int senderEnd, int textStart);
+
+        /**
+         * @param line The whole msgerr line
+         */
+        void onMessageError(String line);
+
+        /**
+         * @param line The whole cmderr line
+         */
+        void onCommandError(String line);
+
+        /**
+         * @param line      The whole line
+         * @param listStart Index of the first command name (may be equal to the line length)
+         */
+        void onSupported(String line, int listStart);
+
+        /**
+         * @param line The whole joke line
+         */
+        void onJoke(String line);
+
+        /**
+         * The server accepted our presence subscription.
+         */
+        default void onPresenceOk() {
+        }
+
+        /**
+         * A user logged in (only received with a presence subscription).
+         *
+         * @param line      The whole line
+         * @param userStart Index of the first character of the username
+         */
+        default void onUserJoined(String line, int userStart) {
+        }
+
+        /**
+         * A user logged out or disconnected (only received with a presence subscription).
+         *
+         * @param line      The whole line
+         * @param userStart Index of the first character of the username
+         */
+        default void onUserLeft(String line, int userStart) {
+        }
+
+        /**
+         * The server accepted the switch to binary frames. Everything the server sends after
+         * this line is framed.
+         */
+        default void onFramingOk() {
+        }
+
+        /**
+         * The server accepted compression of large messages.
+         */
+        default void onCompressOk() {
+        }
+    }
+
+    /**
+     * Decode one line and call the matching method of the handler. Unknown commands are
+     * identified but not passed to the handler.
+     *
+     * @param line    One line received from the server, without the newline
+     * @param handler The handler to notify
+     * @return The command found in the line
+     */
+    public static Command decode(String line, Handler handler) {
+        int wordEnd = line.indexOf(' ');
+        if (wordEnd < 0) {
+            wordEnd = line.length();
+        }
+        int argStart = Math.min(wordEnd + 1, line.length());
+        Command command = identify(line, wordEnd);
+        switch (command) {
+            case LOGINOK:
+                handler.onLoginResult(true, line);
+                break;
+            case LOGINERR:
+                handler.onLoginResult(false, line);
+                break;
+            case USERS:
+                handler.onUsers(line, argStart);
+                break;
+            case MSG:
+            case PRIVMSG:
+                int senderEnd = line.indexOf(' ', argStart);
+                if (senderEnd < 0) {
+                    senderEnd = line.length();
+                }
+                int textStart = Math.min(senderEnd + 1, line.length());
+                handler.onMessage(command == Command.PRIVMSG, line, argStart, senderEnd, textStart);
+                break;
+            case MSGERR:
+                handler.onMessageError(line);
+                break;
+            case CMDERR:
+                handler.onCommandError(line);
+                break;
+            case SUPPORTED:
+                handler.onSupported(line, argStart);
+                break;
+            case JOKE:
+                handler.onJoke(line);
+                break;
+            case PRESENCEOK:
+                handler.onPresenceOk();
+                break;
+            case JOINED:
+                handler.onUserJoined(line, argStart);
+                break;
+            case LEFT:
+                handler.onUserLeft(line, argStart);
+                break;
+            case FRAMINGOK:
+                handler.onFramingOk();
+                break;
+            case COMPRESSOK:
+                handler.onCompressOk();
+                break;
+            default:
+                break;
+        }
+        return command;
+    }
+
+    /**
+     * Decode one binary frame and call the matching method of the handler. The handler gets the
+     * same calls as for the equivalent text line; for the frequent commands the offsets point
+     * into the arguments, so no line has to be put together.
+     *
+     * @param command The command of the frame
+     * @param args    The payload of the frame. For UNKNOWN frames, a complete text line.
+     * @param handler The handler to notify
+     * @return The command, as identified in the line for UNKNOWN frames
+     */
+    public static Command decodeFrame(Command command, String args, Handler handler) {
+        switch (command) {
+            case USERS:
+                handler.onUsers(args, 0);
+                break;
+            case MSG:
+            case PRIVMSG:
+                int senderEnd = args.indexOf(' ');
+                if (senderEnd < 0) {
+                    senderEnd = args.length();
+                }
+                int textStart = Math.min(senderEnd + 1, args.length());
+                handler.onMessage(command == Command.PRIVMSG, args, 0, senderEnd, textStart);
+                break;
+            case SUPPORTED:
+                handler.onSupported(args, 0);
+                break;
+            case JOINED:
+                handler.onUserJoined(args, 0);
+                break;
+            case LEFT:
+                handler.onUserLeft(args, 0);
+                break;
+            case UNKNOWN:
+                return decode(args, handler);
+            default:
+                // Rare commands whose handlers want the whole line
+                return decode(args.isEmpty() ? command.getKeyword() : command.getKeyword() + " " + args, handler);
+        }
+        return command;
+    }
+
+    /**
+     * Find out which command the first word of the line is.
+     *
+     * @param line    The line
+     * @param wordEnd Index after the last character of the first word
+     * @return The command, UNKNOWN if the word is not a command the server sends
+     */
+    public static Command identify(String line, int wordEnd) {
+        if (wordEnd == 0) {
+            return Command.UNKNOWN;
+        }
+        switch (line.charAt(0)) {
+            case 'l':
+                if (matches(line, wordEnd, Command.LOGINOK)) return Command.LOGINOK;
+                if (matches(line, wordEnd, Command.LOGINERR)) return Command.LOGINERR;
+                if (matches(line, wordEnd, Command.LEFT)) return Command.LEFT;
+                break;
+            case 'u':
+                if (matches(line, wordEnd, Command.USERS)) return Command.USERS;
+                break;
+            case 'm':
+                if (matches(line, wordEnd, Command.MSG)) return Command.MSG;
+                if (matches(line, wordEnd, Command.MSGERR)) return Command.MSGERR;
+                break;
+            case 'p':
+                if (matches(line, wordEnd, Command.PRIVMSG)) return Command.PRIVMSG;
+                if (matches(line, wordEnd, Command.PRESENCEOK)) return Command.PRESENCEOK;
+                break;
+            case 'c':
+                if (matches(line, wordEnd, Command.CMDERR)) return Command.CMDERR;
+                if (matches(line, wordEnd, Command.COMPRESSOK)) return Command.COMPRESSOK;
+                break;
+            case 's':
+                if (matches(line, wordEnd, Command.SUPPORTED)) return Command.SUPPORTED;
+                break;
+            case 'j':
+                if (matches(line, wordEnd, Command.JOKE)) return Command.JOKE;
+                if (matches(line, wordEnd, Command.JOINED)) return Command.JOINED;
+                break;
+            case 'f':
+                if (matches(line, wordEnd, Command.FRAMINGOK)) return Command.FRAMINGOK;
+                break;
+            default:
+                break;
+        }
+        return Command.UNKNOWN;
+    }
+
+    private static boolean matches(String line, int wordEnd, Command command) {
+        String keyword = command.getKeyword();
+        return wordEnd == keyword.length() && line.startsWith(keyword);
+    }
+
+    /**
+     * Split the space-separated words of a line, starting at the given index. Empty words (double
+     * spaces) are skipped. The words are counted first, so exactly one array is allocated.
+     *
+     * @param line  The line
+     * @param start Index where the first word starts
+     * @return The words
+     */
+    public static String[] words(String line, int start) {
+        int count = 0;
+        boolean inWord = false;
+        for (int i = start; i < line.length(); i++) {
+            boolean space = line.charAt(i) == ' ';
+            if (!space && !inWord) {
+                count++;
+            }
+            inWord = !space;
+        }
+        String[] words = new String[count];
+        int n = 0;
+        int wordStart = -1;
+        for (int i = start; i <= line.length(); i++) {
+            boolean space = i == line.length() || line.charAt(i) == ' ';
+            if (space && wordStart >= 0) {
+                words[n++] = line.substring(wordStart, i);
+                wordStart = -1;
+            } else if (!space && wordStart < 0) {
+                wordStart = i;
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,103 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes commands for the wire, as text lines or as binary frames. A binary frame is
+ *
+ * <pre>
+ *     length   varint (7 bits per byte, least significant group first), bytes after the length
+ *     opcode   1 byte, see Command.getOpcode()
+ *     payload  UTF-8 text of the arguments (everything after the command word and its space)
+ * </pre>
+ *
+ * The frame for a short message is two bytes of header instead of the command word, a space and
+ * the newline, and the payload may contain newlines. Commands without an opcode are sent with
+ * opcode 0 and the complete line as payload. Binary frames are only used after both sides agreed
+ * on them with "framing binary"; text lines stay the default.
+ */
+public final class FrameCodec {
+    /**
+     * Largest accepted frame (opcode and payload), in bytes.
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @param line A command line, without newline
+     * @return The line as UTF-8 bytes, with the newline
+     */
+    public static byte[] encodeLine(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[text.length + 1];
+        System.arraycopy(text, 0, data, 0, text.length);
+        data[text.length] = '\n';
+        return data;
+    }
+
+    /**
+     * @param line A command line, without newline
+     * @return The command as a binary frame
+     */
+    public static byte[] encodeFrame(String line) {
+        int wordEnd = line.indexOf(' ');
+        return encodeFrame(Command.lookup(line, wordEnd < 0 ? line.length() : wordEnd), line);
+    }
+
+    /**
+     * @param command The command word of the line, when the caller has looked it up already
+     * @param line    A command line, without newline
+     * @return The command as a binary frame
+     */
+    public static byte[] encodeFrame(Command command, String line) {
+        if (command == Command.UNKNOWN) {
+            return frame(Command.UNKNOWN, line.getBytes(StandardCharsets.UTF_8));
+        }
+        int argStart = Math.min(command.getKeyword().length() + 1, line.length());
+        return frame(command, line.substring(argStart).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param command The command
+     * @param payload The arguments, UTF-8 encoded
+     * @return The binary frame
+     */
+    public static byte[] frame(Command command, byte[] payload) {
+        int length = payload.length + 1;
+        int header = varintSize(length);
+        byte[] data = new byte[header + length];
+        int pos = writeVarint(data, 0, length);
+        data[pos++] = (byte) command.getOpcode();
+        System.arraycopy(payload, 0, data, pos, payload.length);
+        return data;
+    }
+
+    /**
+     * @param value A non-negative number
+     * @return Number of bytes of the number as varint
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @param data   Where to write
+     * @param offset Index of the first byte to write
+     * @param value  A non-negative number
+     * @return Index after the last written byte
+     */
+    public static int writeVarint(byte[] data, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            data[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[offset++] = (byte) value;
+        return offset;
+    }
+}
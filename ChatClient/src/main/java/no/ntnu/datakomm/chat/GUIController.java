@@ -1,12 +1,17 @@
 package no.ntnu.datakomm.chat;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.Pane;
-import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 
 import static java.lang.Thread.sleep;
@@ -40,7 +45,7 @@ public class GUIController implements ChatListener {
     private VBox userList;
 
     @FXML
-    private VBox textOutput;
+    private ListView<ChatLogEntry> textOutput;
 
     @FXML
     private TextArea textInput;
@@ -57,8 +62,50 @@ public class GUIController implements ChatListener {
     @FXML
     private TitledPane serverStatus;
 
-    @FXML
-    private ScrollPane outputScroll;
+    // Maximum number of messages kept in the chat window. Older ones are dropped.
+    private static final int MAX_LOG_ENTRIES = 10000;
+
+    // The history kept for /search and /from: number of messages, and bytes of text (kept off-heap)
+    private static final int HISTORY_CAPACITY = 100000;
+    private static final int HISTORY_BYTES = 32 * 1024 * 1024;
+    // Maximum number of messages shown for /search and /from
+    private static final int HISTORY_RESULTS = 50;
+
+    // Where the transcript of all messages is kept. Change with -Dchat.transcript.dir=...
+    private static final String TRANSCRIPT_DIR = System.getProperty("chat.transcript.dir",
+            Path.of(System.getProperty("user.home"), ".datakomm-chat", "transcript").toString());
+    private static final int TRANSCRIPT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long TRANSCRIPT_SYNC_MILLIS = 1000;
+    // Number of messages from the transcript shown at startup
+    private static final int TRANSCRIPT_RELOAD = 200;
+    // Received messages waiting to be written to the transcript, and how long to wait for them at exit
+    private static final int TRANSCRIPT_QUEUE = 10000;
+    private static final long TRANSCRIPT_CLOSE_SECONDS = 5;
+
+    // Messages of at least this many bytes (pasted logs etc.) are sent compressed, if the server supports it
+    private static final int COMPRESSION_THRESHOLD = 512;
+
+    // The messages shown in the chat window. Only the visible ones have GUI nodes.
+    private final ObservableList<ChatLogEntry> chatLog = FXCollections.observableArrayList();
+
+    // All sent and received messages, also those dropped from the chat window, indexed for search
+    private final MessageHistory history = new MessageHistory(HISTORY_CAPACITY, HISTORY_BYTES, true);
+
+    // All sent and received messages on disk, null if the transcript could not be opened
+    private TranscriptLog transcript;
+    // Writes the received messages to the transcript, off the thread reading from the server
+    private AsyncListener transcriptWriter;
+
+    // The users shown in the user list, sorted. Accessed on the GUI thread only.
+    private final SortedUserIndex shownUsers = new SortedUserIndex();
+    private final UserListUpdater userListUpdater = new UserListUpdater();
+
+    // Number of Help clicks whose answer has not been shown yet
+    private final AtomicInteger helpRequests = new AtomicInteger();
+
+    // Events from the TcpClient are applied to the GUI in batches, once per frame. The batch
+    // size can be changed with -Dchat.gui.maxBatch=N
+    private final GuiEventBuffer guiEvents = new GuiEventBuffer(Integer.getInteger("chat.gui.maxBatch", 500));
 
     // The TCP client that can connect, send commands, etc.
     private TCPClient tcpClient;
@@ -67,25 +114,84 @@ public class GUIController implements ChatListener {
     // the GUI.
     private Thread userPollThread;
 
+    // True when the server pushes user list changes, false when the user list is polled
+    private volatile boolean presenceUpdates = false;
+
     /**
      * Called by the FXML loader after the labels declared above are injected:
      */
     public void initialize() {
         tcpClient = new TCPClient();
+        tcpClient.enableReconnect(new ReconnectPolicy());
+        try {
+            // Visible in JConsole under no.ntnu.datakomm.chat
+            tcpClient.getMetrics().register("gui");
+        } catch (JMException e) {
+            System.out.println("Could not register client metrics: " + e.getMessage());
+        }
         hostInput.setText("datakomm.work");
         portInput.setText("1300");
-        textOutput.heightProperty().addListener((observable, oldValue, newValue)
-                -> outputScroll.setVvalue(1.0));
+        textOutput.setItems(chatLog);
+        textOutput.setCellFactory(list -> new ChatLogCell());
+        openTranscript();
         setKeyAndClickListeners();
     }
 
+    /**
+     * Open the transcript, show the last messages of earlier sessions, and start writing the
+     * received messages to it.
+     */
+    private void openTranscript() {
+        try {
+            transcript = new TranscriptLog(Path.of(TRANSCRIPT_DIR), TRANSCRIPT_SEGMENT_BYTES,
+                    TranscriptLog.SyncPolicy.INTERVAL, TRANSCRIPT_SYNC_MILLIS);
+            for (TextMessage msg : transcript.readLast(TRANSCRIPT_RELOAD)) {
+                history.add(msg);
+                // Public messages we sent are shown like received ones, the username is not known yet
+                boolean local = msg.getRecipient() != null || msg.getSender().equals("you");
+                chatLog.add(new ChatLogEntry(msg, local, false, false));
+            }
+            // Nothing may be lost from the transcript: when the queue is full, reading waits
+            transcriptWriter = new AsyncListener(new TranscriptListener(transcript), TRANSCRIPT_QUEUE,
+                    AsyncListener.OverflowPolicy.BLOCK);
+            tcpClient.addListener(transcriptWriter, ChatEvent.MESSAGE);
+        } catch (IOException e) {
+            System.out.println("Chat transcript not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called when the application stops: close the connection, write the messages still waiting
+     * for the transcript, and close it.
+     */
+    public void shutdown() {
+        tcpClient.disconnect();
+        if (transcriptWriter != null) {
+            tcpClient.removeListener(transcriptWriter);
+            try {
+                if (!transcriptWriter.close(TRANSCRIPT_CLOSE_SECONDS, TimeUnit.SECONDS)) {
+                    System.out.println("Not all messages were written to the transcript");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (transcript != null) {
+            try {
+                transcript.close();
+            } catch (IOException e) {
+                System.out.println("Could not close the transcript: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Initialize handling for all GUI events: clicking on buttons, and key presses
      */
     private void setKeyAndClickListeners() {
         connectBtn.setOnMouseClicked(event -> {
             // Mouse clicked on "Connect" button
-            if (tcpClient.isConnectionActive()) {
+            if (tcpClient.isConnectionActive() || tcpClient.isReconnecting()) {
                 tcpClient.disconnect();
                 updateButtons(false);
             } else {
@@ -111,7 +217,10 @@ public class GUIController implements ChatListener {
             textInput.requestFocus();
         });
         // Mouse clicked on "Help" button
-        helpBtn.setOnMouseClicked(event -> tcpClient.askSupportedCommands());
+        helpBtn.setOnMouseClicked(event -> {
+            helpRequests.incrementAndGet();
+            tcpClient.askSupportedCommands();
+        });
     }
 
     /**
@@ -130,18 +239,30 @@ public class GUIController implements ChatListener {
      */
     private void inputSubmit() {
         String msgToSend = textInput.getText();
-        if (!msgToSend.isEmpty()) {
+        if (showHistory(msgToSend)) {
+            textInput.setText("");
+        } else if (!msgToSend.isEmpty()) {
             TextMessage msg;
-            if (tcpClient.isConnectionActive()) {
+            // While reconnecting, the TcpClient keeps the messages and sends them afterwards
+            if (tcpClient.isConnectionActive() || tcpClient.isReconnecting()) {
                 // Split the message in max 3 parts. If the first one is "/privmsg", then recipient is the second
                 // part and the text to send is the third. Otherwise, the whole message is sent as a public message.
                 String[] msgParts = msgToSend.split(" ", 3);
+                String username = tcpClient.getUsername();
+                TextMessage sent;
                 if (msgParts.length == 3 && msgParts[0].equals("/privmsg")) {
                     String recipient = msgParts[1];
                     String message = msgParts[2];
                     tcpClient.sendPrivateMessage(recipient, message);
+                    sent = new TextMessage(username, recipient, message);
                 } else {
                     tcpClient.sendPublicMessage(msgToSend);
+                    // "/joke" asks for a joke, it is no message
+                    sent = msgToSend.equals("/joke") ? null : new TextMessage(username, false, msgToSend);
+                }
+                // Before the login the server refuses messages, nothing to record
+                if (sent != null && username != null) {
+                    record(sent);
                 }
                 msg = new TextMessage("", false, msgToSend);
             } else {
@@ -152,6 +273,53 @@ public class GUIController implements ChatListener {
         }
     }
 
+    /**
+     * Search the message history, if the input is a history command: "/search word..." shows
+     * the messages containing all the words, "/from username" the messages from a user.
+     *
+     * @param input The text typed by the user
+     * @return true if the input was a history command, false if it must be sent
+     */
+    private boolean showHistory(String input) {
+        String[] parts = input.split(" ", 2);
+        if (parts.length < 2 || parts[1].isBlank()) {
+            return false;
+        }
+        List<TextMessage> found;
+        if (parts[0].equals("/search")) {
+            found = history.search(parts[1], HISTORY_RESULTS);
+        } else if (parts[0].equals("/from")) {
+            found = history.fromSender(parts[1].trim(), HISTORY_RESULTS);
+        } else {
+            return false;
+        }
+        addMsgToGui(false, new TextMessage("info", false, found.size() + " messages for " + input), true);
+        // The results are newest first, show them in the order they were written
+        for (int i = found.size() - 1; i >= 0; i--) {
+            TextMessage msg = found.get(i);
+            String privacy = msg.getRecipient() != null ? "(private to " + msg.getRecipient() + ") "
+                    : msg.isPrivate() ? "(private) " : "";
+            addMsgToGui(false, new TextMessage("info", false, privacy + msg.getSender() + ": " + msg.getText()), true);
+        }
+        return true;
+    }
+
+    /**
+     * Keep a message we sent in the history and the transcript.
+     *
+     * @param sent The message, from our username and with the recipient of a private message
+     */
+    private void record(TextMessage sent) {
+        history.add(sent);
+        if (transcript != null) {
+            try {
+                transcript.append(sent);
+            } catch (IOException e) {
+                System.out.println("Could not write the message to the transcript: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Add a message to the GUI chat window
      *
@@ -161,58 +329,21 @@ public class GUIController implements ChatListener {
      * @param warning When true, this message is a warning that must be displayed to the user
      */
     private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
-        // Create GUI elements, set their text and style according to what
-        // type of message this is
-
-        HBox message = new HBox();
-        VBox messageContent = new VBox();
-        String senderText;
-        Label messageSender = new Label();
-        messageSender.getStyleClass().add("sender");
-        if (msg.isPrivate()) {
-            senderText = "Private from " + msg.getSender() + ":";
-            messageSender.getStyleClass().add("private");
-        } else {
-            senderText = msg.getSender() + ":";
+        boolean failed = false;
+        if (local && !warning && !tcpClient.isConnectionActive() && !tcpClient.isReconnecting()) {
+            // Trying to send a message without an active connection
+            serverStatus.setText("Please login to send messages to server");
+            failed = true;
         }
-        messageSender.setText(senderText);
-        Label messageText = new Label(msg.getText());
-        ObservableList<String> textStyle = messageText.getStyleClass();
-        textStyle.add("message");
-        messageText.setWrapText(true);
-        Pane spacer = new Pane();
-        HBox.setHgrow(spacer, Priority.ALWAYS);
-        spacer.setMinSize(10, 1);
-        if (warning) {
-            // This message is a warning/info, add specific style to it
-            messageContent.getChildren().addAll(messageText);
-            message.getChildren().addAll(messageContent);
-            if (msg.getSender().equals("err")) {
-                textStyle.add("warning");
-            } else {
-                textStyle.add("info");
-            }
-        } else {
-            // Regular message
-            if (local) {
-                if (tcpClient.isConnectionActive()) {
-                    textStyle.add("sentMessage");
-                } else {
-                    // Trying to send a message without an active connection
-                    serverStatus.setText("Please login to send messages to server");
-                    textStyle.add("failedMessage");
-                }
-                // Add empty space first (left), then the message (right)
-                messageContent.getChildren().addAll(messageText);
-                message.getChildren().addAll(spacer, messageContent);
-            } else {
-                textStyle.add("otherMessage");
-                // Add message first (left), then empty space (right)
-                messageContent.getChildren().addAll(messageSender, messageText);
-                message.getChildren().addAll(messageContent, spacer);
-            }
+        if (!local && !warning) {
+            // Received messages are written to the transcript by its listener
+            history.add(msg);
         }
-        textOutput.getChildren().add(message);
+        chatLog.add(new ChatLogEntry(msg, local, warning, failed));
+        if (chatLog.size() > MAX_LOG_ENTRIES) {
+            chatLog.remove(0, chatLog.size() - MAX_LOG_ENTRIES);
+        }
+        textOutput.scrollTo(chatLog.size() - 1);
     }
 
     /**
@@ -228,17 +359,19 @@ public class GUIController implements ChatListener {
         connectBtn.setDisable(true);
 
         // Run the connection in a new background thread to avoid GUI freeze
-        Thread connThread = new Thread(() -> {
+        SessionThreads.start("chat-connect", () -> {
             boolean connected = tcpClient.connect(host, Integer.parseInt(port));
             if (connected) {
                 // Connection established, start listening processes
                 tcpClient.addListener(this);
                 tcpClient.startListenThread();
-                startUserPolling();
+                // One "help" round trip, shared by all the features below
+                tcpClient.negotiateFeatures()
+                        .thenCompose(supported -> tcpClient.negotiateCompression(COMPRESSION_THRESHOLD))
+                        .whenComplete((compressing, error) -> startUserUpdates());
             }
             updateButtons(connected);
         });
-        connThread.start();
     }
 
     /**
@@ -281,6 +414,20 @@ public class GUIController implements ChatListener {
     // from the server.
     ///////////////////////////////////////////////////////////////////////
 
+    /**
+     * Keep the user list up to date: use presence events when the server pushes them (see
+     * TCPClient.negotiateFeatures()), otherwise fall back to polling the user list.
+     */
+    private void startUserUpdates() {
+        presenceUpdates = tcpClient.isPresenceActive();
+        if (presenceUpdates) {
+            // Fetch the full list once, the server pushes the changes from now on
+            tcpClient.refreshUserList();
+        } else if (tcpClient.isConnectionActive()) {
+            startUserPolling();
+        }
+    }
+
     /**
      * Start a new thread that will poll the server for currently active users
      */
@@ -288,7 +435,7 @@ public class GUIController implements ChatListener {
         // Make sure we have just one polling thread, not duplicates
         if (userPollThread == null) {
 
-            userPollThread = new Thread(() -> {
+            userPollThread = SessionThreads.factory("chat-user-poll-").newThread(() -> {
                 ////////////////////////////////////////////////////////////////
                 // This block of code will run in the polling thread
                 ////////////////////////////////////////////////////////////////
@@ -328,8 +475,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onLoginResult(boolean success, String errMsg) {
-        // Update the GUI. Do it on the GUI thread with Platform.runLater()
-        Platform.runLater(() -> {
+        // Update the GUI. Do it on the GUI thread, in the next frame batch
+        guiEvents.post(() -> {
             if (success) {
                 serverStatus.setText("Server - login successful");
             } else {
@@ -347,7 +494,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onMessageReceived(TextMessage message) {
         // Show the message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(false, message, false));
+        guiEvents.post(() -> addMsgToGui(false, message, false));
     }
 
     /**
@@ -359,7 +506,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onMessageError(String errMsg) {
         // Show error message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(true, new TextMessage("err", false,
+        guiEvents.post(() -> addMsgToGui(true, new TextMessage("err", false,
                 "Error: " + errMsg), true));
     }
 
@@ -372,20 +519,32 @@ public class GUIController implements ChatListener {
     @Override
     public void onUserList(String[] usernames) {
         // Update the user list. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            userList.getChildren().clear();
-            for (String user : usernames) {
-                Label text = new Label(user);
-                text.getStyleClass().add("user");
-                // Set an "on-click" listener for the item in the user list - allow to send a private message
-                text.setOnMouseClicked(event -> {
-                    textInput.setText("/privmsg " + user + " ");
-                    textInput.requestFocus();
-                    textInput.end();
-                });
-                userList.getChildren().add(text);
-            }
-        });
+        // Only the users which joined or left since the last list are added or removed
+        guiEvents.post(() -> shownUsers.update(usernames, userListUpdater));
+    }
+
+    /**
+     * Keeps the labels in the user list in sync with the shownUsers index: one label per user,
+     * in the same (sorted) order.
+     */
+    private class UserListUpdater implements SortedUserIndex.Listener {
+        @Override
+        public void onUserAdded(int index, String user) {
+            Label text = new Label(user);
+            text.getStyleClass().add("user");
+            // Set an "on-click" listener for the item in the user list - allow to send a private message
+            text.setOnMouseClicked(event -> {
+                textInput.setText("/privmsg " + user + " ");
+                textInput.requestFocus();
+                textInput.end();
+            });
+            userList.getChildren().add(index, text);
+        }
+
+        @Override
+        public void onUserRemoved(int index, String user) {
+            userList.getChildren().remove(index);
+        }
     }
 
     /**
@@ -396,8 +555,13 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onSupportedCommands(String[] commands) {
+        // The client also asks for the supported commands on its own (feature negotiation),
+        // only show the list when the user asked for it
+        if (helpRequests.getAndUpdate(n -> Math.max(0, n - 1)) == 0) {
+            return;
+        }
         // Show the commands in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> {
+        guiEvents.post(() -> {
             StringBuilder listOfCommands = new StringBuilder(
                     "Commands available: ");
             for (String c : commands) {
@@ -418,7 +582,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onCommandError(String errMsg) {
         // Shoe error message. Do it on the GUI thread.
-        Platform.runLater(() -> {
+        guiEvents.post(() -> {
             TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
             addMsgToGui(true, msg, true);
         });
@@ -426,12 +590,56 @@ public class GUIController implements ChatListener {
 
     @Override
     public void onJoke(String joke) {
-        Platform.runLater(() -> {
+        guiEvents.post(() -> {
             TextMessage msg = new TextMessage("joke", false, joke);
             addMsgToGui(true, msg, false);
         });
     }
 
+    /**
+     * This method is called when the server pushes a presence event: a user logged in
+     *
+     * @param username The user who joined
+     */
+    @Override
+    public void onUserJoined(String username) {
+        guiEvents.post(() -> shownUsers.add(username, userListUpdater));
+    }
+
+    /**
+     * This method is called when the server pushes a presence event: a user left
+     *
+     * @param username The user who left
+     */
+    @Override
+    public void onUserLeft(String username) {
+        guiEvents.post(() -> shownUsers.remove(username, userListUpdater));
+    }
+
+    /**
+     * This method is called when the connection was lost, before every attempt to restore it
+     *
+     * @param attempt     Number of the coming attempt
+     * @param delayMillis Time until the attempt
+     */
+    @Override
+    public void onReconnecting(int attempt, long delayMillis) {
+        String status = "Connection lost - reconnecting in " + (delayMillis + 500) / 1000 + " s (attempt " + attempt + ")";
+        guiEvents.post(() -> serverStatus.setText(status));
+    }
+
+    /**
+     * This method is called when the connection and login were restored after a connection loss
+     */
+    @Override
+    public void onReconnected() {
+        guiEvents.post(() -> serverStatus.setText("Reconnected to the server"));
+        if (!presenceUpdates) {
+            // The polling thread stopped when the connection was lost
+            startUserPolling();
+        }
+    }
+
     /**
      * This method is called when connection (socket) is closed by the remote
      * end (server).
@@ -0,0 +1,122 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * Collects GUI updates posted from background threads and runs them on the GUI thread in
+ * batches, once per frame (pulse). A burst of thousands of incoming messages then costs a few
+ * frames of work instead of thousands of separate Platform.runLater() tasks that starve user
+ * input. The timer only runs while there is something to drain.
+ */
+public class GuiEventBuffer {
+
+    private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+    private final int maxBatchSize;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong eventCount = new AtomicLong();
+
+    private final AnimationTimer pulse = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drainBatch();
+        }
+    };
+
+    /**
+     * @param maxBatchSize Maximum number of updates run in one frame. The rest waits for the
+     *                     next frame, so the GUI stays responsive during long bursts.
+     */
+    public GuiEventBuffer(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Run an update on the GUI thread, together with the other updates posted in the same frame.
+     * Can be called from any thread. Updates run in the order they were posted.
+     *
+     * @param update The GUI update
+     */
+    public void post(Runnable update) {
+        events.add(update);
+        int depth = queueDepth.incrementAndGet();
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+        startDraining();
+    }
+
+    private void startDraining() {
+        if (draining.compareAndSet(false, true)) {
+            Platform.runLater(pulse::start);
+        }
+    }
+
+    /**
+     * Run up to maxBatchSize updates. Called by the animation timer on the GUI thread.
+     */
+    private void drainBatch() {
+        int n = 0;
+        Runnable update;
+        while (n < maxBatchSize && (update = events.poll()) != null) {
+            queueDepth.decrementAndGet();
+            n++;
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        if (n > 0) {
+            batchCount.incrementAndGet();
+            eventCount.addAndGet(n);
+        }
+        if (events.isEmpty()) {
+            pulse.stop();
+            draining.set(false);
+            // An update may have been posted after the queue was found empty
+            if (!events.isEmpty()) {
+                startDraining();
+            }
+        }
+    }
+
+    /**
+     * @return Number of updates waiting for the next frame
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return The highest number of updates that have been waiting at the same time
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return Number of frames in which updates were run
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return Total number of updates run
+     */
+    public long getEventCount() {
+        return eventCount.get();
+    }
+}
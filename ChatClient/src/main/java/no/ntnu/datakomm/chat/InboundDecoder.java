@@ -0,0 +1,249 @@
+package no.ntnu.datakomm.chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes received on a connection into commands: text lines, or binary frames after
+ * the connection switched to binary framing (see FrameCodec). The decoder owns the receive
+ * buffer, a direct ByteBuffer which the channel reads into (see getReceiveBuffer()) and which is
+ * reused for the whole connection. The command word is matched on the raw bytes, and the
+ * arguments are handed to the sink as a ByteSlice; nothing is decoded to a String unless the
+ * sink asks for it.
+ * <p>
+ * An incomplete line or frame at the end of the received bytes is kept until the rest arrives.
+ * The switch to binary can be made by the sink while it handles a line, and applies to the bytes
+ * right after that line.
+ * <p>
+ * Unlike reading lines with a BufferedReader, which accepts lines of any length, a line longer
+ * than the maximum line length (by default FrameCodec.MAX_FRAME_LENGTH, the same limit as for
+ * frames) is rejected with a ProtocolException instead of being buffered without bound. See
+ * setMaxLineLength().
+ */
+public class InboundDecoder {
+    /**
+     * Receives the decoded commands.
+     */
+    public interface Sink {
+        /**
+         * @param command The command. For UNKNOWN, the arguments are the complete line.
+         * @param args    The arguments (everything after the command word and its space), only
+         *                valid during this call. For ZMSG and ZPRIVMSG, the compressed payload
+         *                (see MessageCompressor).
+         * @throws ProtocolException When the arguments are invalid. The connection is closed.
+         */
+        void onCommand(Command command, ByteSlice args) throws ProtocolException;
+
+        /**
+         * Called before the received bytes are decoded.
+         *
+         * @param bytes Number of bytes received
+         */
+        default void onBytesReceived(int bytes) {
+        }
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final Sink sink;
+    private final ByteSlice args = new ByteSlice();
+    private volatile boolean binary = false;
+    private volatile boolean stopped = false;
+    private int maxLineLength = FrameCodec.MAX_FRAME_LENGTH;
+
+    // Received bytes, in write mode between calls: data from 0 to position
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    // Number of bytes at the start of the buffer which were there before the last read
+    private int kept = 0;
+    // Index up to which the incomplete line at the end of the buffer has been searched for '\n'
+    private int scanned = 0;
+
+    /**
+     * @param sink Receives the decoded commands
+     */
+    public InboundDecoder(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Switch between text lines and binary frames.
+     *
+     * @param binary true for binary frames
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+        scanned = 0;
+    }
+
+    /**
+     * Set the longest text line accepted. A longer line closes the connection with a
+     * ProtocolException when the limit is passed, before the rest of it arrives.
+     *
+     * @param maxLineLength Maximum line length in bytes
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        if (maxLineLength < 1) {
+            throw new IllegalArgumentException("Invalid maximum line length: " + maxLineLength);
+        }
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * @return true when binary frames are expected
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Stop delivering commands, also the rest of the bytes being decoded right now.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return The buffer to read received bytes into. Call decodeReceived() after reading. The
+     * buffer may be replaced by a larger one when a command does not fit, so get it before
+     * every read.
+     */
+    public ByteBuffer getReceiveBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Copy received bytes into the receive buffer and decode them. For callers which do not read
+     * into the receive buffer directly.
+     *
+     * @param data   The received bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @throws ProtocolException When a binary frame is invalid. The connection should be closed.
+     */
+    public void feed(byte[] data, int offset, int length) throws ProtocolException {
+        while (length > 0) {
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, n);
+            offset += n;
+            length -= n;
+            decodeReceived();
+        }
+    }
+
+    /**
+     * Hand the complete commands in the receive buffer to the sink, and keep the rest.
+     *
+     * @throws ProtocolException When a binary frame is invalid. The connection should be closed.
+     */
+    public void decodeReceived() throws ProtocolException {
+        int end = buffer.position();
+        sink.onBytesReceived(end - kept);
+        int pos = 0;
+        while (pos < end && !stopped) {
+            int used = binary ? decodeFrame(pos, end) : decodeLine(pos, end);
+            if (used == 0) {
+                break;
+            }
+            pos += used;
+        }
+        if (stopped) {
+            buffer.clear();
+            kept = 0;
+            scanned = 0;
+            return;
+        }
+        // Move the incomplete command to the start
+        buffer.limit(end).position(pos);
+        buffer.compact();
+        kept = buffer.position();
+        scanned = Math.max(0, scanned - pos);
+        if (!buffer.hasRemaining()) {
+            // A single command fills the whole buffer
+            ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    /**
+     * @return Number of bytes used, 0 if the line is not complete
+     */
+    private int decodeLine(int start, int end) throws ProtocolException {
+        ByteBuffer buf = buffer;
+        // The bytes before scanned were searched already, when this line was still incomplete
+        int i = Math.max(start, scanned);
+        while (i < end && buf.get(i) != '\n') {
+            i++;
+        }
+        if (i == end) {
+            if (end - start > maxLineLength) {
+                throw new ProtocolException("Line too long");
+            }
+            scanned = end;
+            return 0;
+        }
+        int lineEnd = i > start && buf.get(i - 1) == '\r' ? i - 1 : i;
+        int wordEnd = start;
+        while (wordEnd < lineEnd && buf.get(wordEnd) != ' ') {
+            wordEnd++;
+        }
+        Command command = Command.lookup(buf, start, wordEnd);
+        if (command == Command.UNKNOWN) {
+            args.set(buf, start, lineEnd);
+        } else {
+            args.set(buf, Math.min(wordEnd + 1, lineEnd), lineEnd);
+        }
+        sink.onCommand(command, args);
+        return i + 1 - start;
+    }
+
+    /**
+     * @return Number of bytes used, 0 if the frame is not complete
+     */
+    private int decodeFrame(int start, int end) throws ProtocolException {
+        int length = 0;
+        int shift = 0;
+        int pos = start;
+        while (true) {
+            if (pos >= end) {
+                return 0;
+            }
+            int b = buffer.get(pos++);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new ProtocolException("Invalid frame length");
+            }
+        }
+        if (length < 1 || length > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        if (end - pos < length) {
+            return 0;
+        }
+        int opcode = buffer.get(pos) & 0xFF;
+        Command command = Command.fromOpcode(opcode);
+        if (command == null) {
+            throw new ProtocolException("Unknown opcode " + opcode);
+        }
+        int frameEnd = pos + length;
+        if (command == Command.UNKNOWN) {
+            // A complete line, which may still start with a command word this side knows
+            int lineStart = pos + 1;
+            int wordEnd = lineStart;
+            while (wordEnd < frameEnd && buffer.get(wordEnd) != ' ') {
+                wordEnd++;
+            }
+            command = Command.lookup(buffer, lineStart, wordEnd);
+            args.set(buffer, command == Command.UNKNOWN ? lineStart : Math.min(wordEnd + 1, frameEnd), frameEnd);
+        } else {
+            args.set(buffer, pos + 1, frameEnd);
+        }
+        sink.onCommand(command, args);
+        return frameEnd - start;
+    }
+}
@@ -0,0 +1,142 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The registered ChatListeners, safe to change from any thread while events are dispatched.
+ * Changes copy the registry and publish a new snapshot, with one array of listeners per event
+ * type. Dispatching only reads the current snapshot: no locks, no iterators, and listeners which
+ * did not subscribe to an event type are not even visited.
+ *
+ * <p>Listeners are compared by identity, so a listener with its own equals() is never mistaken
+ * for another one.
+ */
+public class ListenerRegistry {
+    private static final ChatListener[] NONE = new ChatListener[0];
+    private static final int EVENT_COUNT = ChatEvent.values().length;
+
+    // Registration order and the subscribed events of every listener, guarded by this
+    private final List<ChatListener> registered = new ArrayList<>();
+    private final List<Set<ChatEvent>> subscriptions = new ArrayList<>();
+
+    // The listeners of each event type, indexed by ChatEvent.ordinal(). Never modified in place.
+    private volatile ChatListener[][] snapshot = emptySnapshot();
+
+    /**
+     * Register a listener for all event types.
+     *
+     * @param listener The listener
+     * @return true if the listener was not registered before
+     */
+    public boolean add(ChatListener listener) {
+        return add(listener, EnumSet.allOf(ChatEvent.class));
+    }
+
+    /**
+     * Register a listener for some event types. If the listener is registered already, it keeps
+     * its position but its event types are replaced.
+     *
+     * @param listener The listener
+     * @param events   The event types to deliver to the listener
+     * @return true if the listener was not registered before
+     */
+    public synchronized boolean add(ChatListener listener, Set<ChatEvent> events) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener must not be null");
+        }
+        Set<ChatEvent> copy = events.isEmpty() ? EnumSet.noneOf(ChatEvent.class) : EnumSet.copyOf(events);
+        int index = indexOf(listener);
+        if (index >= 0) {
+            subscriptions.set(index, copy);
+        } else {
+            registered.add(listener);
+            subscriptions.add(copy);
+        }
+        publish();
+        return index < 0;
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param listener The listener
+     * @return true if the listener was registered
+     */
+    public synchronized boolean remove(ChatListener listener) {
+        int index = indexOf(listener);
+        if (index < 0) {
+            return false;
+        }
+        registered.remove(index);
+        subscriptions.remove(index);
+        publish();
+        return true;
+    }
+
+    /**
+     * @param listener The listener
+     * @return true if the listener is registered (for any event type)
+     */
+    public synchronized boolean contains(ChatListener listener) {
+        return indexOf(listener) >= 0;
+    }
+
+    /**
+     * @return Number of registered listeners
+     */
+    public synchronized int size() {
+        return registered.size();
+    }
+
+    /**
+     * The listeners of one event type, in registration order. The array is shared and must not
+     * be modified; later registry changes do not affect it.
+     *
+     * @param event The event type
+     * @return The listeners, an empty array if there are none
+     */
+    public ChatListener[] get(ChatEvent event) {
+        return snapshot[event.ordinal()];
+    }
+
+    private int indexOf(ChatListener listener) {
+        for (int i = 0; i < registered.size(); i++) {
+            if (registered.get(i) == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void publish() {
+        ChatListener[][] next = new ChatListener[EVENT_COUNT][];
+        for (ChatEvent event : ChatEvent.values()) {
+            int count = 0;
+            for (Set<ChatEvent> events : subscriptions) {
+                if (events.contains(event)) {
+                    count++;
+                }
+            }
+            ChatListener[] listeners = count == 0 ? NONE : new ChatListener[count];
+            int n = 0;
+            for (int i = 0; i < registered.size(); i++) {
+                if (subscriptions.get(i).contains(event)) {
+                    listeners[n++] = registered.get(i);
+                }
+            }
+            next[event.ordinal()] = listeners;
+        }
+        snapshot = next;
+    }
+
+    private static ChatListener[][] emptySnapshot() {
+        ChatListener[][] empty = new ChatListener[EVENT_COUNT][];
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            empty[i] = NONE;
+        }
+        return empty;
+    }
+}
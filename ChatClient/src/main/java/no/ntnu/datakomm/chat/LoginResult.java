@@ -0,0 +1,32 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The server's answer to a login request
+ */
+public class LoginResult {
+
+    private final boolean success;
+    private final String message;
+
+    /**
+     * @param success True when the server accepted the username (loginok)
+     * @param message Description of the result, the error text on failure
+     */
+    public LoginResult(boolean success, String message) {
+        this.success = success;
+        this.message = message;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return (success ? "loginok: " : "loginerr: ") + message;
+    }
+}
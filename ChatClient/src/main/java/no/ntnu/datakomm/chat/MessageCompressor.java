@@ -0,0 +1,263 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the text of large chat messages (pasted logs, stack traces) for the binary frames
+ * ZMSG and ZPRIVMSG. Each message is compressed on its own with raw Deflate and a preset
+ * dictionary known to both sides, so the server can relay a compressed message to other clients
+ * without decompressing it. The payload of a compressed frame is
+ *
+ * <pre>
+ *     [username ' '] deflated text
+ * </pre>
+ *
+ * where the username is the recipient of a ZPRIVMSG sent by a client, and the sender in frames
+ * sent by the server. Messages below the threshold, or which would not get smaller, are sent as
+ * normal frames.
+ * <p>
+ * The compressor also counts what it did, so the compression ratio and the CPU time spent can
+ * be checked.
+ */
+public class MessageCompressor {
+    /**
+     * Name of the algorithm, as used in "compress deflate".
+     */
+    public static final String ALGORITHM = "deflate";
+
+    // Byte sequences common in pasted logs and stack traces. Deflate finds close matches
+    // cheaper, so the most common ones come last.
+    private static final byte[] DICTIONARY = ("INFO WARN ERROR DEBUG TRACE http://https://localhost "
+            + "null true false return public private static final void class interface "
+            + "java.util.concurrent. java.lang.reflect. java.io.IOException java.net.SocketException "
+            + "Connection refused Connection reset timed out Exception in thread \"main\" "
+            + "NullPointerException IllegalArgumentException IllegalStateException RuntimeException "
+            + ".java:1 .java:2 .java:3 .java:4 .java:5 .java:6 .java:7 .java:8 .java:9 ... more\n"
+            + "Caused by: java.lang.\n\tat java.base/java.lang.\n\tat java.base/java.util.\n"
+            + "\tat no.ntnu.datakomm.chat.\n\tat java.base/").getBytes(StandardCharsets.UTF_8);
+
+    private final int threshold;
+    // Used under the lock of this object
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] buffer = new byte[8192];
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder bytesBefore = new LongAdder();
+    private final LongAdder bytesAfter = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressed = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * @param threshold Messages with fewer UTF-8 bytes than this are not compressed
+     */
+    public MessageCompressor(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return Messages with fewer UTF-8 bytes than this are not compressed
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Encode a msg or privmsg command line as a compressed frame, if that pays off.
+     *
+     * @param line A command line, without newline
+     * @return The ZMSG or ZPRIVMSG frame, null if the line should be sent as a normal frame
+     */
+    public byte[] encodeFrame(String line) {
+        Command command;
+        int textStart;
+        if (line.startsWith("msg ")) {
+            command = Command.ZMSG;
+            textStart = 4;
+        } else if (line.startsWith("privmsg ")) {
+            command = Command.ZPRIVMSG;
+            int recipientEnd = line.indexOf(' ', 8);
+            if (recipientEnd < 0) {
+                return null;
+            }
+            textStart = recipientEnd + 1;
+        } else {
+            return null;
+        }
+        // A character is at least one byte, so shorter lines can be skipped without encoding
+        if (line.length() - textStart < threshold) {
+            skipped.increment();
+            return null;
+        }
+        byte[] text = line.substring(textStart).getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = text.length < threshold ? null : compress(text);
+        if (deflated == null) {
+            skipped.increment();
+            return null;
+        }
+        byte[] prefix = line.substring(command == Command.ZMSG ? 4 : 8, textStart).getBytes(StandardCharsets.UTF_8);
+        return FrameCodec.frame(command, concat(prefix, deflated));
+    }
+
+    /**
+     * Compress one message text.
+     *
+     * @param text The UTF-8 encoded text
+     * @return The deflated text, null if it would not get smaller
+     */
+    public byte[] compress(byte[] text) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length / 2 + 16);
+        synchronized (this) {
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(text);
+            deflater.finish();
+            while (!deflater.finished() && out.size() < text.length) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+        }
+        compressNanos.add(System.nanoTime() - start);
+        if (out.size() >= text.length) {
+            return null;
+        }
+        compressed.increment();
+        bytesBefore.add(text.length);
+        bytesAfter.add(out.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompress the payload of a ZMSG or ZPRIVMSG frame into the arguments of the matching
+     * text command.
+     *
+     * @param payload   The payload of the frame
+     * @param hasPrefix True if the payload starts with a username and a space
+     * @return The arguments: "username text", or just the text without prefix
+     * @throws DataFormatException When the payload is not valid, or unpacks to more than
+     *                             FrameCodec.MAX_FRAME_LENGTH bytes
+     */
+    public String decodeArgs(byte[] payload, boolean hasPrefix) throws DataFormatException {
+        int deflatedStart = 0;
+        if (hasPrefix) {
+            while (deflatedStart < payload.length && payload[deflatedStart] != ' ') {
+                deflatedStart++;
+            }
+            if (deflatedStart == payload.length) {
+                throw new DataFormatException("No username in compressed message");
+            }
+            deflatedStart++;
+        }
+        byte[] text = decompress(payload, deflatedStart, payload.length - deflatedStart);
+        String textString = new String(text, StandardCharsets.UTF_8);
+        return hasPrefix ? new String(payload, 0, deflatedStart, StandardCharsets.UTF_8) + textString : textString;
+    }
+
+    /**
+     * @param data   Deflated bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @return The inflated bytes
+     * @throws DataFormatException When the data is not valid, or unpacks to more than
+     *                             FrameCodec.MAX_FRAME_LENGTH bytes
+     */
+    public byte[] decompress(byte[] data, int offset, int length) throws DataFormatException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 3);
+        synchronized (this) {
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(data, offset, length);
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed message");
+                }
+                out.write(buffer, 0, n);
+                if (out.size() > FrameCodec.MAX_FRAME_LENGTH) {
+                    throw new DataFormatException("Compressed message is too large");
+                }
+            }
+        }
+        decompressed.increment();
+        decompressNanos.add(System.nanoTime() - start);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * @return Number of messages sent compressed
+     */
+    public long getCompressedCount() {
+        return compressed.sum();
+    }
+
+    /**
+     * @return Number of messages sent uncompressed, because they were below the threshold or
+     * would not get smaller
+     */
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return Size of the compressed messages divided by their original size (0.25 means 75%
+     * saved), 1 if nothing was compressed yet
+     */
+    public double getRatio() {
+        long before = bytesBefore.sum();
+        return before == 0 ? 1.0 : (double) bytesAfter.sum() / before;
+    }
+
+    /**
+     * @return Bytes saved on the wire by compression
+     */
+    public long getBytesSaved() {
+        return bytesBefore.sum() - bytesAfter.sum();
+    }
+
+    /**
+     * @return CPU time spent compressing, in nanoseconds (also for messages which did not get smaller)
+     */
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+
+    /**
+     * @return Number of messages received compressed
+     */
+    public long getDecompressedCount() {
+        return decompressed.sum();
+    }
+
+    /**
+     * @return CPU time spent decompressing, in nanoseconds
+     */
+    public long getDecompressNanos() {
+        return decompressNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed %d (ratio %.2f, %d bytes saved, %.1f us), skipped %d, decompressed %d (%.1f us)",
+                getCompressedCount(), getRatio(), getBytesSaved(), getCompressNanos() / 1000.0,
+                getSkippedCount(), getDecompressedCount(), getDecompressNanos() / 1000.0);
+    }
+}
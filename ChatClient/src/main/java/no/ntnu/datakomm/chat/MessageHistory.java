@@ -0,0 +1,429 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The chat history: the last messages, in a ring buffer of fixed capacity, with an inverted
+ * index by sender and by word. The texts are kept as UTF-8 in one preallocated byte arena,
+ * which may be a direct buffer outside the Java heap. The oldest messages are dropped when the
+ * ring or the arena is full.
+ * <p>
+ * Every message gets a sequence number, counting from 0. The index maps each sender and each
+ * word to the ascending sequence numbers of its messages, so "all messages from X" and word
+ * searches only touch the matching messages, however long the history is. Words are the runs
+ * of letters and digits in a text, compared case insensitively.
+ */
+public class MessageHistory {
+    private final int capacity;
+    private final ByteBuffer arena;
+
+    // Per slot (sequence number modulo capacity): where the text is in the arena, who sent it,
+    // and to whom (-1 when the recipient is not known)
+    private final int[] textOffset;
+    private final int[] textLength;
+    private final int[] senderId;
+    private final int[] recipientId;
+    private final boolean[] priv;
+
+    // Senders and recipients are stored as ids into this table. Each id counts the slots using
+    // it, and is freed (and reused) when the last of their messages is dropped, so the table
+    // holds at most two names per kept message.
+    private final Map<String, Integer> senderIds = new HashMap<>();
+    private final List<String> senders = new ArrayList<>();
+    private int[] senderRefs = new int[16];
+    private final ArrayDeque<Integer> freeSenderIds = new ArrayDeque<>();
+
+    private final Map<Integer, Postings> bySender = new HashMap<>();
+    private final Map<String, Postings> byWord = new HashMap<>();
+
+    // Sequence number of the next message, and number of messages kept
+    private long nextSequence = 0;
+    private int count = 0;
+    // Where the next text is written into the arena, and whether the texts wrapped around to
+    // the start of the arena: then they run from the oldest one to the end, and from 0 to head
+    private int arenaHead = 0;
+    private boolean wrapped = false;
+
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param capacity   Maximum number of messages
+     * @param arenaBytes Size of the text arena in bytes. Messages with a longer text are
+     *                   truncated.
+     * @param offHeap    true to keep the texts in a direct buffer, outside the Java heap
+     */
+    public MessageHistory(int capacity, int arenaBytes, boolean offHeap) {
+        if (capacity < 1 || arenaBytes < 1) {
+            throw new IllegalArgumentException("Capacity and arena size must be positive");
+        }
+        this.capacity = capacity;
+        this.arena = offHeap ? ByteBuffer.allocateDirect(arenaBytes) : ByteBuffer.allocate(arenaBytes);
+        this.textOffset = new int[capacity];
+        this.textLength = new int[capacity];
+        this.senderId = new int[capacity];
+        this.recipientId = new int[capacity];
+        this.priv = new boolean[capacity];
+    }
+
+    /**
+     * @return Maximum number of messages
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of messages kept
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return Sequence number of the oldest message kept. Equal to getNextSequence() when empty.
+     */
+    public synchronized long getFirstSequence() {
+        return nextSequence - count;
+    }
+
+    /**
+     * @return Sequence number the next message will get
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Add a message, dropping the oldest ones if there is no room.
+     *
+     * @param message The message
+     * @return Sequence number of the message
+     */
+    public synchronized long add(TextMessage message) {
+        String stored = message.getText();
+        byte[] text = stored.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, arena.capacity());
+        if (length < text.length) {
+            // Index the words of the truncated text, those are looked up again when it is dropped
+            stored = new String(text, 0, length, StandardCharsets.UTF_8);
+        }
+        if (count == capacity) {
+            evictOldest();
+        }
+        int offset = allocate(length);
+        arena.put(offset, text, 0, length);
+
+        long sequence = nextSequence++;
+        int slot = slot(sequence);
+        int sender = acquireName(message.getSender());
+        textOffset[slot] = offset;
+        textLength[slot] = length;
+        senderId[slot] = sender;
+        recipientId[slot] = message.getRecipient() != null ? acquireName(message.getRecipient()) : -1;
+        priv[slot] = message.isPrivate();
+        arenaHead = offset + length;
+        count++;
+
+        bySender.computeIfAbsent(sender, id -> new Postings()).add(sequence);
+        for (String word : words(stored)) {
+            byWord.computeIfAbsent(word, w -> new Postings()).add(sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * @param sequence Sequence number of a message
+     * @return The message, null if it was dropped already or never added
+     */
+    public synchronized TextMessage get(long sequence) {
+        if (sequence < nextSequence - count || sequence >= nextSequence) {
+            return null;
+        }
+        return message(sequence);
+    }
+
+    /**
+     * @param limit Maximum number of messages
+     * @return The newest messages, oldest first
+     */
+    public synchronized List<TextMessage> latest(int limit) {
+        int n = Math.min(limit, count);
+        List<TextMessage> result = new ArrayList<>(n);
+        for (long seq = nextSequence - n; seq < nextSequence; seq++) {
+            result.add(message(seq));
+        }
+        return result;
+    }
+
+    /**
+     * @param sender Username of the sender
+     * @param limit  Maximum number of messages
+     * @return The newest messages from the sender, newest first
+     */
+    public synchronized List<TextMessage> fromSender(String sender, int limit) {
+        Integer id = senderIds.get(sender);
+        Postings postings = id != null ? bySender.get(id) : null;
+        List<TextMessage> result = new ArrayList<>();
+        if (postings != null) {
+            for (int i = postings.size() - 1; i >= 0 && result.size() < limit; i--) {
+                result.add(message(postings.get(i)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the messages containing all words of a query.
+     *
+     * @param query One or more words
+     * @param limit Maximum number of messages
+     * @return The newest matching messages, newest first. Empty if the query has no words.
+     */
+    public synchronized List<TextMessage> search(String query, int limit) {
+        Set<String> queryWords = words(query);
+        List<TextMessage> result = new ArrayList<>();
+        if (queryWords.isEmpty()) {
+            return result;
+        }
+        Postings[] lists = new Postings[queryWords.size()];
+        int n = 0;
+        for (String word : queryWords) {
+            lists[n] = byWord.get(word);
+            if (lists[n++] == null) {
+                return result;
+            }
+        }
+        // Walk the shortest list, and look up its messages in the others
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+        Postings shortest = lists[0];
+        for (int i = shortest.size() - 1; i >= 0 && result.size() < limit; i--) {
+            long seq = shortest.get(i);
+            boolean inAll = true;
+            for (int j = 1; j < lists.length && inAll; j++) {
+                inAll = lists[j].contains(seq);
+            }
+            if (inAll) {
+                result.add(message(seq));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove all messages. Sequence numbers continue where they were.
+     */
+    public synchronized void clear() {
+        count = 0;
+        arenaHead = 0;
+        wrapped = false;
+        bySender.clear();
+        byWord.clear();
+        senderIds.clear();
+        senders.clear();
+        freeSenderIds.clear();
+        Arrays.fill(senderRefs, 0);
+    }
+
+    /**
+     * @return Number of sender and recipient names in the table
+     */
+    synchronized int getNameCount() {
+        return senderIds.size();
+    }
+
+    /**
+     * @return Number of ids handed out so far, used or free
+     */
+    synchronized int getNameTableSize() {
+        return senders.size();
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    /**
+     * Look up or add a name, for one more slot using it.
+     *
+     * @return The id of the name
+     */
+    private int acquireName(String name) {
+        Integer id = senderIds.get(name);
+        if (id == null) {
+            id = freeSenderIds.poll();
+            if (id == null) {
+                id = senders.size();
+                senders.add(name);
+                if (id == senderRefs.length) {
+                    senderRefs = Arrays.copyOf(senderRefs, senderRefs.length * 2);
+                }
+            } else {
+                senders.set(id, name);
+            }
+            senderIds.put(name, id);
+        }
+        senderRefs[id]++;
+        return id;
+    }
+
+    /**
+     * A slot no longer uses the name; free the id when no slot does.
+     */
+    private void releaseName(int id) {
+        if (--senderRefs[id] == 0) {
+            senderIds.remove(senders.get(id));
+            senders.set(id, null);
+            freeSenderIds.push(id);
+        }
+    }
+
+    /**
+     * Find a place in the arena for a text, dropping the oldest messages until there is one.
+     * The texts are laid out in the order of the messages, wrapping around to the start of the
+     * arena when the rest of it is too short for the next text.
+     *
+     * @return Offset of the text in the arena
+     */
+    private int allocate(int length) {
+        while (true) {
+            if (count == 0) {
+                arenaHead = 0;
+                wrapped = false;
+                return 0;
+            }
+            int tail = textOffset[slot(nextSequence - count)];
+            if (!wrapped) {
+                // The texts are in one piece, from tail to head
+                if (arena.capacity() - arenaHead >= length) {
+                    return arenaHead;
+                }
+                if (tail >= length) {
+                    wrapped = true;
+                    return 0;
+                }
+            } else if (tail - arenaHead >= length) {
+                // The free space is between head and tail
+                return arenaHead;
+            }
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        long sequence = nextSequence - count;
+        int slot = slot(sequence);
+        bySender.get(senderId[slot]).removeFirst(sequence);
+        if (bySender.get(senderId[slot]).size() == 0) {
+            bySender.remove(senderId[slot]);
+        }
+        releaseName(senderId[slot]);
+        if (recipientId[slot] >= 0) {
+            releaseName(recipientId[slot]);
+        }
+        for (String word : words(text(slot))) {
+            Postings postings = byWord.get(word);
+            if (postings != null) {
+                postings.removeFirst(sequence);
+                if (postings.size() == 0) {
+                    byWord.remove(word);
+                }
+            }
+        }
+        count--;
+        if (wrapped && count > 0 && textOffset[slot(sequence + 1)] < textOffset[slot]) {
+            // The texts at the end of the arena are all gone
+            wrapped = false;
+        }
+    }
+
+    private TextMessage message(long sequence) {
+        int slot = slot(sequence);
+        String sender = senders.get(senderId[slot]);
+        if (recipientId[slot] >= 0) {
+            return new TextMessage(sender, senders.get(recipientId[slot]), text(slot));
+        }
+        return new TextMessage(sender, priv[slot], text(slot));
+    }
+
+    private String text(int slot) {
+        int length = textLength[slot];
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        arena.get(textOffset[slot], scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param text A text
+     * @return The distinct words of the text, in lower case
+     */
+    static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        int i = 0;
+        int n = text.length();
+        while (i < n) {
+            while (i < n && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < n && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Ascending sequence numbers of the messages with one sender or word. New numbers are
+     * appended, and the oldest ones removed from the front when their messages are dropped.
+     */
+    private static class Postings {
+        private long[] sequences = new long[4];
+        private int start = 0;
+        private int end = 0;
+
+        void add(long sequence) {
+            if (end == sequences.length) {
+                int size = end - start;
+                long[] target = size * 2 < sequences.length ? sequences : new long[sequences.length * 2];
+                System.arraycopy(sequences, start, target, 0, size);
+                sequences = target;
+                start = 0;
+                end = size;
+            }
+            sequences[end++] = sequence;
+        }
+
+        void removeFirst(long sequence) {
+            if (start < end && sequences[start] == sequence) {
+                start++;
+            }
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        long get(int index) {
+            return sequences[start + index];
+        }
+
+        boolean contains(long sequence) {
+            return Arrays.binarySearch(sequences, start, end, sequence) >= 0;
+        }
+    }
+}
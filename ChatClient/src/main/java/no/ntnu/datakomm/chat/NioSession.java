@@ -0,0 +1,205 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/**
+ * One non-blocking connection to the chat server, served by a worker of a SelectorLoop.
+ * Incoming bytes are read into the receive buffer of an InboundDecoder, outgoing bytes are
+ * written directly when the socket buffer has room and queued otherwise.
+ */
+class NioSession implements SelectorLoop.Handler {
+    private final SocketChannel channel;
+    private final SelectorLoop.Worker worker;
+    private final InboundDecoder decoder;
+    private final Consumer<NioSession> closeHandler;
+
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private SelectionKey key;
+    private volatile boolean reading = false;
+    private volatile boolean closed = false;
+
+    private NioSession(SocketChannel channel, SelectorLoop.Worker worker,
+                       InboundDecoder decoder, Consumer<NioSession> closeHandler) {
+        this.channel = channel;
+        this.worker = worker;
+        this.decoder = decoder;
+        this.closeHandler = closeHandler;
+    }
+
+    /**
+     * Connect to the server and register the new channel with the selector loop. Reading does not
+     * start before startReading() is called.
+     *
+     * @param host         Host name or IP address of the chat server
+     * @param port         TCP port of the chat server
+     * @param loop         The selector loop which will serve the connection
+     * @param decoder      Gets the received bytes, on the I/O thread
+     * @param closeHandler Called on the I/O thread with the session when the remote end closes
+     *                     the connection
+     * @return The connected session
+     * @throws IOException When the connection could not be established
+     */
+    static NioSession open(String host, int port, SelectorLoop loop,
+                           InboundDecoder decoder, Consumer<NioSession> closeHandler) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        NioSession session = new NioSession(channel, loop.nextWorker(), decoder, closeHandler);
+        session.worker.execute(session::register);
+        return session;
+    }
+
+    private void register() {
+        try {
+            key = channel.register(worker.getSelector(), currentInterest(), this);
+        } catch (IOException e) {
+            // The channel was closed before it got registered
+            closed = true;
+        }
+    }
+
+    /**
+     * Start handing incoming bytes to the decoder.
+     */
+    void startReading() {
+        reading = true;
+        worker.execute(this::updateInterest);
+    }
+
+    /**
+     * Send bytes to the server. The bytes are written immediately if the socket accepts them, the
+     * rest is queued and written by the I/O thread when the socket becomes writable.
+     *
+     * @param data Bytes to send
+     * @return true if the data was written or queued, false if the session is closed
+     */
+    boolean send(byte[] data) {
+        if (closed) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        boolean mustWaitForWritable = false;
+        synchronized (writeQueue) {
+            try {
+                if (writeQueue.isEmpty()) {
+                    channel.write(buffer);
+                }
+                if (buffer.hasRemaining()) {
+                    writeQueue.add(buffer);
+                    mustWaitForWritable = writeQueue.size() == 1;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        if (mustWaitForWritable) {
+            worker.execute(this::updateInterest);
+        }
+        return true;
+    }
+
+    /**
+     * Close the connection. The close handler is not called.
+     */
+    void close() throws IOException {
+        closed = true;
+        decoder.stop();
+        channel.close();
+        worker.getSelector().wakeup();
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        if (key.isWritable()) {
+            flushQueue();
+        }
+        if (key.isValid() && key.isReadable()) {
+            readCommands();
+        }
+    }
+
+    private void flushQueue() {
+        boolean failed = false;
+        synchronized (writeQueue) {
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer head = writeQueue.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        // Socket buffer is full again, wait for the next writable event
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+        if (failed) {
+            remoteClosed();
+        } else {
+            updateInterest();
+        }
+    }
+
+    private void readCommands() {
+        int bytesRead;
+        try {
+            bytesRead = channel.read(decoder.getReceiveBuffer());
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        if (bytesRead < 0) {
+            remoteClosed();
+            return;
+        }
+        try {
+            decoder.decodeReceived();
+        } catch (ProtocolException e) {
+            System.out.println("Invalid data from the server: " + e.getMessage());
+            remoteClosed();
+        }
+    }
+
+    private void updateInterest() {
+        if (key != null && key.isValid()) {
+            key.interestOps(currentInterest());
+        }
+    }
+
+    private int currentInterest() {
+        int ops = reading ? SelectionKey.OP_READ : 0;
+        synchronized (writeQueue) {
+            if (!writeQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        return ops;
+    }
+
+    private void remoteClosed() {
+        if (!closed) {
+            closed = true;
+            decoder.stop();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            closeHandler.accept(this);
+        }
+    }
+}
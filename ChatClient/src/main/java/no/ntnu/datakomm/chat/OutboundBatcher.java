@@ -0,0 +1,139 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects outgoing commands and writes them to the server in one go. A batch is flushed
+ * when it reaches the size limit, or when the flush window has passed since the first command of
+ * the batch was queued - whichever comes first. Every queued command gets a future which completes
+ * with true when the batch containing it was written, and false when writing failed. Commands
+ * are queued already encoded (text lines or binary frames, see FrameCodec).
+ */
+class OutboundBatcher {
+    /**
+     * Writes a whole batch (several encoded commands) to the server.
+     */
+    interface BatchWriter {
+        /**
+         * @param batch The bytes to send
+         * @return true on success, false otherwise
+         */
+        boolean write(byte[] batch);
+    }
+
+    // One timer thread is enough for the flush windows of all clients
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            SessionThreads.factory(SessionThreads.Mode.PLATFORM, "chat-batch-timer-"));
+
+    private final BatchWriter writer;
+    private final int maxBatchSize;
+    private final long flushWindowMillis;
+
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private List<CompletableFuture<Boolean>> waiting = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+    // Held while a batch is written, so batches reach the socket in the order they were cut
+    private final Object writeLock = new Object();
+
+    /**
+     * @param writer            Writes the batches to the server
+     * @param maxBatchSize      A batch is flushed as soon as it holds this many bytes
+     * @param flushWindowMillis A batch is flushed at the latest this many ms after its first command
+     */
+    OutboundBatcher(BatchWriter writer, int maxBatchSize, long flushWindowMillis) {
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+        this.flushWindowMillis = flushWindowMillis;
+    }
+
+    /**
+     * Queue one command.
+     *
+     * @param command The encoded command
+     * @return Completes with true when the command was written, false if it could not be sent
+     */
+    CompletableFuture<Boolean> enqueue(byte[] command) {
+        CompletableFuture<Boolean> sent = new CompletableFuture<>();
+        boolean flushNow = false;
+        synchronized (this) {
+            if (closed) {
+                sent.complete(false);
+                return sent;
+            }
+            pending.writeBytes(command);
+            waiting.add(sent);
+            if (pending.size() >= maxBatchSize) {
+                flushNow = true;
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                TIMER.schedule(this::flush, flushWindowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+        return sent;
+    }
+
+    /**
+     * Write everything queued so far, on the calling thread.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            byte[] batch;
+            List<CompletableFuture<Boolean>> batchFutures;
+            synchronized (this) {
+                flushScheduled = false;
+                if (waiting.isEmpty()) {
+                    return;
+                }
+                batch = pending.toByteArray();
+                batchFutures = waiting;
+                pending = new ByteArrayOutputStream(Math.min(batch.length, maxBatchSize));
+                waiting = new ArrayList<>();
+            }
+            boolean success;
+            try {
+                success = writer.write(batch);
+            } catch (RuntimeException e) {
+                success = false;
+            }
+            for (CompletableFuture<Boolean> f : batchFutures) {
+                f.complete(success);
+            }
+        }
+    }
+
+    /**
+     * Drop what is queued, without writing it: the futures of the dropped commands complete
+     * with false. Used when the connection closes.
+     */
+    void discard() {
+        List<CompletableFuture<Boolean>> dropped;
+        synchronized (this) {
+            dropped = waiting;
+            pending = new ByteArrayOutputStream();
+            waiting = new ArrayList<>();
+        }
+        for (CompletableFuture<Boolean> f : dropped) {
+            f.complete(false);
+        }
+    }
+
+    /**
+     * Flush what is queued and refuse new commands.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+}
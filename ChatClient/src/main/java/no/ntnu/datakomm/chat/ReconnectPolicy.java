@@ -0,0 +1,81 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How TCPClient reconnects after losing the connection: the delays between the attempts grow
+ * exponentially up to a maximum, with random jitter so that many clients which lost the same
+ * server do not all come back at the same moment. While reconnecting, outgoing messages are
+ * kept in an outbox of limited size.
+ */
+public class ReconnectPolicy {
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double jitter;
+    private final int maxAttempts;
+    private final int outboxCapacity;
+
+    /**
+     * A policy with the defaults: first retry after 500 ms, at most 30 s between attempts, 50%
+     * jitter, retry forever and keep up to 100 messages.
+     */
+    public ReconnectPolicy() {
+        this(500, 30000, 0.5, 0, 100);
+    }
+
+    /**
+     * @param initialDelayMillis Delay before the first attempt. Doubled after every failed attempt.
+     * @param maxDelayMillis     Upper limit of the delay
+     * @param jitter             Fraction of the delay which is random, between 0 (exact delays)
+     *                           and 1 (anything between 0 and the delay)
+     * @param maxAttempts        Give up after this many failed attempts, 0 to retry forever
+     * @param outboxCapacity     Maximum number of messages kept while reconnecting. When full,
+     *                           the oldest message is dropped.
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double jitter,
+                           int maxAttempts, int outboxCapacity) {
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid delays");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        }
+        if (maxAttempts < 0 || outboxCapacity < 0) {
+            throw new IllegalArgumentException("Attempts and outbox capacity can't be negative");
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+        this.outboxCapacity = outboxCapacity;
+    }
+
+    /**
+     * @param attempt The attempt number, starting at 1
+     * @return How long to wait before the attempt, in milliseconds
+     */
+    public long getDelayMillis(int attempt) {
+        long delay = initialDelayMillis;
+        for (int i = 1; i < attempt && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMillis);
+        double random = ThreadLocalRandom.current().nextDouble();
+        return Math.round(delay * (1 - jitter * random));
+    }
+
+    /**
+     * @param attempt The attempt number, starting at 1
+     * @return true if this attempt may still be made
+     */
+    public boolean allowsAttempt(int attempt) {
+        return maxAttempts == 0 || attempt <= maxAttempts;
+    }
+
+    /**
+     * @return Maximum number of messages kept while reconnecting
+     */
+    public int getOutboxCapacity() {
+        return outboxCapacity;
+    }
+}
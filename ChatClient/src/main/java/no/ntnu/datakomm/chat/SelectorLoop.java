@@ -0,0 +1,160 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small group of I/O threads, each running its own Selector. Non-blocking chat sessions are
+ * spread over the threads round-robin, so thousands of connections can share a handful of
+ * threads instead of owning one thread each.
+ */
+public class SelectorLoop {
+    // Number of I/O threads in the shared loop, can be overridden with -Dchat.nio.threads=N
+    private static final int DEFAULT_THREADS = Integer.getInteger("chat.nio.threads",
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static SelectorLoop shared;
+
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    /**
+     * Create a new selector loop and start its I/O threads.
+     *
+     * @param threadCount Number of I/O threads (selectors) to use
+     * @throws IOException When a selector could not be opened
+     */
+    public SelectorLoop(int threadCount) throws IOException {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is needed");
+        }
+        workers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker(Selector.open());
+            Thread t = new Thread(workers[i], "chat-nio-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * @return The selector loop shared by all NIO clients in this JVM. It is created on first use.
+     * @throws IOException When the loop could not be started
+     */
+    public static synchronized SelectorLoop shared() throws IOException {
+        if (shared == null) {
+            shared = new SelectorLoop(DEFAULT_THREADS);
+        }
+        return shared;
+    }
+
+    /**
+     * @return The number of I/O threads in this loop
+     */
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     * Pick the worker that will serve the next session.
+     */
+    Worker nextWorker() {
+        int i = Math.floorMod(nextWorker.getAndIncrement(), workers.length);
+        return workers[i];
+    }
+
+    /**
+     * Stop all I/O threads. Sessions registered with this loop stop receiving events.
+     */
+    public void shutdown() {
+        for (Worker w : workers) {
+            w.running = false;
+            w.selector.wakeup();
+        }
+    }
+
+    /**
+     * Something that reacts on readiness events of a selection key. The handler is always
+     * called on the I/O thread owning the key.
+     */
+    interface Handler {
+        void onReady(SelectionKey key);
+    }
+
+    /**
+     * One I/O thread with its selector. Registration and interest changes must happen on the
+     * owning thread, so other threads post them as tasks.
+     */
+    static class Worker implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * Run a task on this I/O thread as soon as possible.
+         *
+         * @param task The task to run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    runTasks();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        dispatch(key);
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void dispatch(SelectionKey key) {
+            try {
+                if (key.isValid() && key.attachment() instanceof Handler) {
+                    ((Handler) key.attachment()).onReady(key);
+                }
+            } catch (CancelledKeyException e) {
+                // The session was closed while we were handling it, nothing to do
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The commands a server lists in its reply to "help". Commands known by this client are kept
+ * in an EnumSet (a bit mask), so checking a command before sending it costs next to nothing.
+ * The list is used to find out which optional features (presence, framing, compress) the server
+ * has.
+ */
+public class ServerCapabilities {
+    // Commands of the optional features. The server's list tells whether they are available;
+    // the commands of the base protocol are available on every server, listed or not.
+    private static final Set<Command> OPTIONAL = EnumSet.of(Command.PRESENCE, Command.FRAMING, Command.COMPRESS);
+
+    private final EnumSet<Command> commands = EnumSet.noneOf(Command.class);
+    // Everything the server listed, in its order, also the words this client does not know
+    private final List<String> keywords;
+
+    /**
+     * @param keywords The command words from the server's "supported" reply
+     */
+    public ServerCapabilities(List<String> keywords) {
+        this.keywords = List.copyOf(keywords);
+        for (String keyword : this.keywords) {
+            Command command = Command.lookup(keyword, keyword.length());
+            if (command != Command.UNKNOWN) {
+                commands.add(command);
+            }
+        }
+    }
+
+    /**
+     * @param command A command sent by the client
+     * @return true when the server listed the command
+     */
+    public boolean supports(Command command) {
+        return commands.contains(command);
+    }
+
+    /**
+     * @param command A command sent by the client
+     * @return true when the command belongs to an optional feature, which only servers listing
+     * it support
+     */
+    public static boolean isOptional(Command command) {
+        return OPTIONAL.contains(command);
+    }
+
+    /**
+     * @return The commands known by this client which the server listed
+     */
+    public Set<Command> getCommands() {
+        return EnumSet.copyOf(commands);
+    }
+
+    /**
+     * @return All command words the server listed
+     */
+    public List<String> getKeywords() {
+        return keywords;
+    }
+
+    @Override
+    public String toString() {
+        return "supported " + String.join(" ", keywords);
+    }
+}
@@ -0,0 +1,134 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the threads used per chat session: listen threads, connection threads and user
+ * polling threads. By default these are virtual threads (Java 21+), so a session costs a few
+ * kilobytes instead of a full thread stack. On older runtimes, or when -Dchat.threads=platform
+ * is given, daemon platform threads with a small stack are used instead.
+ */
+public final class SessionThreads {
+    /**
+     * The kind of threads to create.
+     */
+    public enum Mode {
+        VIRTUAL,
+        PLATFORM
+    }
+
+    // Stack size for platform threads. Session threads only read sockets and call listeners.
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private static final Method OF_VIRTUAL = findOfVirtual();
+
+    private static volatile Mode defaultMode = parseMode(System.getProperty("chat.threads"));
+
+    private SessionThreads() {
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return The mode used by factory() and start(). VIRTUAL is only returned when the runtime
+     * supports virtual threads.
+     */
+    public static Mode getDefaultMode() {
+        return defaultMode;
+    }
+
+    /**
+     * Change the kind of threads created from now on.
+     *
+     * @param mode The new mode. VIRTUAL falls back to PLATFORM when not supported.
+     */
+    public static void setDefaultMode(Mode mode) {
+        defaultMode = mode == Mode.VIRTUAL && !isVirtualSupported() ? Mode.PLATFORM : mode;
+    }
+
+    /**
+     * Get a thread factory using the default mode.
+     *
+     * @param namePrefix Prefix of the thread names, a sequence number is appended
+     * @return The thread factory
+     */
+    public static ThreadFactory factory(String namePrefix) {
+        return factory(defaultMode, namePrefix);
+    }
+
+    /**
+     * Get a thread factory for the given mode.
+     *
+     * @param mode       Kind of threads to create
+     * @param namePrefix Prefix of the thread names, a sequence number is appended
+     * @return The thread factory
+     */
+    public static ThreadFactory factory(Mode mode, String namePrefix) {
+        if (mode == Mode.VIRTUAL) {
+            ThreadFactory virtual = virtualFactory(namePrefix);
+            if (virtual != null) {
+                return virtual;
+            }
+        }
+        AtomicLong counter = new AtomicLong();
+        return task -> {
+            Thread t = new Thread(null, task, namePrefix + counter.getAndIncrement(), PLATFORM_STACK_SIZE);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Start a task on a new thread of the default mode.
+     *
+     * @param name Name of the thread
+     * @param task The task to run
+     * @return The started thread
+     */
+    public static Thread start(String name, Runnable task) {
+        Thread t = factory(name).newThread(task);
+        t.setName(name);
+        t.start();
+        return t;
+    }
+
+    private static ThreadFactory virtualFactory(String namePrefix) {
+        if (OF_VIRTUAL == null) {
+            return null;
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Look up Thread.ofVirtual() and check that it can actually be used (on Java 19 and 20 it
+     * throws unless preview features are enabled).
+     */
+    private static Method findOfVirtual() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            ofVirtual.invoke(null);
+            return ofVirtual;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Mode parseMode(String value) {
+        Mode mode = "platform".equalsIgnoreCase(value) ? Mode.PLATFORM : Mode.VIRTUAL;
+        return mode == Mode.VIRTUAL && OF_VIRTUAL == null ? Mode.PLATFORM : mode;
+    }
+}
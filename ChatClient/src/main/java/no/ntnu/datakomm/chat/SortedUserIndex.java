@@ -0,0 +1,128 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The usernames currently shown in the GUI, kept sorted so that membership checks and
+ * positions are found with a binary search. When a new user list arrives, only the difference
+ * to the current list is reported to the Listener, which can then add and remove single
+ * entries instead of rebuilding the whole view.
+ */
+public class SortedUserIndex {
+    /**
+     * Sorting order of the users: case insensitive, with the exact spelling as tie-breaker.
+     */
+    public static final Comparator<String> ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    /**
+     * Receives the changes of the index. The index is the position in the sorted list at the
+     * time of the change.
+     */
+    public interface Listener {
+        void onUserAdded(int index, String username);
+
+        void onUserRemoved(int index, String username);
+    }
+
+    private final List<String> users = new ArrayList<>();
+
+    /**
+     * Replace the whole list, reporting only the added and removed users. Duplicates in the new
+     * list are ignored.
+     *
+     * @param newUsers The complete list of users, in any order
+     * @param listener Receives the changes, in the order they are applied
+     */
+    public void update(String[] newUsers, Listener listener) {
+        String[] sorted = newUsers.clone();
+        Arrays.sort(sorted, ORDER);
+        int i = 0;
+        int j = 0;
+        while (i < users.size() || j < sorted.length) {
+            if (j > 0 && j < sorted.length && sorted[j].equals(sorted[j - 1])) {
+                j++;
+                continue;
+            }
+            int cmp;
+            if (j >= sorted.length) {
+                cmp = -1;
+            } else if (i >= users.size()) {
+                cmp = 1;
+            } else {
+                cmp = ORDER.compare(users.get(i), sorted[j]);
+            }
+            if (cmp < 0) {
+                String removed = users.remove(i);
+                listener.onUserRemoved(i, removed);
+            } else if (cmp > 0) {
+                users.add(i, sorted[j]);
+                listener.onUserAdded(i, sorted[j]);
+                i++;
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Add one user, if not present yet.
+     *
+     * @param username The user
+     * @param listener Notified if the user was added
+     */
+    public void add(String username, Listener listener) {
+        int pos = Collections.binarySearch(users, username, ORDER);
+        if (pos < 0) {
+            int index = -pos - 1;
+            users.add(index, username);
+            listener.onUserAdded(index, username);
+        }
+    }
+
+    /**
+     * Remove one user, if present.
+     *
+     * @param username The user
+     * @param listener Notified if the user was removed
+     */
+    public void remove(String username, Listener listener) {
+        int pos = Collections.binarySearch(users, username, ORDER);
+        if (pos >= 0) {
+            users.remove(pos);
+            listener.onUserRemoved(pos, username);
+        }
+    }
+
+    /**
+     * @param username The user
+     * @return true if the user is in the index
+     */
+    public boolean contains(String username) {
+        return Collections.binarySearch(users, username, ORDER) >= 0;
+    }
+
+    /**
+     * @return The number of users
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Remove all users.
+     *
+     * @param listener Notified about every removed user
+     */
+    public void clear(Listener listener) {
+        for (int i = users.size() - 1; i >= 0; i--) {
+            listener.onUserRemoved(i, users.remove(i));
+        }
+    }
+}
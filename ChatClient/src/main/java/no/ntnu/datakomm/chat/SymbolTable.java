@@ -0,0 +1,118 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interns short strings which repeat a lot, like the senders of messages: the same name is
+ * returned as the same String object, so the messages share it. Names are looked up by their
+ * UTF-8 bytes, so a known name is found in the receive buffer without decoding it. The table is
+ * bounded: when it is full, new names are returned as fresh strings and not remembered.
+ */
+public class SymbolTable {
+    private final int maxSize;
+    // Open addressing, the table is at least twice as large as maxSize
+    private byte[][] keys;
+    private String[] symbols;
+    private int size = 0;
+
+    /**
+     * @param maxSize Maximum number of strings kept
+     */
+    public SymbolTable(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+        this.maxSize = maxSize;
+        int capacity = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+        keys = new byte[capacity][];
+        symbols = new String[capacity];
+    }
+
+    /**
+     * @return Number of strings kept
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param name A string
+     * @return The interned string equal to name, name itself if the table is full
+     */
+    public String intern(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            int hash = hash(bytes, 0, bytes.length);
+            int i = find(hash, bytes, 0, bytes.length);
+            if (keys[i] != null) {
+                return symbols[i];
+            }
+            return add(i, bytes, name);
+        }
+    }
+
+    /**
+     * @param slice Received bytes
+     * @param from  Index of the first byte of the name in the slice
+     * @param to    Index after the last byte
+     * @return The interned name, decoded from the bytes if it was not known
+     */
+    public synchronized String intern(ByteSlice slice, int from, int to) {
+        int length = to - from;
+        int hash = 1;
+        for (int k = from; k < to; k++) {
+            hash = 31 * hash + slice.byteAt(k);
+        }
+        int mask = keys.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            byte[] key = keys[i];
+            if (key == null) {
+                return add(i, slice.toByteArray(from, to), slice.toString(from, to));
+            }
+            if (key.length == length && sliceEquals(key, slice, from)) {
+                return symbols[i];
+            }
+        }
+    }
+
+    private int find(int hash, byte[] bytes, int from, int to) {
+        int mask = keys.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            byte[] key = keys[i];
+            if (key == null || Arrays.equals(key, 0, key.length, bytes, from, to)) {
+                return i;
+            }
+        }
+    }
+
+    private String add(int slot, byte[] key, String name) {
+        if (size < maxSize) {
+            keys[slot] = key;
+            symbols[slot] = name;
+            size++;
+        }
+        return name;
+    }
+
+    private static boolean sliceEquals(byte[] key, ByteSlice slice, int from) {
+        for (int k = 0; k < key.length; k++) {
+            if (key[k] != slice.byteAt(from + k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 1;
+        for (int k = from; k < to; k++) {
+            hash = 31 * hash + bytes[k];
+        }
+        return hash;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -2,140 +2,1210 @@ package no.ntnu.datakomm.chat;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.DataFormatException;
 
 public class TCPClient {
-    private PrintWriter toServer;
-    private BufferedReader fromServer;
-    private Socket connection;
+    // How long a request waits for its reply, unless changed with setRequestTimeout()
+    private static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 10000;
+    // Number of distinct senders whose names are shared between their messages
+    private static final int MAX_SENDER_NAMES = 4096;
+    private OutputStream toServer;
+    private SocketChannel fromServer;
+    private volatile Socket connection;
+
+    // Used instead of the three fields above when the client runs in NIO mode
+    private final TransportMode transportMode;
+    private NioSession nioSession;
+
+    // Counters and timings, see getMetrics()
+    private final ClientMetrics metrics = new ClientMetrics();
+
+    // Senders of received messages, interned so their messages share one String
+    private final SymbolTable senderNames = new SymbolTable(MAX_SENDER_NAMES);
+
+    // Splits the received bytes of the current connection into commands
+    private volatile InboundDecoder inbound;
+    // True after the server accepted the switch to binary frames. Changed under sendLock.
+    private volatile boolean binaryOut = false;
+    private final Object sendLock = new Object();
+    // While the switch to binary frames waits for the server's answer: the request, and the
+    // commands sent meanwhile. They go out when the answer is there, framed or as text lines.
+    // Guarded by sendLock, null when no switch is waiting.
+    private CompletableFuture<Boolean> framingReply;
+    private List<OutboxEntry> heldForFraming;
+    // Compresses large messages, and decompresses the ones received. Kept over reconnects.
+    private volatile MessageCompressor compressor;
+    // True after the server accepted compression
+    private volatile boolean compressOut = false;
+
+    // Creates the listen thread in blocking mode
+    private ThreadFactory threadFactory = SessionThreads.factory("chat-listen-");
+
+    // When not null, commands are queued and written in batches instead of one by one
+    private volatile OutboundBatcher batcher;
+
+    // Requests waiting for their reply. The server answers in order, so the oldest request of
+    // each kind is completed by the next reply of that kind.
+    private final Queue<CompletableFuture<LoginResult>> pendingLogins = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<List<String>>> pendingUserLists = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<List<String>>> pendingSupported = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<Boolean>> pendingPresence = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<Boolean>> pendingFraming = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<Boolean>> pendingCompression = new ConcurrentLinkedQueue<>();
+    // The kinds of the requests waiting for a reply (the queues above), oldest first. A cmderr
+    // does not say which request it answers; when its text does not tell either, it is taken to
+    // answer the oldest request.
+    private final Deque<Queue<? extends CompletableFuture<?>>> awaitingReplies = new ConcurrentLinkedDeque<>();
+    private volatile long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+
+    // True when the server pushes joined/left events, so the user list need not be polled
+    private volatile boolean presenceActive = false;
+    // The server's supported commands, asked for once per connection (see capabilitiesAsync())
+    private volatile CompletableFuture<ServerCapabilities> capabilities;
+    private final Object capabilityLock = new Object();
+    // True when capabilitiesAsync() got the answer. Only then are unsupported commands rejected
+    // locally: a "help" which the user sent may list less than the server accepts.
+    private volatile boolean capabilitiesNegotiated = false;
+
+    // Where we connected to and who we logged in as, so a lost session can be restored
+    private volatile String lastHost;
+    private volatile int lastPort;
+    private volatile String lastUsername;
+
+    // Set by enableReconnect(). While reconnecting, messages are kept in the outbox.
+    private volatile ReconnectPolicy reconnectPolicy;
+    private volatile boolean reconnecting = false;
+    // Guarded by itself, as is the change of reconnecting back to false
+    private final Deque<OutboxEntry> outbox = new ArrayDeque<>();
+    private long outboxDropped = 0;
 
 
     // Hint: if you want to store a message for the last error, store it here
     private String lastError = null;
 
-    private final List<ChatListener> listeners = new LinkedList<>();
+    private final ListenerRegistry listeners = new ListenerRegistry();
+    private final ListenerDispatcher dispatcher = new ListenerDispatcher();
+
+    /**
+     * Create a client using one blocking socket and a dedicated listen thread.
+     */
+    public TCPClient() {
+        this(TransportMode.BLOCKING);
+    }
+
+    /**
+     * Create a client with the given transport.
+     *
+     * @param transportMode BLOCKING for a dedicated listen thread, NIO to share the I/O threads
+     *                      of the SelectorLoop with other clients
+     */
+    public TCPClient(TransportMode transportMode) {
+        this.transportMode = transportMode;
+    }
+
+    /**
+     * @return The transport this client uses
+     */
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+
+    /**
+     * Set the factory used to create the listen thread in blocking mode. By default the threads
+     * come from SessionThreads (virtual threads where supported).
+     *
+     * @param threadFactory The thread factory
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Connect to a chat server.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return True on success, false otherwise
+     */
+    public boolean connect(String host, int port) {
+        boolean connected = openConnection(host, port);
+        if (connected) {
+            lastHost = host;
+            lastPort = port;
+        }
+        return connected;
+    }
+
+    /**
+     * Connect to a chat server at an address which is already resolved, without a DNS lookup.
+     *
+     * @param address IP address of the chat server
+     * @param port    TCP port of the chat server
+     * @return True on success, false otherwise
+     */
+    public boolean connect(InetAddress address, int port) {
+        return connect(address.getHostAddress(), port);
+    }
+
+    /**
+     * Open the socket (or channel) to the chat server.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return True on success, false otherwise
+     */
+    private boolean openConnection(String host, int port) {
+        long start = System.nanoTime();
+        boolean connected = transportMode == TransportMode.NIO ? connectNio(host, port) : connectBlocking(host, port);
+        if (connected) {
+            metrics.connected(System.nanoTime() - start);
+        } else {
+            metrics.connectFailed();
+        }
+        return connected;
+    }
+
+    /**
+     * Open a blocking channel to the chat server.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return True on success, false otherwise
+     */
+    private boolean connectBlocking(String host, int port) {
+        boolean connected = false;
+        try {
+            // A blocking channel, so that received bytes can be read into a direct buffer
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            this.inbound = new InboundDecoder(new ServerCommandSink());
+            this.fromServer = channel;
+            this.toServer = new BufferedOutputStream(Channels.newOutputStream(channel));
+            this.connection = channel.socket();
+            connected = true;
+
+        } catch (IOException e) {
+            System.out.println("Something was interrupted");
+        } catch (IllegalArgumentException i) {
+            System.out.println("Illegal characters were used");
+        } catch (SecurityException s) {
+            System.out.println("A security violation occurred");
+        }
+        return connected;
+    }
+
+    /**
+     * Connect a non-blocking channel and hand it over to the shared selector loop.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return True on success, false otherwise
+     */
+    private boolean connectNio(String host, int port) {
+        boolean connected = false;
+        try {
+            InboundDecoder decoder = new InboundDecoder(new ServerCommandSink());
+            this.nioSession = NioSession.open(host, port, SelectorLoop.shared(), decoder, this::connectionLost);
+            this.inbound = decoder;
+            connected = true;
+        } catch (IOException e) {
+            System.out.println("Something was interrupted");
+        } catch (IllegalArgumentException i) {
+            System.out.println("Illegal characters were used");
+        } catch (SecurityException s) {
+            System.out.println("A security violation occurred");
+        }
+        return connected;
+    }
+
+    /**
+     * Close the socket. This method must be synchronized, because several
+     * threads may try to call it. For example: When "Disconnect" button is
+     * pressed in the GUI thread, the connection will get closed. Meanwhile, the
+     * background thread trying to read server's response will get error in the
+     * input stream and may try to call this method when the socket is already
+     * in the process of being closed. with "synchronized" keyword we make sure
+     * that no two threads call this method in parallel.
+     */
+    public synchronized void disconnect() {
+        // Also stops a reconnect in progress
+        boolean wasReconnecting = reconnecting;
+        failOutbox();
+        if (closeConnection() || wasReconnecting) {
+            onDisconnect();
+        }
+    }
+
+    /**
+     * Close the socket (or channel) and fail the requests waiting for a reply, without
+     * notifying the listeners.
+     *
+     * @return true if there was an open connection
+     */
+    private synchronized boolean closeConnection() {
+        if (!isConnectionActive()) {
+            return false;
+        }
+        OutboundBatcher currentBatcher = batcher;
+        if (currentBatcher != null) {
+            // Commands still waiting for their flush window are not sent; call flush() first
+            // to send them
+            currentBatcher.discard();
+        }
+        try {
+            if (nioSession != null) {
+                NioSession session = nioSession;
+                nioSession = null;
+                session.close();
+            } else {
+                Socket socket = connection;
+                toServer = null;
+                fromServer = null;
+                // Cleared first, so the listen thread knows the close was on purpose
+                connection = null;
+                socket.close();
+            }
+        } catch (IOException i){
+            System.out.print("A socket error occurred");
+        }
+        InboundDecoder decoder = inbound;
+        if (decoder != null) {
+            // Nothing more from this connection reaches the listeners
+            decoder.stop();
+        }
+        presenceActive = false;
+        binaryOut = false;
+        compressOut = false;
+        // The next server may support other commands
+        capabilities = null;
+        capabilitiesNegotiated = false;
+        failPendingRequests();
+        return true;
+    }
+
+    /**
+     * Called when the server closed the connection or reading from it failed. Without a
+     * reconnect policy this is the same as disconnect(), otherwise a reconnect is started.
+     *
+     * @param transport The socket or NIO session which was lost. Ignored if it is not the
+     *                  current connection (any more).
+     */
+    private void connectionLost(Object transport) {
+        boolean restorePresence;
+        boolean restoreFraming;
+        boolean restoreCompression;
+        ReconnectPolicy policy;
+        synchronized (this) {
+            if (transport == null || (transport != connection && transport != nioSession)) {
+                return;
+            }
+            restorePresence = presenceActive;
+            restoreFraming = binaryOut;
+            restoreCompression = compressOut;
+            closeConnection();
+            if (reconnecting) {
+                // A reconnect attempt lost its new connection, the attempt itself will notice
+                return;
+            }
+            policy = reconnectPolicy;
+            if (policy == null) {
+                onDisconnect();
+                return;
+            }
+            reconnecting = true;
+        }
+        SessionThreads.start("chat-reconnect", () -> reconnect(policy, restorePresence, restoreFraming, restoreCompression));
+    }
+
+    /**
+     * @return true if the connection is active (opened), false if not.
+     */
+    public boolean isConnectionActive() {
+        return connection != null || nioSession != null;
+    }
+
+    /**
+     * Set how long a request (login, users, help and the feature negotiations) waits for the
+     * server's reply. Without a reply by then, its future completes exceptionally with a
+     * TimeoutException. Requests also fail when the connection closes, or when the server
+     * answers them with cmderr.
+     *
+     * @param timeout How long to wait, 0 to wait until the connection closes
+     * @param unit    The unit of timeout
+     */
+    public void setRequestTimeout(long timeout, TimeUnit unit) {
+        requestTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Send a command to server.
+     *
+     * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
+     * @return true on success, false otherwise
+     */
+    private boolean sendCommand(String cmd) {
+        Command command = commandOf(cmd);
+        if (rejectUnsupported(command)) {
+            return false;
+        }
+        return sendChecked(cmd, command);
+    }
+
+    /**
+     * Send a command which passed rejectUnsupported().
+     *
+     * @param cmd     A command line
+     * @param command The command word of cmd
+     * @return true on success, false otherwise
+     */
+    private boolean sendChecked(String cmd, Command command) {
+        if (!isConnectionActive()) {
+            System.out.println("The connection was closed");
+            return false;
+        }
+        synchronized (sendLock) {
+            if (holdForFraming(cmd) != null) {
+                return true;
+            }
+            byte[] data = encode(cmd, command);
+            OutboundBatcher currentBatcher = batcher;
+            if (currentBatcher != null) {
+                // In batched mode "success" means the command is queued. Use sendCommandAsync()
+                // to find out whether it was actually written.
+                currentBatcher.enqueue(data);
+                return true;
+            }
+            return writeBytes(data);
+        }
+    }
+
+    /**
+     * Send a command to server, and find out later whether it actually went out. Without
+     * batching the command is written immediately and the returned future is already complete.
+     *
+     * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
+     * @return Completes with true when the command was written, false on error
+     */
+    private CompletableFuture<Boolean> sendCommandAsync(String cmd) {
+        Command command = commandOf(cmd);
+        if (rejectUnsupported(command)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        OutboundBatcher currentBatcher = batcher;
+        synchronized (sendLock) {
+            CompletableFuture<Boolean> held = holdForFraming(cmd);
+            if (held != null) {
+                return held;
+            }
+            if (currentBatcher != null && isConnectionActive()) {
+                return currentBatcher.enqueue(encode(cmd, command));
+            }
+        }
+        return CompletableFuture.completedFuture(sendChecked(cmd, command));
+    }
+
+    /**
+     * @param cmd A command line
+     * @return The command word of the line, looked up once per send
+     */
+    private static Command commandOf(String cmd) {
+        int wordEnd = cmd.indexOf(' ');
+        return Command.lookup(cmd, wordEnd < 0 ? cmd.length() : wordEnd);
+    }
+
+    /**
+     * Keep a command back while the switch to binary frames waits for the server's answer. Call
+     * while holding sendLock.
+     *
+     * @param cmd A command line
+     * @return Completes when the command was sent after the answer, null if no switch is waiting
+     * and the command must be sent now
+     */
+    private CompletableFuture<Boolean> holdForFraming(String cmd) {
+        if (heldForFraming == null) {
+            return null;
+        }
+        CompletableFuture<Boolean> sent = new CompletableFuture<>();
+        heldForFraming.add(new OutboxEntry(cmd, sent));
+        return sent;
+    }
+
+    /**
+     * The server answered the switch to binary frames (or the request failed): send the commands
+     * which were held back, in order, before anything else can be sent.
+     *
+     * @param binary true when the server accepted the switch
+     */
+    private void finishFramingSwitch(boolean binary) {
+        synchronized (sendLock) {
+            List<OutboxEntry> held = heldForFraming;
+            heldForFraming = null;
+            framingReply = null;
+            if (binary && isConnectionActive()) {
+                binaryOut = true;
+            }
+            if (held != null) {
+                for (OutboxEntry entry : held) {
+                    sendCommandAsync(entry.command).whenComplete((sent, error) ->
+                            entry.sent.complete(error == null && sent));
+                }
+            }
+        }
+    }
+
+    /**
+     * Check a command which needs an optional feature (presence, framing, compress) against the
+     * server's supported commands, once they were negotiated (see capabilitiesAsync()) and the
+     * server listed any. Such a command is not sent when the server did not list it; the
+     * listeners get a command error right away instead of after the round trip to the server's
+     * cmderr. The commands of the base protocol are always sent: servers accept some of them
+     * (joke, for example) without listing them.
+     *
+     * @param command The command word of the command line
+     * @return true when the command must not be sent
+     */
+    private boolean rejectUnsupported(Command command) {
+        if (!ServerCapabilities.isOptional(command) || !capabilitiesNegotiated) {
+            return false;
+        }
+        ServerCapabilities supported = getCapabilities();
+        if (supported == null || supported.getKeywords().isEmpty() || supported.supports(command)) {
+            return false;
+        }
+        metrics.commandRejected();
+        onCmdError("command not supported by the server: " + command.getKeyword());
+        return true;
+    }
+
+    /**
+     * @param cmd     A command line
+     * @param command The command word of cmd
+     * @return The command as it goes on the wire: a text line, or a binary frame after the
+     * switch to binary framing
+     */
+    private byte[] encode(String cmd, Command command) {
+        metrics.commandSent(command);
+        if (!binaryOut) {
+            return FrameCodec.encodeLine(cmd);
+        }
+        MessageCompressor currentCompressor = compressor;
+        if (compressOut && currentCompressor != null) {
+            byte[] frame = currentCompressor.encodeFrame(cmd);
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return FrameCodec.encodeFrame(command, cmd);
+    }
+
+    /**
+     * Write encoded commands (a single one, or a whole batch) to the server, with one flush.
+     *
+     * @param data The bytes to write
+     * @return true on success, false otherwise
+     */
+    private boolean writeBytes(byte[] data) {
+        NioSession session = nioSession;
+        if (session != null) {
+            if (session.send(data)) {
+                metrics.bytesSent(data.length);
+                return true;
+            }
+            return false;
+        }
+        OutputStream out = toServer;
+        if (out == null) {
+            return false;
+        }
+        try {
+            synchronized (out) {
+                out.write(data);
+                out.flush();
+            }
+            metrics.bytesSent(data.length);
+            return true;
+        } catch (IOException e) {
+            System.out.print("A socket error occurred");
+            return false;
+        }
+    }
+
+    /**
+     * Queue outgoing commands and write them in batches: a batch is written when it holds
+     * maxBatchSize bytes, or flushWindowMillis after its first command was queued. This
+     * trades a little latency for far fewer writes (and TCP segments) when many commands are
+     * sent in a short time. Commands still queued when the connection closes are not sent,
+     * their futures complete with false; call flush() before disconnect() to send them.
+     *
+     * @param maxBatchSize      Batch size (in bytes) which triggers a write
+     * @param flushWindowMillis Maximum time a command waits in the queue
+     */
+    public void enableBatching(int maxBatchSize, long flushWindowMillis) {
+        disableBatching();
+        batcher = new OutboundBatcher(this::writeBytes, maxBatchSize, flushWindowMillis);
+    }
+
+    /**
+     * Write the queued commands and go back to sending every command immediately.
+     */
+    public void disableBatching() {
+        OutboundBatcher currentBatcher = batcher;
+        batcher = null;
+        if (currentBatcher != null) {
+            currentBatcher.close();
+        }
+    }
+
+    /**
+     * @return true when outgoing commands are batched
+     */
+    public boolean isBatching() {
+        return batcher != null;
+    }
+
+    /**
+     * Write the queued commands now, without waiting for the flush window. Does nothing when
+     * batching is not enabled.
+     */
+    public void flush() {
+        OutboundBatcher currentBatcher = batcher;
+        if (currentBatcher != null) {
+            currentBatcher.flush();
+        }
+    }
+
+    /**
+     * Reconnect automatically when the connection is lost (not when disconnect() is called).
+     * After reconnecting, the client logs in again with the last username that was accepted,
+     * asks for the user list, subscribes to presence events again if it had, and then sends the
+     * messages kept in the outbox. Listeners get onReconnecting() before every attempt and
+     * onReconnected() when the session is restored; onDisconnect() is only sent when the policy
+     * gives up.
+     *
+     * @param policy Delays between the attempts and the size of the outbox
+     */
+    public void enableReconnect(ReconnectPolicy policy) {
+        reconnectPolicy = policy;
+    }
+
+    /**
+     * Don't reconnect after future connection losses. A reconnect already in progress is only
+     * stopped by disconnect().
+     */
+    public void disableReconnect() {
+        reconnectPolicy = null;
+    }
+
+    /**
+     * @return true while the connection is lost and being restored
+     */
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * @return Number of messages dropped because the outbox was full
+     */
+    public long getOutboxDropped() {
+        synchronized (outbox) {
+            return outboxDropped;
+        }
+    }
+
+    /**
+     * Try to restore the session until it works, the policy gives up, or disconnect() is called.
+     * Runs on its own thread.
+     *
+     * @param policy             The reconnect policy
+     * @param restorePresence    True to subscribe to presence events again
+     * @param restoreFraming     True to switch to binary framing again
+     * @param restoreCompression True to switch on compression again
+     */
+    private void reconnect(ReconnectPolicy policy, boolean restorePresence, boolean restoreFraming,
+                           boolean restoreCompression) {
+        for (int attempt = 1; reconnecting && policy.allowsAttempt(attempt); attempt++) {
+            long delay = policy.getDelayMillis(attempt);
+            onReconnecting(attempt, delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (!reconnecting) {
+                break;
+            }
+            metrics.reconnectAttempt();
+            if (restoreSession(restorePresence, restoreFraming, restoreCompression)) {
+                metrics.reconnected();
+                replayOutbox();
+                onReconnected();
+                return;
+            }
+        }
+        // Gave up, unless disconnect() was called meanwhile (it notified the listeners already)
+        synchronized (this) {
+            if (!reconnecting) {
+                return;
+            }
+            failOutbox();
+        }
+        onDisconnect();
+    }
+
+    /**
+     * Connect to the last server again and log in with the last username.
+     *
+     * @param restorePresence    True to subscribe to presence events again
+     * @param restoreFraming     True to switch to binary framing again
+     * @param restoreCompression True to switch on compression again
+     * @return true when connected and logged in
+     */
+    private boolean restoreSession(boolean restorePresence, boolean restoreFraming, boolean restoreCompression) {
+        String host = lastHost;
+        if (host == null || !openConnection(host, lastPort)) {
+            return false;
+        }
+        if (!stillReconnecting()) {
+            return false;
+        }
+        startListenThread();
+        String username = lastUsername;
+        if (username != null) {
+            try {
+                // Fails when the connection is lost or the server does not answer in time
+                LoginResult result = loginAsync(username).get();
+                if (!result.isSuccess()) {
+                    // The server may not have noticed yet that the old session is gone
+                    closeConnection();
+                    return false;
+                }
+            } catch (ExecutionException e) {
+                closeConnection();
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closeConnection();
+                return false;
+            }
+            if (!stillReconnecting()) {
+                return false;
+            }
+        }
+        MessageCompressor oldCompressor = compressor;
+        if (restoreCompression && oldCompressor != null) {
+            negotiateCompression(oldCompressor.getThreshold());
+        } else if (restoreFraming) {
+            negotiateBinaryFraming();
+        }
+        refreshUserList();
+        if (restorePresence) {
+            negotiatePresence();
+        }
+        return true;
+    }
+
+    /**
+     * Check that disconnect() was not called while a connection was being restored. If it was,
+     * the new connection is closed again, disconnect() has notified the listeners already.
+     *
+     * @return true when the reconnect should go on
+     */
+    private synchronized boolean stillReconnecting() {
+        if (!reconnecting) {
+            closeConnection();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send the messages kept during the outage, in order. Messages sent meanwhile still go to the
+     * outbox, until it is empty; only then does sending go directly to the server again.
+     */
+    private void replayOutbox() {
+        while (true) {
+            OutboxEntry entry;
+            synchronized (outbox) {
+                entry = outbox.poll();
+                if (entry == null) {
+                    reconnecting = false;
+                    return;
+                }
+            }
+            sendCommandAsync(entry.command).whenComplete((sent, error) ->
+                    entry.sent.complete(error == null && sent));
+        }
+    }
+
+    /**
+     * Keep a message in the outbox if the client is reconnecting.
+     *
+     * @param cmd The command which sends the message
+     * @return null if the client is not reconnecting and the message must be sent now, otherwise
+     * a future which completes when the message was sent after reconnecting (true), or was dropped
+     * (false)
+     */
+    private CompletableFuture<Boolean> queueIfReconnecting(String cmd) {
+        if (!reconnecting) {
+            return null;
+        }
+        CompletableFuture<Boolean> sent = new CompletableFuture<>();
+        OutboxEntry dropped = null;
+        synchronized (outbox) {
+            if (!reconnecting) {
+                return null;
+            }
+            ReconnectPolicy policy = reconnectPolicy;
+            int capacity = policy != null ? policy.getOutboxCapacity() : 0;
+            if (capacity == 0) {
+                outboxDropped++;
+                sent.complete(false);
+                return sent;
+            }
+            if (outbox.size() >= capacity) {
+                dropped = outbox.poll();
+                outboxDropped++;
+            }
+            outbox.add(new OutboxEntry(cmd, sent));
+        }
+        if (dropped != null) {
+            dropped.sent.complete(false);
+        }
+        return sent;
+    }
+
+    /**
+     * Stop reconnecting and drop the messages in the outbox.
+     */
+    private void failOutbox() {
+        List<OutboxEntry> failed;
+        synchronized (outbox) {
+            reconnecting = false;
+            failed = List.copyOf(outbox);
+            outbox.clear();
+        }
+        for (OutboxEntry entry : failed) {
+            entry.sent.complete(false);
+        }
+    }
+
+    /**
+     * Send a public message to all the recipients.
+     *
+     * @param message Message to send
+     * @return true if message sent, false on error
+     */
+    public boolean sendPublicMessage(String message) {
+        CompletableFuture<Boolean> queued = queueIfReconnecting(publicMessageCommand(message));
+        if (queued != null) {
+            return queued.getNow(true);
+        }
+        try {
+            return sendCommand(publicMessageCommand(message));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Send a public message to all the recipients. In batched mode the future completes when
+     * the batch containing the message has been written.
+     *
+     * @param message Message to send
+     * @return Completes with true if the message was sent, false on error
+     */
+    public CompletableFuture<Boolean> sendPublicMessageAsync(String message) {
+        CompletableFuture<Boolean> queued = queueIfReconnecting(publicMessageCommand(message));
+        if (queued != null) {
+            return queued;
+        }
+        return sendCommandAsync(publicMessageCommand(message));
+    }
+
+    /**
+     * @param message Message typed by the user
+     * @return The command which sends the message
+     */
+    private String publicMessageCommand(String message) {
+        return message.equals("/joke") ? "joke" : "msg " + message;
+    }
+
+    /**
+     * Send a login request to the chat server.
+     *
+     * @param username Username to use
+     */
+    public void tryLogin(String username) {
+        try {
+            loginAsync(username);
+            refreshUserList();
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Send a login request to the chat server. The result is delivered both to the listeners
+     * and to the returned future.
+     *
+     * @param username Username to use
+     * @return Completes with the server's answer (loginok or loginerr), or exceptionally if the
+     * request could not be sent or the connection was closed before the answer arrived
+     */
+    public CompletableFuture<LoginResult> loginAsync(String username) {
+        CompletableFuture<LoginResult> reply = sendTimedRequest(pendingLogins, "login " + username,
+                metrics.loginLatency());
+        reply.thenAccept(result -> {
+            if (result.isSuccess()) {
+                // Used to log in again after reconnecting
+                lastUsername = username;
+            }
+        });
+        return reply;
+    }
+
+    /**
+     * @return The username of the last successful login, null before the first one
+     */
+    public String getUsername() {
+        return lastUsername;
+    }
+
+    /**
+     * Send a request for latest user list to the server. To get the new users,
+     * clear your current user list and use events in the listener.
+     */
+    public void refreshUserList() {
+        usersAsync();
+        // Hint: Use Wireshark and the provided chat client reference app to find out what commands the
+        // client and server exchange for user listing.
+    }
+
+    /**
+     * Send a request for the latest user list. The list is delivered both to the listeners and
+     * to the returned future.
+     *
+     * @return Completes with the usernames of the currently connected users
+     */
+    public CompletableFuture<List<String>> usersAsync() {
+        return sendTimedRequest(pendingUserLists, "users", metrics.usersLatency());
+    }
 
     /**
-     * Connect to a chat server.
+     * Send a request for the list of commands that server supports. The list is delivered both
+     * to the listeners and to the returned future.
      *
-     * @param host host name or IP address of the chat server
-     * @param port TCP port of the chat server
-     * @return True on success, false otherwise
+     * @return Completes with the commands supported by the server
      */
-    public boolean connect(String host, int port) {
-        boolean connected = false;
-        try {
-            this.connection = new Socket(host, port);
-            this.fromServer = new BufferedReader(new InputStreamReader(this.connection.getInputStream()));
-            this.toServer = new PrintWriter(this.connection.getOutputStream(), true);
-            connected = true;
+    public CompletableFuture<List<String>> supportedCommandsAsync() {
+        return sendTimedRequest(pendingSupported, "help", metrics.helpLatency());
+    }
 
-        } catch (IOException e) {
-            System.out.println("Something was interrupted");
-        } catch (IllegalArgumentException i) {
-            System.out.println("Illegal characters were used");
-        } catch (SecurityException s) {
-            System.out.println("A security violation occurred");
+    /**
+     * Find out which commands the server supports. The server is asked once per connection,
+     * with "help"; later calls get the same answer without a round trip. A "help" sent for
+     * another reason (askSupportedCommands()) updates the answer as well.
+     *
+     * @return Completes with the server's supported commands
+     */
+    public CompletableFuture<ServerCapabilities> capabilitiesAsync() {
+        CompletableFuture<ServerCapabilities> request;
+        synchronized (capabilityLock) {
+            CompletableFuture<ServerCapabilities> known = capabilities;
+            if (known != null && !known.isCompletedExceptionally()) {
+                return known;
+            }
+            request = new CompletableFuture<>();
+            capabilities = request;
         }
-        return connected;
+        // Completed by the reply (see ServerCommandSink.onSupported()), or failed here
+        supportedCommandsAsync().whenComplete((commands, error) -> {
+            if (error != null) {
+                request.completeExceptionally(error);
+            }
+        });
+        return request;
     }
 
     /**
-     * Close the socket. This method must be synchronized, because several
-     * threads may try to call it. For example: When "Disconnect" button is
-     * pressed in the GUI thread, the connection will get closed. Meanwhile, the
-     * background thread trying to read server's response will get error in the
-     * input stream and may try to call this method when the socket is already
-     * in the process of being closed. with "synchronized" keyword we make sure
-     * that no two threads call this method in parallel.
+     * @return The server's supported commands, null when they are not known (yet)
      */
-    public synchronized void disconnect() {
-        if (isConnectionActive()) {
-            try {
-                toServer = null;
-                fromServer = null;
-                connection.close();
-                connection = null;
-                onDisconnect();
-            } catch (IOException i){
-                System.out.print("A socket error occurred");
+    public ServerCapabilities getCapabilities() {
+        CompletableFuture<ServerCapabilities> known = capabilities;
+        return known != null && known.isDone() && !known.isCompletedExceptionally() ? known.join() : null;
+    }
+
+    /**
+     * Switch on the optional features which make the connection cheaper, as far as the server
+     * supports them: binary framing and pushed presence events. See negotiateFeatures(int, long).
+     *
+     * @return Completes with the server's supported commands, when the features are negotiated
+     */
+    public CompletableFuture<ServerCapabilities> negotiateFeatures() {
+        return negotiateFeatures(0, 0);
+    }
+
+    /**
+     * Ask the server once for its supported commands, then switch on the optional features it
+     * supports: binary framing and pushed presence events. Batched sends need nothing from the
+     * server, they are switched on when maxBatchSize is positive. Commands of optional features
+     * which the server did not list are rejected locally from now on; the base protocol commands
+     * are always sent.
+     *
+     * @param maxBatchSize      Batch size (in bytes) which triggers a write, 0 for no batching
+     * @param flushWindowMillis Maximum time a command waits in a batch
+     * @return Completes with the server's supported commands, when the features are negotiated
+     */
+    public CompletableFuture<ServerCapabilities> negotiateFeatures(int maxBatchSize, long flushWindowMillis) {
+        return capabilitiesAsync().thenCompose(supported -> {
+            CompletableFuture<Boolean> framing = negotiateBinaryFraming();
+            CompletableFuture<Boolean> presence = negotiatePresence();
+            if (maxBatchSize > 0) {
+                enableBatching(maxBatchSize, flushWindowMillis);
             }
-        }
+            return CompletableFuture.allOf(framing, presence).thenApply(done -> supported);
+        });
     }
 
     /**
-     * @return true if the connection is active (opened), false if not.
+     * Ask the server to push presence events (users joining and leaving) instead of having to
+     * poll the user list. The subscription is only sent if the server lists "presence" among its
+     * supported commands. Listeners then get onUserJoined() and onUserLeft() events; a full user
+     * list should still be fetched once as the starting point.
+     *
+     * @return Completes with true when the server pushes presence events, false when it does not
+     * support them and the user list must be polled
      */
-    public boolean isConnectionActive() {
-        return connection != null;
+    public CompletableFuture<Boolean> negotiatePresence() {
+        return capabilitiesAsync().thenCompose(supported -> {
+            if (!supported.supports(Command.PRESENCE)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return sendRequest(pendingPresence, Command.PRESENCE.getKeyword() + " on");
+        });
     }
 
     /**
-     * Send a command to server.
+     * @return true when the server pushes presence events to this client
+     */
+    public boolean isPresenceActive() {
+        return presenceActive;
+    }
+
+    /**
+     * Switch this connection from text lines to length-prefixed binary frames (see FrameCodec),
+     * if the server lists "framing" among its supported commands. The request itself is the last
+     * text line we send, and the server's answer is the last text line it sends; everything after
+     * that is framed in both directions. Commands sent before the answer arrives are held back,
+     * and sent framed after framingok, or as text lines if the server refused with cmderr. Binary
+     * frames save the command words and newlines, and allow messages containing newlines.
      *
-     * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
-     * @return true on success, false otherwise
+     * @return Completes with true when binary framing is used, false when the server does not
+     * list it, exceptionally when it refused the switch
      */
-    private boolean sendCommand(String cmd) {
-        if(isConnectionActive()){
-            try{
-                toServer.println(cmd);
-                return true;
-            } catch (Exception e) {
-                System.out.print("A socket error occurred");
+    public CompletableFuture<Boolean> negotiateBinaryFraming() {
+        return capabilitiesAsync().thenCompose(supported -> {
+            if (!supported.supports(Command.FRAMING)) {
+                return CompletableFuture.completedFuture(false);
             }
-        } else {
-            System.out.println("The connection was closed");
+            synchronized (sendLock) {
+                if (binaryOut) {
+                    return CompletableFuture.completedFuture(true);
+                }
+                Object transport = connection != null ? connection : nioSession;
+                if (framingReply != null) {
+                    return framingReply;
+                }
+                CompletableFuture<Boolean> reply = sendRequest(pendingFraming,
+                        Command.FRAMING.getKeyword() + " binary");
+                // Sent while still holding the lock, so nothing can slip in before the answer.
+                // If the answer (or the failure) is there already, the switch finishes right away.
+                // The caller hears of the answer only after the switch finished.
+                CompletableFuture<Boolean> switched = new CompletableFuture<>();
+                framingReply = switched;
+                heldForFraming = new ArrayList<>();
+                reply.whenComplete((ok, error) -> {
+                    if (error instanceof TimeoutException) {
+                        // The server may still switch, and nobody could tell its frames apart
+                        connectionLost(transport);
+                    }
+                    finishFramingSwitch(error == null && ok);
+                    if (error != null) {
+                        switched.completeExceptionally(error);
+                    } else {
+                        switched.complete(ok);
+                    }
+                });
+                return switched;
+            }
+        });
+    }
+
+    /**
+     * @return true when commands are sent as binary frames
+     */
+    public boolean isBinaryFraming() {
+        return binaryOut;
+    }
+
+    /**
+     * Compress messages of at least threshold bytes (Deflate, see MessageCompressor), if the
+     * server supports "compress". Compressed messages are binary frames, so binary framing is
+     * negotiated first. Received messages may be compressed too, from then on.
+     *
+     * @param threshold Messages with fewer UTF-8 bytes are sent uncompressed
+     * @return Completes with true when compression is used, false when the server does not
+     * support it
+     */
+    public CompletableFuture<Boolean> negotiateCompression(int threshold) {
+        return negotiateBinaryFraming()
+                .thenCompose(binary -> binary ? capabilitiesAsync() : CompletableFuture.completedFuture(null))
+                .thenCompose(supported -> {
+                    if (supported == null || !supported.supports(Command.COMPRESS)) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    MessageCompressor current = compressor;
+                    if (current == null || current.getThreshold() != threshold) {
+                        // Needed before the request goes out, the server may send compressed messages right after it
+                        compressor = new MessageCompressor(threshold);
+                    }
+                    return sendRequest(pendingCompression,
+                            Command.COMPRESS.getKeyword() + " " + MessageCompressor.ALGORITHM);
+                });
+    }
+
+    /**
+     * @return true when large messages are sent compressed
+     */
+    public boolean isCompressing() {
+        return compressOut;
+    }
+
+    /**
+     * @return Compression ratio and CPU time spent on compression, null if compression was never
+     * negotiated
+     */
+    public MessageCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Send a command which the server answers with a reply, and remember the future that the
+     * reply will complete. The future is queued before the command is sent, so the reply can
+     * never arrive before its future is in place.
+     *
+     * @param pending The queue of requests waiting for the same kind of reply
+     * @param cmd     The command to send
+     * @return The future completed by the reply
+     */
+    private <T> CompletableFuture<T> sendRequest(Queue<CompletableFuture<T>> pending, String cmd) {
+        CompletableFuture<T> reply = new CompletableFuture<>();
+        pending.add(reply);
+        awaitingReplies.add(pending);
+        if (!sendCommand(cmd)) {
+            awaitingReplies.removeLastOccurrence(pending);
+            pending.remove(reply);
+            reply.completeExceptionally(new IOException("Could not send " + cmd));
+            return reply;
         }
-        return false;
+        long timeout = requestTimeoutMillis;
+        if (timeout > 0) {
+            // A late reply still takes this future off the queue, so the replies stay in order
+            reply.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+        return reply;
     }
 
     /**
-     * Send a public message to all the recipients.
+     * Like sendRequest(), and record the time until the reply arrives.
      *
-     * @param message Message to send
-     * @return true if message sent, false on error
+     * @param pending The queue of requests waiting for the same kind of reply
+     * @param cmd     The command to send
+     * @param latency Where to record the round-trip time
+     * @return The future completed by the reply
      */
-    public boolean sendPublicMessage(String message) {
-        try {
-            if(message.equals("/joke")){
-                sendCommand("joke");
-                return true;
-            } else {
-                sendCommand("msg " + message);
-                return true;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    private <T> CompletableFuture<T> sendTimedRequest(Queue<CompletableFuture<T>> pending, String cmd,
+                                                      ClientMetrics.Latency latency) {
+        long start = System.nanoTime();
+        CompletableFuture<T> reply = sendRequest(pending, cmd);
+        reply.thenRun(() -> latency.recordSince(start));
+        return reply;
+    }
+
+    /**
+     * Complete the oldest request of a kind with the reply that just arrived.
+     *
+     * @param pending The queue of requests waiting for this kind of reply
+     * @param value   The reply
+     */
+    private <T> void completeOldest(Queue<CompletableFuture<T>> pending, T value) {
+        awaitingReplies.removeFirstOccurrence(pending);
+        CompletableFuture<T> reply = pending.poll();
+        if (reply != null) {
+            reply.complete(value);
         }
-        return false;
     }
 
     /**
-     * Send a login request to the chat server.
+     * Fail the request which a cmderr answers: the oldest request of the kind named in the
+     * error text (framing, compression or presence), otherwise the oldest request of any kind.
      *
-     * @param username Username to use
+     * @param line The cmderr line
      */
-    public void tryLogin(String username) {
-        try {
-            sendCommand("login " + username);
-            refreshUserList();
-        }catch (Exception e){
-            e.printStackTrace();
+    private void failRequest(String line) {
+        String error = line.toLowerCase(Locale.ROOT);
+        Queue<? extends CompletableFuture<?>> pending;
+        if (error.contains(Command.COMPRESS.getKeyword())) {
+            pending = pendingCompression;
+        } else if (error.contains(Command.FRAMING.getKeyword())) {
+            pending = pendingFraming;
+        } else if (error.contains(Command.PRESENCE.getKeyword())) {
+            pending = pendingPresence;
+        } else {
+            pending = awaitingReplies.peekFirst();
+        }
+        if (pending == null) {
+            return;
+        }
+        awaitingReplies.removeFirstOccurrence(pending);
+        CompletableFuture<?> reply = pending.poll();
+        if (reply != null) {
+            reply.completeExceptionally(new ProtocolException(line));
         }
     }
 
     /**
-     * Send a request for latest user list to the server. To get the new users,
-     * clear your current user list and use events in the listener.
+     * Fail all requests still waiting for a reply, the connection is gone.
      */
-    public void refreshUserList() {
-        sendCommand("users");
-        // Hint: Use Wireshark and the provided chat client reference app to find out what commands the
-        // client and server exchange for user listing.
+    private void failPendingRequests() {
+        IOException closed = new IOException("Connection closed");
+        awaitingReplies.clear();
+        for (Queue<? extends CompletableFuture<?>> pending
+                : List.of(pendingLogins, pendingUserLists, pendingSupported, pendingPresence, pendingFraming,
+                pendingCompression)) {
+            CompletableFuture<?> reply;
+            while ((reply = pending.poll()) != null) {
+                reply.completeExceptionally(closed);
+            }
+        }
     }
 
     /**
@@ -146,10 +1216,13 @@ public class TCPClient {
      * @return true if message sent, false on error
      */
     public boolean sendPrivateMessage(String recipient, String message) {
+        CompletableFuture<Boolean> queued = queueIfReconnecting("privmsg " + recipient + " " + message);
+        if (queued != null) {
+            return queued.getNow(true);
+        }
         if (isConnectionActive()) {
             try {
-                sendCommand("privmsg " + recipient + " " + message);
-                return true;
+                return sendCommand("privmsg " + recipient + " " + message);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -157,13 +1230,29 @@ public class TCPClient {
             return false;
     }
 
+    /**
+     * Send a private message to a single recipient. In batched mode the future completes when
+     * the batch containing the message has been written.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return Completes with true if the message was sent, false on error
+     */
+    public CompletableFuture<Boolean> sendPrivateMessageAsync(String recipient, String message) {
+        CompletableFuture<Boolean> queued = queueIfReconnecting("privmsg " + recipient + " " + message);
+        if (queued != null) {
+            return queued;
+        }
+        return sendCommandAsync("privmsg " + recipient + " " + message);
+    }
+
 
     /**
      * Send a request for the list of commands that server supports.
      */
     public void askSupportedCommands() {
         try {
-            sendCommand("help");
+            supportedCommandsAsync();
 
         }catch (Exception e){
             e.printStackTrace();
@@ -175,22 +1264,22 @@ public class TCPClient {
     /**
      * Wait for chat server's response
      *
-     * @return one line of text (one command) received from the server
+     * @param socket  The socket being read
+     * @param channel The channel of that socket
+     * @param buffer  Where to put the received bytes
+     * @return number of bytes received, -1 when the connection was closed or failed
      */
-    private String waitServerResponse() {
-        String response = null;
+    private int waitServerResponse(Socket socket, SocketChannel channel, ByteBuffer buffer) {
+        int length = -1;
         try {
-           response = fromServer.readLine();
-           if (response == null) {
-               disconnect();
-           }
-
+           length = channel.read(buffer);
         } catch (Exception e){
-            e.printStackTrace();
-            disconnect();
+            // Only an error if we did not close the socket ourselves
+            if (socket == connection) {
+                e.printStackTrace();
+            }
     }
-        // with the stream and hence the socket. Probably a good idea to close the socket in that case.
-        return response;
+        return length;
     }
 
     /**
@@ -207,79 +1296,168 @@ public class TCPClient {
     }
 
     /**
-     * Start listening for incoming commands from the server in a new CPU thread.
+     * Start listening for incoming commands from the server in a new CPU thread. In NIO mode no
+     * thread is started, the shared selector loop starts delivering the incoming commands instead.
      */
     public void startListenThread() {
+        NioSession session = nioSession;
+        if (session != null) {
+            session.startReading();
+            return;
+        }
+        Socket socket = connection;
+        SocketChannel channel = fromServer;
+        InboundDecoder decoder = inbound;
+        if (socket == null) {
+            return;
+        }
         // Call parseIncomingCommands() in the new thread.
-        Thread t = new Thread(this::parseIncomingCommands);
+        Thread t = threadFactory.newThread(() -> parseIncomingCommands(socket, channel, decoder));
         t.start();
     }
 
     /**
      * Read incoming messages one by one, generate events for the listeners. A loop that runs until
-     * the connection is closed.
+     * the connection is closed. The thread sticks to the socket it was started for, so that
+     * after a reconnect it can't mistake the new connection for its own.
+     *
+     * @param socket  The socket to read from
+     * @param channel The channel of that socket
+     * @param decoder Splits the received bytes into commands, owns the receive buffer
      */
-    private void parseIncomingCommands() {
-        while (isConnectionActive()) {
-            String response = waitServerResponse();
-            String regex = " ";
-            String command = response.split(regex)[0];
-
-            System.out.println(command);
-            switch (command) {
-
-                case "loginok":
-                    onLoginResult(true, "Log in OK!");
-                    break;
-
-                case "loginerr":
-                    onLoginResult(false,"Log in error");
-                    break;
-
-                case "users":
-                    onUsersList(filterCommandAndGetStringList(response));
-                    break;
-
-                case "msg":
-                    onMsgReceived(false, response.split(regex)[1],response.split(regex, 3)[2]);
-                    break;
-
-                case "privmsg":
-                    onMsgReceived(true, response.split(regex)[1], response.split(regex, 3)[2]);
-                    break;
-
-                case "msgerr":
-                    onMsgError(response + "\n The message didnt go thru");
-                    break;
-
-                case "cmderr":
-                    onCmdError(response + "\n The commmand was invalid");
-                    break;
+    private void parseIncomingCommands(Socket socket, SocketChannel channel, InboundDecoder decoder) {
+        while (waitServerResponse(socket, channel, decoder.getReceiveBuffer()) >= 0) {
+            try {
+                decoder.decodeReceived();
+            } catch (ProtocolException e) {
+                System.out.println("Invalid data from the server: " + e.getMessage());
+                break;
+            }
+        }
+        connectionLost(socket);
+    }
 
-                case "supported":
-                    onSupported(response.split(regex));
-                    break;
+    /**
+     * Generate events for the listeners for one command received from the server. Called on the
+     * listen thread in blocking mode, and on an I/O thread of the selector loop in NIO mode.
+     * Package-private so that the benchmarks can measure listener dispatch without a socket.
+     *
+     * @param response One line of text (one command) received from the server
+     */
+    void handleServerResponse(String response) {
+        long start = System.nanoTime();
+        Command command = CommandDecoder.decode(response, dispatcher);
+        metrics.commandReceived(command);
+        metrics.dispatched(System.nanoTime() - start);
+    }
 
-                case "joke":
-                    onJoke(response);
-                    break;
+    /**
+     * Generate events for the listeners for one command received from the server, still as
+     * bytes. The arguments are only decoded if a listener or a waiting request needs them.
+     *
+     * @param command The command, identified from the bytes
+     * @param args    The arguments, for UNKNOWN the whole line
+     * @throws ProtocolException When a compressed message is invalid
+     */
+    private void handleServerCommand(Command command, ByteSlice args) throws ProtocolException {
+        metrics.commandReceived(command);
+        if (!isWanted(command)) {
+            // Nobody would see it, so don't decode it
+            return;
+        }
+        long start = System.nanoTime();
+        switch (command) {
+            case MSG:
+            case PRIVMSG:
+                // The most frequent command: only the sender and the text are decoded
+                int senderEnd = args.indexOf(' ', 0);
+                if (senderEnd < 0) {
+                    senderEnd = args.length();
+                }
+                int textStart = Math.min(senderEnd + 1, args.length());
+                onMsgReceived(command == Command.PRIVMSG, senderNames.intern(args, 0, senderEnd),
+                        args.toString(textStart, args.length()));
+                break;
+            case ZMSG:
+            case ZPRIVMSG:
+                handleCompressed(command, args.toByteArray());
+                break;
+            default:
+                handleServerFrame(command, args.toString());
+                break;
+        }
+        metrics.dispatched(System.nanoTime() - start);
+    }
 
-                default:
-                    break;
-            }
-            // Hint: Reuse waitServerResponse() method
-            // Hint: Have a switch-case (or other way) to check what type of response is received from the server
-            // and act on it.
-            // Hint: In Step 3 you need to handle only login-related responses.
-            // Hint: In Step 3 reuse onLoginResult() method
-            // Hint: In Step 5 reuse onUserList() method
-            // TODO Step 7: add support for incoming message errors (type: msgerr)
-            // TODO Step 7: add support for incoming command errors (type: cmderr)
-            // Hint for Step 7: call corresponding onXXX() methods which will notify all the listeners
-            // TODO Step 8: add support for incoming supported command list (type: supported)
+    /**
+     * @param command A command received from the server
+     * @return true if a listener or a waiting request needs the command's content
+     */
+    private boolean isWanted(Command command) {
+        switch (command) {
+            case UNKNOWN:
+                return false;
+            case MSG:
+            case PRIVMSG:
+            case ZMSG:
+            case ZPRIVMSG:
+                return listeners.get(ChatEvent.MESSAGE).length > 0;
+            case USERS:
+                return !pendingUserLists.isEmpty() || listeners.get(ChatEvent.USER_LIST).length > 0;
+            case SUPPORTED:
+                return !pendingSupported.isEmpty() || listeners.get(ChatEvent.SUPPORTED_COMMANDS).length > 0;
+            case MSGERR:
+                return listeners.get(ChatEvent.MESSAGE_ERROR).length > 0;
+            case CMDERR:
+                return !awaitingReplies.isEmpty() || listeners.get(ChatEvent.COMMAND_ERROR).length > 0;
+            case JOKE:
+                return listeners.get(ChatEvent.JOKE).length > 0;
+            case JOINED:
+                return listeners.get(ChatEvent.USER_JOINED).length > 0;
+            case LEFT:
+                return listeners.get(ChatEvent.USER_LEFT).length > 0;
+            default:
+                // Replies which complete requests or change the state of the connection
+                return true;
+        }
+    }
 
+    /**
+     * Generate events for the listeners for one command whose arguments are decoded already.
+     *
+     * @param command The command
+     * @param args    The arguments, for UNKNOWN the whole line
+     */
+    private void handleServerFrame(Command command, String args) {
+        CommandDecoder.decodeFrame(command, args, dispatcher);
+    }
 
+    /**
+     * Decompress a ZMSG or ZPRIVMSG frame and generate the message event.
+     *
+     * @param command ZMSG or ZPRIVMSG
+     * @param payload The payload of the frame
+     * @throws ProtocolException When the message is invalid, or compression was not negotiated
+     */
+    private void handleCompressed(Command command, byte[] payload) throws ProtocolException {
+        MessageCompressor currentCompressor = compressor;
+        if (currentCompressor == null) {
+            throw new ProtocolException("Compressed message, but compression was not negotiated");
+        }
+        String args;
+        try {
+            args = currentCompressor.decodeArgs(payload, true);
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Invalid compressed message: " + e.getMessage());
         }
+        handleServerFrame(command == Command.ZMSG ? Command.MSG : Command.PRIVMSG, args);
+    }
+
+    /**
+     * @return Counters and timings of this client. Call register() on them to publish them over JMX.
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -288,9 +1466,19 @@ public class TCPClient {
      * @param listener
      */
     public void addListener(ChatListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
-        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Register a listener only for some types of events, for example a message logger which
+     * should not be called for every user list.
+     *
+     * @param listener The listener
+     * @param first    An event type the listener wants
+     * @param rest     More event types
+     */
+    public void addListener(ChatListener listener, ChatEvent first, ChatEvent... rest) {
+        listeners.add(listener, EnumSet.of(first, rest));
     }
 
     /**
@@ -316,7 +1504,7 @@ public class TCPClient {
      * @param errMsg  Error message if any
      */
     private void onLoginResult(boolean success, String errMsg) {
-        for (ChatListener l : listeners) {
+        for (ChatListener l : listeners.get(ChatEvent.LOGIN_RESULT)) {
             l.onLoginResult(success, errMsg);
         }
     }
@@ -326,18 +1514,39 @@ public class TCPClient {
      * Internet error)
      */
     private void onDisconnect() {
-        for (ChatListener l : listeners) {
+        for (ChatListener l : listeners.get(ChatEvent.DISCONNECT)) {
             l.onDisconnect();
         }
     }
 
+    /**
+     * Notify listeners that the connection was lost and a reconnect attempt is coming
+     *
+     * @param attempt     Number of the attempt, starting at 1
+     * @param delayMillis Time until the attempt
+     */
+    private void onReconnecting(int attempt, long delayMillis) {
+        for (ChatListener l : listeners.get(ChatEvent.RECONNECTING)) {
+            l.onReconnecting(attempt, delayMillis);
+        }
+    }
+
+    /**
+     * Notify listeners that the connection and the login were restored
+     */
+    private void onReconnected() {
+        for (ChatListener l : listeners.get(ChatEvent.RECONNECTED)) {
+            l.onReconnected();
+        }
+    }
+
     /**
      * Notify listeners that server sent us a list of currently connected users
      *
      * @param users List with usernames
      */
     private void onUsersList(String[] users) {
-        for (ChatListener l : listeners) {
+        for (ChatListener l : listeners.get(ChatEvent.USER_LIST)) {
             l.onUserList(users);
         }
     }
@@ -350,8 +1559,14 @@ public class TCPClient {
      * @param text   Message text
      */
     private void onMsgReceived(boolean priv, String sender, String text) {
-        for (ChatListener l : listeners) {
-            l.onMessageReceived(new TextMessage(sender, priv, text));
+        ChatListener[] receivers = listeners.get(ChatEvent.MESSAGE);
+        if (receivers.length == 0) {
+            return;
+        }
+        // TextMessage is immutable, one instance is enough for all listeners
+        TextMessage message = new TextMessage(sender, priv, text);
+        for (ChatListener l : receivers) {
+            l.onMessageReceived(message);
         }
     }
 
@@ -361,7 +1576,7 @@ public class TCPClient {
      * @param errMsg Error description returned by the server
      */
     private void onMsgError( String errMsg) {
-        for (ChatListener l : listeners) {
+        for (ChatListener l : listeners.get(ChatEvent.MESSAGE_ERROR)) {
             l.onMessageError(errMsg);
         }
     }
@@ -372,7 +1587,7 @@ public class TCPClient {
      * @param errMsg Error message
      */
     private void onCmdError(String errMsg) {
-        for (ChatListener l : listeners) {
+        for (ChatListener l : listeners.get(ChatEvent.COMMAND_ERROR)) {
             l.onCommandError(errMsg);
         }
     }
@@ -384,17 +1599,39 @@ public class TCPClient {
      * @param commands Commands supported by the server
      */
     private void onSupported(String[] commands) {
-        for (ChatListener l : listeners) {
+        for (ChatListener l : listeners.get(ChatEvent.SUPPORTED_COMMANDS)) {
             l.onSupportedCommands(commands);
         }
     }
 
     private void onJoke(String joke){
-        for(ChatListener l : listeners){
+        for (ChatListener l : listeners.get(ChatEvent.JOKE)) {
             l.onJoke(joke);
         }
     }
 
+    /**
+     * Notify listeners that a user logged in (presence event)
+     *
+     * @param username The user who joined
+     */
+    private void onUserJoined(String username) {
+        for (ChatListener l : listeners.get(ChatEvent.USER_JOINED)) {
+            l.onUserJoined(username);
+        }
+    }
+
+    /**
+     * Notify listeners that a user logged out or disconnected (presence event)
+     *
+     * @param username The user who left
+     */
+    private void onUserLeft(String username) {
+        for (ChatListener l : listeners.get(ChatEvent.USER_LEFT)) {
+            l.onUserLeft(username);
+        }
+    }
+
     /**
      * @param stringList The list of strings.
      * @param regex The string that will be between array indices.
@@ -409,20 +1646,130 @@ public class TCPClient {
         return resultString.toString();
 
     }
+
     /**
-     *
-     * @param string The string to be filtered. The first word separated by spaces is removed.
-     * @return stringList An array with the filtered strings.
+     * Turns decoded commands into listener events. Strings are only cut out of the line for the
+     * arguments that the events need.
      */
-    private String[] filterCommandAndGetStringList(String string) {
-        String[] stringList = string.split(" ");
-        ArrayList<String> stringArrayList = new ArrayList<String>(Arrays.asList(stringList));
-        //Trims the first "word" from the array
-        stringArrayList.remove(0);
-        stringList = stringArrayList.toArray(new String[0]);
-        return stringList;
+    private class ListenerDispatcher implements CommandDecoder.Handler {
+        @Override
+        public void onLoginResult(boolean success, String line) {
+            String result = success ? "Log in OK!" : "Log in error";
+            int textStart = line.indexOf(' ');
+            completeOldest(pendingLogins, new LoginResult(success,
+                    textStart > 0 ? line.substring(textStart + 1) : result));
+            TCPClient.this.onLoginResult(success, result);
+        }
+
+        @Override
+        public void onUsers(String line, int listStart) {
+            String[] users = CommandDecoder.words(line, listStart);
+            completeOldest(pendingUserLists, List.of(users));
+            onUsersList(users);
+        }
+
+        @Override
+        public void onMessage(boolean priv, String line, int senderStart, int senderEnd, int textStart) {
+            onMsgReceived(priv, senderNames.intern(line.substring(senderStart, senderEnd)), line.substring(textStart));
+        }
+
+        @Override
+        public void onMessageError(String line) {
+            onMsgError(line + "\n The message didnt go thru");
+        }
+
+        @Override
+        public void onCommandError(String line) {
+            failRequest(line);
+            onCmdError(line + "\n The commmand was invalid");
+        }
+
+        @Override
+        public void onSupported(String line, int listStart) {
+            String[] commands = CommandDecoder.words(line, listStart);
+            ServerCapabilities supported = new ServerCapabilities(List.of(commands));
+            CompletableFuture<ServerCapabilities> inFlight;
+            synchronized (capabilityLock) {
+                inFlight = capabilities;
+                if (inFlight == null || inFlight.isDone()) {
+                    // Replaces an earlier answer
+                    capabilities = CompletableFuture.completedFuture(supported);
+                    inFlight = null;
+                }
+            }
+            if (inFlight != null) {
+                // The answer to capabilitiesAsync(), set before anyone waiting for it continues
+                capabilitiesNegotiated = true;
+                // Outside the lock, negotiations waiting for the answer continue right away
+                inFlight.complete(supported);
+            }
+            completeOldest(pendingSupported, List.of(commands));
+            TCPClient.this.onSupported(commands);
+        }
+
+        @Override
+        public void onJoke(String line) {
+            TCPClient.this.onJoke(line);
+        }
+
+        @Override
+        public void onPresenceOk() {
+            presenceActive = true;
+            completeOldest(pendingPresence, true);
+        }
+
+        @Override
+        public void onUserJoined(String line, int userStart) {
+            TCPClient.this.onUserJoined(line.substring(userStart));
+        }
+
+        @Override
+        public void onUserLeft(String line, int userStart) {
+            TCPClient.this.onUserLeft(line.substring(userStart));
+        }
+
+        @Override
+        public void onFramingOk() {
+            // Called while the decoder handles this line, the next bytes are read as frames
+            InboundDecoder decoder = inbound;
+            if (decoder != null) {
+                decoder.setBinary(true);
+            }
+            completeOldest(pendingFraming, true);
+        }
+
+        @Override
+        public void onCompressOk() {
+            compressOut = true;
+            completeOldest(pendingCompression, true);
+        }
     }
 
+    /**
+     * Receives the commands decoded from the bytes sent by the server.
+     */
+    private class ServerCommandSink implements InboundDecoder.Sink {
+        @Override
+        public void onCommand(Command command, ByteSlice args) throws ProtocolException {
+            handleServerCommand(command, args);
+        }
+
+        @Override
+        public void onBytesReceived(int bytes) {
+            metrics.bytesReceived(bytes);
+        }
+    }
 
+    /**
+     * A message waiting in the outbox, and the future telling the sender what became of it.
+     */
+    private static class OutboxEntry {
+        final String command;
+        final CompletableFuture<Boolean> sent;
 
+        OutboxEntry(String command, CompletableFuture<Boolean> sent) {
+            this.command = command;
+            this.sent = sent;
+        }
+    }
 }
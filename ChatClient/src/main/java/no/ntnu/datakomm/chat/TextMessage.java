@@ -1,15 +1,25 @@
 package no.ntnu.datakomm.chat;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
- * Represents a chat message
+ * Represents a chat message. The text is kept either as a String or, to save memory when many
+ * messages are retained, as UTF-8 bytes which are decoded when the text is asked for. Messages
+ * are equal when sender, recipient, privacy and text are equal, whichever way the text is kept.
+ * The recipient is only known for private messages we sent; received private messages are for us.
  */
 public class TextMessage {
 
     private final String sender;
     private final boolean priv;
-    private final String text;
+    // A String, or the text as UTF-8 in a byte[]
+    private final Object text;
+    // Username of the recipient of a private message we sent, otherwise null
+    private final String recipient;
+    // Cached hash code, 0 when not computed yet
+    private int hash;
 
     /**
      * @param sender Username of the sender
@@ -17,9 +27,35 @@ public class TextMessage {
      * @param text Text of the message
      */
     public TextMessage(String sender, boolean priv, String text) {
+        this(sender, priv, text, null);
+    }
+
+    /**
+     * @param sender    Username of the sender
+     * @param recipient Username of the recipient of a private message, null for a public one
+     * @param text      Text of the message
+     */
+    public TextMessage(String sender, String recipient, String text) {
+        this(sender, recipient != null, text, recipient);
+    }
+
+    /**
+     * Create a message which keeps its text as UTF-8. The array is used as it is, and must not
+     * be changed afterwards.
+     *
+     * @param sender    Username of the sender
+     * @param priv      When true, message is private
+     * @param utf8Text  Text of the message, as UTF-8
+     */
+    public TextMessage(String sender, boolean priv, byte[] utf8Text) {
+        this(sender, priv, utf8Text, null);
+    }
+
+    private TextMessage(String sender, boolean priv, Object text, String recipient) {
         this.sender = sender;
         this.priv = priv;
         this.text = text;
+        this.recipient = recipient;
     }
 
     public String getSender() {
@@ -30,27 +66,70 @@ public class TextMessage {
         return priv;
     }
 
+    /**
+     * @return Username of the recipient of a private message we sent, null if not known
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    /**
+     * @return The text. Decoded on every call when the message keeps UTF-8.
+     */
     public String getText() {
-        return text;
+        return text instanceof byte[] ? new String((byte[]) text, StandardCharsets.UTF_8) : (String) text;
+    }
+
+    /**
+     * @return A copy of the message which keeps its text as UTF-8
+     */
+    public TextMessage toUtf8() {
+        return text instanceof String
+                ? new TextMessage(sender, priv, ((String) text).getBytes(StandardCharsets.UTF_8), recipient)
+                : this;
     }
 
     @Override
     public String toString() {
-        return (priv ? "PRIVATE " : "") + " from " + sender + ": " + text;
+        return (priv ? "PRIVATE " : "") + " from " + sender + (recipient != null ? " to " + recipient : "")
+                + ": " + getText();
     }
 
     @Override
     public boolean equals(Object o) {
-        return o != null && o.hashCode() == this.hashCode();
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TextMessage)) {
+            return false;
+        }
+        TextMessage other = (TextMessage) o;
+        if (priv != other.priv || !Objects.equals(sender, other.sender)
+                || !Objects.equals(recipient, other.recipient)) {
+            return false;
+        }
+        if (text instanceof byte[] && other.text instanceof byte[]) {
+            return Arrays.equals((byte[]) text, (byte[]) other.text);
+        }
+        // When both hash codes are known already, they rule out most differences cheaply
+        if (hash != 0 && other.hash != 0 && hash != other.hash) {
+            return false;
+        }
+        return Objects.equals(getText(), other.getText());
     }
 
     @Override
     public int hashCode() {
-        int hash = 3;
-        hash = 71 * hash + Objects.hashCode(this.sender);
-        hash = 71 * hash + (this.priv ? 1 : 0);
-        hash = 71 * hash + Objects.hashCode(this.text);
-        return hash;
+        int h = hash;
+        if (h == 0) {
+            h = 3;
+            h = 71 * h + Objects.hashCode(sender);
+            h = 71 * h + (priv ? 1 : 0);
+            h = 71 * h + Objects.hashCode(recipient);
+            h = 71 * h + Objects.hashCode(getText());
+            hash = h;
+        }
+        return h;
     }
 
 }
@@ -0,0 +1,61 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+
+/**
+ * Writes every received message to a TranscriptLog. Register it for messages only:
+ *
+ * <pre>
+ *     tcpClient.addListener(new TranscriptListener(transcript), ChatEvent.MESSAGE);
+ * </pre>
+ *
+ * Messages sent by this client are not reported to listeners; append them to the transcript
+ * directly.
+ */
+public class TranscriptListener implements ChatListener {
+    private final TranscriptLog transcript;
+
+    /**
+     * @param transcript The transcript to write to
+     */
+    public TranscriptListener(TranscriptLog transcript) {
+        this.transcript = transcript;
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        try {
+            transcript.append(message);
+        } catch (IOException e) {
+            System.out.println("Could not write the message to the transcript: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+
+    @Override
+    public void onJoke(String joke) {
+    }
+}
@@ -0,0 +1,381 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only transcript of chat messages on disk, for audit. The messages are written to
+ * segment files (transcript-000000.log, transcript-000001.log, ...) which are memory-mapped, so
+ * an append is a copy into memory; the operating system writes the pages to disk. What was
+ * appended survives a crash of the process. To also survive a crash of the machine, the pages
+ * are forced to disk according to the SyncPolicy.
+ * <p>
+ * Each message is one binary record:
+ *
+ * <pre>
+ *     int   length of the rest of the record, after the checksum
+ *     int   CRC32 of the rest of the record
+ *     long  time the message was appended, in milliseconds since the epoch
+ *     byte  flags, 1 = private message, 2 = the recipient follows the sender
+ *     short length of the sender in bytes
+ *     the sender, as UTF-8
+ *     short length of the recipient in bytes, and the recipient, only with flag 2
+ *     the text, as UTF-8
+ *     int   the length again
+ * </pre>
+ *
+ * A length of 0 marks the end of a segment. When the log is opened, the last segment is
+ * scanned up to the first record which is incomplete or fails the checksum (a write cut short
+ * by a crash), and appending continues there. readLast() walks back from the end of the
+ * records with the lengths at their ends, and only decodes the records it returns.
+ */
+public class TranscriptLog implements Closeable {
+    /**
+     * When the appended records are forced to disk.
+     */
+    public enum SyncPolicy {
+        /**
+         * After every record. Nothing is lost, but each append waits for the disk.
+         */
+        EVERY_MESSAGE,
+        /**
+         * Every sync interval, if something was appended. A crash of the machine loses at most
+         * the records of the last interval.
+         */
+        INTERVAL,
+        /**
+         * Only when sync() or close() is called, otherwise when the operating system decides.
+         */
+        NONE
+    }
+
+    private static final String SEGMENT_PREFIX = "transcript-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Length and checksum fields
+    private static final int RECORD_HEADER = 8;
+    // Timestamp, flags and sender length
+    private static final int RECORD_FIELDS = 8 + 1 + 2;
+    // The length at the end
+    private static final int RECORD_TRAILER = 4;
+    private static final byte FLAG_PRIVATE = 1;
+    private static final byte FLAG_RECIPIENT = 2;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final SyncPolicy policy;
+    private final ScheduledExecutorService syncThread;
+    private final CRC32 crc = new CRC32();
+    // Keeps other writers from using the same transcript
+    private final FileChannel lockFile;
+
+    private int segmentIndex;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    // Where the next record goes in the current segment
+    private int position;
+    private boolean dirty = false;
+    private boolean closed = false;
+
+    /**
+     * Open the transcript in a directory, and continue after its last record.
+     *
+     * @param directory          Directory of the segment files, created if needed
+     * @param segmentBytes       Size of a segment file. A record larger than this gets a
+     *                           segment of its own.
+     * @param policy             When the records are forced to disk
+     * @param syncIntervalMillis Time between syncs for SyncPolicy.INTERVAL
+     * @throws IOException When the directory or the last segment could not be opened
+     */
+    public TranscriptLog(Path directory, int segmentBytes, SyncPolicy policy, long syncIntervalMillis)
+            throws IOException {
+        if (segmentBytes < RECORD_HEADER + RECORD_FIELDS + RECORD_TRAILER) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentBytes);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.policy = policy;
+        Files.createDirectories(directory);
+        lockFile = FileChannel.open(directory.resolve("transcript.lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        boolean locked;
+        try {
+            locked = lockFile.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            // Open in this process already
+            locked = false;
+        }
+        if (!locked) {
+            lockFile.close();
+            throw new IOException("Transcript " + directory + " is in use already");
+        }
+        List<Path> segments = getSegments();
+        if (segments.isEmpty()) {
+            openSegment(0, segmentBytes);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            openSegment(indexOf(last), (int) Math.max(segmentBytes, Files.size(last)));
+            recover();
+        }
+        if (policy == SyncPolicy.INTERVAL) {
+            syncThread = Executors.newSingleThreadScheduledExecutor(SessionThreads.factory("chat-transcript-sync-"));
+            syncThread.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncThread = null;
+        }
+    }
+
+    /**
+     * @return The segment files, oldest first
+     * @throws IOException When the directory could not be read
+     */
+    public List<Path> getSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        // The index is zero-padded, so the names sort in index order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param message The message
+     * @throws IOException When a new segment could not be created
+     */
+    public void append(TextMessage message) throws IOException {
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] recipient = message.getRecipient() != null
+                ? message.getRecipient().getBytes(StandardCharsets.UTF_8) : null;
+        byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+        if (sender.length > 0xFFFF || (recipient != null && recipient.length > 0xFFFF)) {
+            throw new IllegalArgumentException("Sender or recipient too long");
+        }
+        // Sender, and the recipient with its length
+        int names = sender.length + (recipient != null ? 2 + recipient.length : 0);
+        int bodyLength = RECORD_FIELDS + names + text.length;
+        int recordLength = RECORD_HEADER + bodyLength + RECORD_TRAILER;
+        MappedByteBuffer full = null;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Transcript is closed");
+            }
+            if (segment.capacity() - position < recordLength) {
+                // Forced below, the mapping stays valid after its channel is closed
+                full = segment;
+                channel.close();
+                openSegment(segmentIndex + 1, Math.max(segmentBytes, recordLength));
+            }
+            int body = position + RECORD_HEADER;
+            segment.putLong(body, System.currentTimeMillis());
+            byte flags = (byte) ((message.isPrivate() ? FLAG_PRIVATE : 0) | (recipient != null ? FLAG_RECIPIENT : 0));
+            segment.put(body + 8, flags);
+            segment.putShort(body + 9, (short) sender.length);
+            segment.put(body + RECORD_FIELDS, sender);
+            if (recipient != null) {
+                segment.putShort(body + RECORD_FIELDS + sender.length, (short) recipient.length);
+                segment.put(body + RECORD_FIELDS + sender.length + 2, recipient);
+            }
+            segment.put(body + RECORD_FIELDS + names, text);
+            segment.putInt(body + bodyLength, bodyLength);
+            segment.putInt(position + 4, checksum(segment, body, bodyLength));
+            // The length goes in last: until then the record does not exist for a reader
+            segment.putInt(position, bodyLength);
+            position += recordLength;
+            dirty = true;
+        }
+        if (full != null) {
+            full.force();
+        }
+        if (policy == SyncPolicy.EVERY_MESSAGE) {
+            sync();
+        }
+    }
+
+    /**
+     * Read the newest messages, from all segments.
+     *
+     * @param count Maximum number of messages
+     * @return The messages, oldest first
+     * @throws IOException When a segment could not be read
+     */
+    public synchronized List<TextMessage> readLast(int count) throws IOException {
+        List<TextMessage> messages = new ArrayList<>();
+        List<Path> segments = getSegments();
+        for (int i = segments.size() - 1; i >= 0 && messages.size() < count; i--) {
+            MappedByteBuffer buffer;
+            int end;
+            if (indexOf(segments.get(i)) == segmentIndex) {
+                buffer = segment;
+                end = position;
+            } else {
+                // A full segment: its records were complete when the next segment was started
+                try (FileChannel file = FileChannel.open(segments.get(i), StandardOpenOption.READ)) {
+                    buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                }
+                end = recordsEnd(buffer);
+            }
+            while (end > 0 && messages.size() < count) {
+                int start = end - RECORD_TRAILER - buffer.getInt(end - RECORD_TRAILER) - RECORD_HEADER;
+                messages.add(decode(buffer, start));
+                end = start;
+            }
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    /**
+     * Force the appended records to disk. Appending goes on while the records are forced, the
+     * lock is only held to find out what must be forced.
+     */
+    public void sync() {
+        MappedByteBuffer toForce;
+        synchronized (this) {
+            if (closed || !dirty) {
+                return;
+            }
+            toForce = segment;
+            // Records appended from now on make it dirty again, and are forced next time
+            dirty = false;
+        }
+        try {
+            toForce.force();
+        } catch (UncheckedIOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sync and close the transcript.
+     *
+     * @throws IOException When the segment file could not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (syncThread != null) {
+            syncThread.shutdown();
+        }
+        // Nothing can be appended while the lock is held
+        segment.force();
+        closed = true;
+        channel.close();
+        lockFile.close();
+    }
+
+    private void openSegment(int index, int size) throws IOException {
+        Path file = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segmentIndex = index;
+        position = 0;
+    }
+
+    /**
+     * Find the end of the valid records in the current segment, and clear what a cut-short
+     * write left behind it.
+     */
+    private void recover() {
+        position = scan(segment, segment.capacity());
+        if (segment.capacity() - position >= 4 && segment.getInt(position) != 0) {
+            for (int i = position; i < segment.capacity(); i++) {
+                segment.put(i, (byte) 0);
+            }
+            segment.force();
+        }
+    }
+
+    /**
+     * @return The end of the valid records in the buffer, checked with their checksums
+     */
+    private int scan(MappedByteBuffer buffer, int limit) {
+        int pos = 0;
+        while (limit - pos >= RECORD_HEADER) {
+            int length = buffer.getInt(pos);
+            if (length < RECORD_FIELDS || length > limit - pos - RECORD_HEADER - RECORD_TRAILER
+                    || buffer.getInt(pos + RECORD_HEADER + length) != length
+                    || buffer.getInt(pos + 4) != checksum(buffer, pos + RECORD_HEADER, length)) {
+                break;
+            }
+            pos += RECORD_HEADER + length + RECORD_TRAILER;
+        }
+        return pos;
+    }
+
+    /**
+     * @return The end of the records in a full segment, found by their lengths only
+     */
+    private static int recordsEnd(MappedByteBuffer buffer) {
+        int pos = 0;
+        while (buffer.capacity() - pos >= RECORD_HEADER) {
+            int length = buffer.getInt(pos);
+            if (length < RECORD_FIELDS || length > buffer.capacity() - pos - RECORD_HEADER - RECORD_TRAILER) {
+                break;
+            }
+            pos += RECORD_HEADER + length + RECORD_TRAILER;
+        }
+        return pos;
+    }
+
+    private static TextMessage decode(MappedByteBuffer buffer, int offset) {
+        int length = buffer.getInt(offset);
+        int body = offset + RECORD_HEADER;
+        byte flags = buffer.get(body + 8);
+        int senderLength = buffer.getShort(body + 9) & 0xFFFF;
+        byte[] sender = new byte[senderLength];
+        buffer.get(body + RECORD_FIELDS, sender);
+        int names = senderLength;
+        byte[] recipient = null;
+        if ((flags & FLAG_RECIPIENT) != 0) {
+            recipient = new byte[buffer.getShort(body + RECORD_FIELDS + senderLength) & 0xFFFF];
+            buffer.get(body + RECORD_FIELDS + senderLength + 2, recipient);
+            names += 2 + recipient.length;
+        }
+        byte[] text = new byte[length - RECORD_FIELDS - names];
+        buffer.get(body + RECORD_FIELDS + names, text);
+        String from = new String(sender, StandardCharsets.UTF_8);
+        if (recipient != null) {
+            return new TextMessage(from, new String(recipient, StandardCharsets.UTF_8),
+                    new String(text, StandardCharsets.UTF_8));
+        }
+        return new TextMessage(from, (flags & FLAG_PRIVATE) != 0, new String(text, StandardCharsets.UTF_8));
+    }
+
+    private int checksum(MappedByteBuffer buffer, int offset, int length) {
+        crc.reset();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    private static int indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
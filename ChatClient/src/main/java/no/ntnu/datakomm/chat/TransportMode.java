@@ -0,0 +1,17 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The way a TCPClient talks to the chat server.
+ */
+public enum TransportMode {
+    /**
+     * One blocking socket per client, read by a dedicated listen thread.
+     */
+    BLOCKING,
+
+    /**
+     * Non-blocking socket channel, multiplexed together with other clients over the shared
+     * selector loop. No thread is owned by the client itself.
+     */
+    NIO
+}
@@ -0,0 +1,233 @@
+package no.ntnu.datakomm.chat.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import no.ntnu.datakomm.chat.SessionThreads;
+
+/**
+ * A local stand-in for the chat server, speaking the same text protocol. It can be embedded in
+ * tests and benchmarks (start it on port 0 to get a free port) or run on its own with main().
+ * Every client is served by its own session thread.
+ */
+public class ChatServer {
+    // Port used when the server is started from the command line
+    private static final int DEFAULT_PORT = 1300;
+    // Answers to "joke", handed out in turn
+    private static final String[] JOKES = {
+            "There are 10 kinds of people: those who understand binary and those who don't.",
+            "I would tell you a UDP joke, but you might not get it.",
+            "The best thing about TCP jokes is that you always get them, in order.",
+            "A SYN walks into a bar. The bartender says SYN-ACK. The SYN says ACK."
+    };
+
+    private final int requestedPort;
+    private final ThreadFactory sessionThreads = SessionThreads.factory("chat-server-session-");
+
+    // All connected clients, and the logged-in ones by username
+    private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+    private final Map<String, ClientSession> users = new ConcurrentHashMap<>();
+    private final AtomicInteger jokesTold = new AtomicInteger();
+
+    private volatile ServerSocket welcomeSocket;
+    private volatile boolean running = false;
+
+    /**
+     * @param port TCP port to listen on, 0 to pick a free port
+     */
+    public ChatServer(int port) {
+        this.requestedPort = port;
+    }
+
+    /**
+     * Run the server on the port given as the first argument (default 1300) until the
+     * process is stopped.
+     *
+     * @param args Command-line arguments
+     * @throws IOException When the port could not be opened
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        ChatServer server = new ChatServer(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+        System.out.println("Chat server listening on port " + server.getPort());
+    }
+
+    /**
+     * Open the welcome socket and start accepting clients on a background thread.
+     *
+     * @throws IOException When the port could not be opened
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        welcomeSocket = new ServerSocket(requestedPort, 1000);
+        running = true;
+        Thread acceptThread = new Thread(this::acceptClients, "chat-server-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * Stop accepting clients and close all client connections.
+     */
+    public synchronized void stop() {
+        running = false;
+        try {
+            if (welcomeSocket != null) {
+                welcomeSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (ClientSession session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * @return The port the server listens on, -1 when not started
+     */
+    public int getPort() {
+        ServerSocket socket = welcomeSocket;
+        return socket != null ? socket.getLocalPort() : -1;
+    }
+
+    /**
+     * @return Number of connected clients
+     */
+    public int getClientCount() {
+        return sessions.size();
+    }
+
+    private void acceptClients() {
+        while (running) {
+            try {
+                Socket socket = welcomeSocket.accept();
+                socket.setTcpNoDelay(true);
+                ClientSession session = new ClientSession(this, socket);
+                sessions.add(session);
+                sessionThreads.newThread(session).start();
+            } catch (SocketException e) {
+                // The welcome socket was closed by stop()
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Register a username for a session.
+     *
+     * @param session  The session logging in
+     * @param username The requested username
+     * @return true on success, false if the name is taken by another session
+     */
+    boolean login(ClientSession session, String username) {
+        ClientSession owner = users.putIfAbsent(username, session);
+        if (owner != null && owner != session) {
+            return false;
+        }
+        String oldName = session.getUsername();
+        if (oldName != null && !oldName.equals(username)) {
+            users.remove(oldName, session);
+            broadcastPresence("left " + oldName, session);
+        }
+        if (!username.equals(oldName)) {
+            broadcastPresence("joined " + username, session);
+        }
+        return true;
+    }
+
+    /**
+     * Forget a closed session.
+     *
+     * @param session The session which ended
+     */
+    void remove(ClientSession session) {
+        sessions.remove(session);
+        String username = session.getUsername();
+        if (username != null && users.remove(username, session)) {
+            broadcastPresence("left " + username, session);
+        }
+    }
+
+    /**
+     * @param username A username
+     * @return The session logged in with the name, null if there is none
+     */
+    ClientSession findUser(String username) {
+        return users.get(username);
+    }
+
+    /**
+     * @return Usernames of all logged-in clients
+     */
+    Collection<String> getUsernames() {
+        return users.keySet();
+    }
+
+    /**
+     * @return The next joke, without line breaks
+     */
+    String nextJoke() {
+        return JOKES[Math.floorMod(jokesTold.getAndIncrement(), JOKES.length)];
+    }
+
+    /**
+     * Send a line to every connected client except the sender.
+     *
+     * @param line   The line
+     * @param sender The session which must not receive it
+     * @return Number of recipients
+     */
+    int broadcast(String line, ClientSession sender) {
+        int count = 0;
+        for (ClientSession session : sessions) {
+            if (session != sender && session.send(line)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Relay a compressed message to every connected client except the sender. Clients without
+     * compression get the uncompressed line, which is created once for all of them.
+     *
+     * @param frame     The ZMSG frame
+     * @param plainLine Creates the uncompressed line
+     * @param sender    The session which must not receive it
+     * @return Number of recipients
+     */
+    int broadcastCompressed(byte[] frame, Supplier<String> plainLine, ClientSession sender) {
+        int count = 0;
+        for (ClientSession session : sessions) {
+            if (session != sender && session.sendCompressed(frame, plainLine)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Push a presence change to the clients which subscribed to presence events.
+     */
+    private void broadcastPresence(String line, ClientSession about) {
+        for (ClientSession session : sessions) {
+            if (session != about && session.wantsPresence()) {
+                session.send(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package no.ntnu.datakomm.chat.server;
+
+import no.ntnu.datakomm.chat.ByteSlice;
+import no.ntnu.datakomm.chat.Command;
+import no.ntnu.datakomm.chat.FrameCodec;
+import no.ntnu.datakomm.chat.InboundDecoder;
+import no.ntnu.datakomm.chat.MessageCompressor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+
+/**
+ * The server side of one client connection: reads the client's commands and answers them.
+ */
+class ClientSession implements Runnable, InboundDecoder.Sink {
+    // Commands listed in the reply to "help"
+    private static final String SUPPORTED = "supported login msg privmsg users help joke presence framing compress";
+
+    private final ChatServer server;
+    private final Socket socket;
+    private final OutputStream out;
+    private final InboundDecoder decoder = new InboundDecoder(this);
+
+    private volatile String username;
+    private volatile boolean presence = false;
+    // Whether lines sent to the client are encoded as binary frames. Guarded by this.
+    private boolean binaryOut = false;
+    // Set when the client switched on compression. Only used to decompress its messages for
+    // clients without compression; compressed messages are relayed as they are.
+    private volatile MessageCompressor compressor;
+
+    ClientSession(ChatServer server, Socket socket) throws IOException {
+        this.server = server;
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    boolean wantsPresence() {
+        return presence;
+    }
+
+    @Override
+    public void run() {
+        try {
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                decoder.feed(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            // Connection lost or invalid frame, the session ends below
+        } finally {
+            close();
+            server.remove(this);
+        }
+    }
+
+    @Override
+    public void onCommand(Command command, ByteSlice args) throws ProtocolException {
+        if (command.isCompressed()) {
+            relayCompressed(command, args.toByteArray());
+        } else if (command == Command.UNKNOWN) {
+            handleCommand(args.toString());
+        } else {
+            handleCommand(command.getKeyword() + " " + args);
+        }
+    }
+
+    /**
+     * Relay a ZMSG or ZPRIVMSG frame without decompressing it.
+     */
+    private void relayCompressed(Command command, byte[] payload) throws ProtocolException {
+        MessageCompressor senderCompressor = compressor;
+        if (senderCompressor == null) {
+            throw new ProtocolException("Compression was not negotiated");
+        }
+        if (!mustBeLoggedIn()) {
+            return;
+        }
+        int deflatedStart = 0;
+        if (command == Command.ZPRIVMSG) {
+            while (deflatedStart < payload.length && payload[deflatedStart] != ' ') {
+                deflatedStart++;
+            }
+            if (deflatedStart == payload.length) {
+                send("msgerr incorrect recipient");
+                return;
+            }
+            deflatedStart++;
+        }
+        // The payload for the recipients: the sender instead of the recipient, then the same deflated bytes
+        byte[] senderPrefix = (username + " ").getBytes(StandardCharsets.UTF_8);
+        byte[] relayed = new byte[senderPrefix.length + payload.length - deflatedStart];
+        System.arraycopy(senderPrefix, 0, relayed, 0, senderPrefix.length);
+        System.arraycopy(payload, deflatedStart, relayed, senderPrefix.length, payload.length - deflatedStart);
+        byte[] frame = FrameCodec.frame(command, relayed);
+        String keyword = command == Command.ZMSG ? "msg " : "privmsg ";
+        Supplier<String> plainLine = new Supplier<>() {
+            private String line;
+
+            @Override
+            public synchronized String get() {
+                if (line == null) {
+                    try {
+                        line = keyword + senderCompressor.decodeArgs(relayed, true);
+                    } catch (DataFormatException e) {
+                        line = "";
+                    }
+                }
+                return line;
+            }
+        };
+        if (command == Command.ZMSG) {
+            server.broadcastCompressed(frame, plainLine, this);
+        } else {
+            String recipientName = new String(payload, 0, deflatedStart - 1, StandardCharsets.UTF_8);
+            ClientSession recipient = server.findUser(recipientName);
+            if (recipient == null) {
+                send("msgerr incorrect recipient " + recipientName);
+            } else {
+                recipient.sendCompressed(frame, plainLine);
+            }
+        }
+    }
+
+    /**
+     * Answer one command received from the client.
+     *
+     * @param line The command line
+     */
+    private void handleCommand(String line) {
+        int space = line.indexOf(' ');
+        String command = space < 0 ? line : line.substring(0, space);
+        String args = space < 0 ? "" : line.substring(space + 1);
+        switch (command) {
+            case "login":
+                login(args);
+                break;
+            case "msg":
+                if (mustBeLoggedIn()) {
+                    server.broadcast("msg " + username + " " + args, this);
+                }
+                break;
+            case "privmsg":
+                if (mustBeLoggedIn()) {
+                    sendPrivate(args);
+                }
+                break;
+            case "users":
+                send("users " + String.join(" ", server.getUsernames()));
+                break;
+            case "help":
+                send(SUPPORTED);
+                break;
+            case "joke":
+                send("joke " + server.nextJoke());
+                break;
+            case "presence":
+                presence = !args.equals("off");
+                send("presenceok");
+                break;
+            case "framing":
+                switchFraming(args);
+                break;
+            case "compress":
+                switchCompression(args);
+                break;
+            default:
+                send("cmderr command not supported");
+                break;
+        }
+    }
+
+    private void login(String name) {
+        if (name.isEmpty() || !name.chars().allMatch(Character::isLetterOrDigit)) {
+            send("loginerr incorrect username format");
+        } else if (!server.login(this, name)) {
+            send("loginerr username already in use");
+        } else {
+            username = name;
+            send("loginok");
+        }
+    }
+
+    private void sendPrivate(String args) {
+        int space = args.indexOf(' ');
+        String recipientName = space < 0 ? args : args.substring(0, space);
+        String text = space < 0 ? "" : args.substring(space + 1);
+        ClientSession recipient = server.findUser(recipientName);
+        if (recipient == null) {
+            send("msgerr incorrect recipient " + recipientName);
+        } else {
+            recipient.send("privmsg " + username + " " + text);
+        }
+    }
+
+    /**
+     * Switch to binary frames in both directions. The reply is the last text line we send, and
+     * the decoder switches right after the request line, which is the last text line we read.
+     */
+    private void switchFraming(String args) {
+        if (!args.equals("binary")) {
+            send("cmderr unknown framing " + args);
+            return;
+        }
+        decoder.setBinary(true);
+        synchronized (this) {
+            send("framingok binary");
+            binaryOut = true;
+        }
+    }
+
+    /**
+     * Switch on compression. Needs binary framing, compressed messages can only be sent as frames.
+     */
+    private void switchCompression(String args) {
+        if (!args.equals(MessageCompressor.ALGORITHM)) {
+            send("cmderr unknown compression " + args);
+            return;
+        }
+        synchronized (this) {
+            if (!binaryOut) {
+                send("cmderr compression needs binary framing");
+                return;
+            }
+            if (compressor == null) {
+                compressor = new MessageCompressor(0);
+            }
+            send("compressok " + args);
+        }
+    }
+
+    private boolean mustBeLoggedIn() {
+        if (username == null) {
+            send("msgerr unauthorized");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send one line to the client, as a text line or a binary frame. Several sessions may send
+     * to the same client at once, so the writes are serialized. Messages from clients using
+     * binary frames may contain line breaks, which become spaces on a text connection (they
+     * would end the line there).
+     *
+     * @param line The line, without newline
+     * @return true on success, false if the connection is broken
+     */
+    synchronized boolean send(String line) {
+        try {
+            if (binaryOut) {
+                out.write(FrameCodec.encodeFrame(line));
+            } else {
+                out.write(FrameCodec.encodeLine(line.replace('\n', ' ').replace('\r', ' ')));
+            }
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Send a compressed message to the client, or the uncompressed line if the client did not
+     * switch on compression.
+     *
+     * @param frame     The ZMSG or ZPRIVMSG frame
+     * @param plainLine Creates the uncompressed line, only called when it is needed
+     * @return true on success, false if the connection is broken or the message was invalid
+     */
+    synchronized boolean sendCompressed(byte[] frame, Supplier<String> plainLine) {
+        if (compressor == null) {
+            String line = plainLine.get();
+            return !line.isEmpty() && send(line);
+        }
+        try {
+            out.write(frame);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the AsyncListener overflow policies and closing. The wrapped listener blocks on the
+ * first event, so that the following events pile up in the queue.
+ */
+public class AsyncListenerTest {
+
+    @Test
+    public void testDropNewest() throws InterruptedException {
+        assertEquals(List.of("1", "2", "3"), runOverflow(AsyncListener.OverflowPolicy.DROP_NEWEST));
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        assertEquals(List.of("1", "3", "4"), runOverflow(AsyncListener.OverflowPolicy.DROP_OLDEST));
+    }
+
+    @Test
+    public void testCloseDeliversQueuedEvents() throws InterruptedException {
+        BlockingListener slow = new BlockingListener(3);
+        AsyncListener async = new AsyncListener(slow, 10, AsyncListener.OverflowPolicy.BLOCK);
+        async.onJoke("1");
+        assertTrue(slow.started.await(5, TimeUnit.SECONDS));
+        async.onJoke("2");
+        async.onJoke("3");
+        // Still blocked in the first joke
+        assertFalse(async.close(50, TimeUnit.MILLISECONDS));
+        slow.release.countDown();
+        assertTrue(async.close(5, TimeUnit.SECONDS));
+        assertEquals(List.of("1", "2", "3"), slow.jokes);
+    }
+
+    @Test
+    public void testEventsAfterClose() throws InterruptedException {
+        BlockingListener slow = new BlockingListener(1);
+        AsyncListener async = new AsyncListener(slow, 10, AsyncListener.OverflowPolicy.BLOCK);
+        slow.release.countDown();
+        async.onJoke("1");
+        assertTrue(async.close(5, TimeUnit.SECONDS));
+        // As from a reader thread which took its listener snapshot before removeListener()
+        async.onJoke("2");
+        async.onDisconnect();
+        assertEquals(2, async.getDropped());
+        assertEquals(1, async.getDelivered());
+        assertEquals(List.of("1"), slow.jokes);
+    }
+
+    @Test
+    public void testSharedExecutorShutDown() throws InterruptedException {
+        ExecutorService shared = Executors.newSingleThreadExecutor();
+        BlockingListener slow = new BlockingListener(1);
+        AsyncListener async = new AsyncListener(slow, 10, AsyncListener.OverflowPolicy.BLOCK, shared);
+        shared.shutdown();
+        assertTrue(shared.awaitTermination(5, TimeUnit.SECONDS));
+        // The executor rejects the delivery, the event is dropped instead of throwing
+        async.onJoke("1");
+        assertEquals(1, async.getDropped());
+        assertEquals(0, async.getQueueDepth());
+    }
+
+    /**
+     * Send jokes 1 to 4 through a listener with room for two queued events, while joke 1 is
+     * being delivered.
+     *
+     * @return The jokes which arrived
+     */
+    private List<String> runOverflow(AsyncListener.OverflowPolicy policy) throws InterruptedException {
+        BlockingListener slow = new BlockingListener(3);
+        AsyncListener async = new AsyncListener(slow, 2, policy);
+        async.onJoke("1");
+        assertTrue(slow.started.await(5, TimeUnit.SECONDS));
+        async.onJoke("2");
+        async.onJoke("3");
+        async.onJoke("4");
+        assertEquals(2, async.getQueueDepth());
+        assertEquals(1, async.getDropped());
+
+        slow.release.countDown();
+        assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+        async.close();
+        return slow.jokes;
+    }
+
+    /**
+     * Blocks in the first onJoke() until released.
+     */
+    private static class BlockingListener implements ChatListener {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done;
+        final List<String> jokes = new CopyOnWriteArrayList<>();
+
+        BlockingListener(int expectedJokes) {
+            done = new CountDownLatch(expectedJokes);
+        }
+
+        @Override
+        public void onJoke(String joke) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            jokes.add(joke);
+            done.countDown();
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+        }
+
+        @Override
+        public void onMessageError(String errMsg) {
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.helpers.EventRecorder;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the batching of outgoing commands (OutboundBatcher), with a sender and a receiver
+ * logged in to a ChatServer running in the test.
+ */
+public class BatchingTest {
+    // Longer than any test, so only a full batch or flush() can write
+    private static final long NEVER_MILLIS = 60_000;
+    private static final int LARGE_BATCH = 1024 * 1024;
+
+    private ChatServer server;
+    private TCPClient sender;
+    private TCPClient receiver;
+    private final EventRecorder received = new EventRecorder();
+
+    @Before
+    public void logIn() throws Exception {
+        server = new ChatServer(0);
+        server.start();
+        sender = new TCPClient();
+        receiver = new TCPClient();
+        receiver.addListener(received);
+        for (TCPClient client : new TCPClient[]{sender, receiver}) {
+            assertTrue(client.connect("localhost", server.getPort()));
+            client.startListenThread();
+        }
+        assertTrue(sender.loginAsync("batcher").get(5, TimeUnit.SECONDS).isSuccess());
+        assertTrue(receiver.loginAsync("reader").get(5, TimeUnit.SECONDS).isSuccess());
+    }
+
+    @After
+    public void stopServer() {
+        sender.disconnect();
+        receiver.disconnect();
+        server.stop();
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        sender.enableBatching(LARGE_BATCH, 20);
+        List<CompletableFuture<Boolean>> sent = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            sent.add(sender.sendPublicMessageAsync("m" + i));
+        }
+        for (CompletableFuture<Boolean> future : sent) {
+            assertTrue(future.get(5, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals("msg batcher: m" + i, received.next());
+        }
+    }
+
+    @Test
+    public void testSizeTriggeredFlush() throws Exception {
+        // A command takes "msg " + the text + a newline bytes
+        sender.enableBatching(100, NEVER_MILLIS);
+        CompletableFuture<Boolean> first = sender.sendPublicMessageAsync("short");
+        assertNull(received.next(200));
+        assertFalse(first.isDone());
+
+        // Together with the first one, over the size limit
+        CompletableFuture<Boolean> second = sender.sendPublicMessageAsync("x".repeat(100));
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertTrue(second.get(5, TimeUnit.SECONDS));
+        assertEquals("msg batcher: short", received.next());
+        assertEquals("msg batcher: " + "x".repeat(100), received.next());
+    }
+
+    @Test
+    public void testTimeTriggeredFlush() throws Exception {
+        sender.enableBatching(LARGE_BATCH, 200);
+        CompletableFuture<Boolean> sent = sender.sendPublicMessageAsync("later");
+        assertFalse(sent.isDone());
+        assertTrue(sent.get(5, TimeUnit.SECONDS));
+        assertEquals("msg batcher: later", received.next());
+    }
+
+    @Test
+    public void testFlushCompletesFutures() throws Exception {
+        sender.enableBatching(LARGE_BATCH, NEVER_MILLIS);
+        List<CompletableFuture<Boolean>> sent = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            sent.add(sender.sendPublicMessageAsync("f" + i));
+        }
+        for (CompletableFuture<Boolean> future : sent) {
+            assertFalse(future.isDone());
+        }
+        // Writes on the calling thread, so the futures are done when it returns
+        sender.flush();
+        for (CompletableFuture<Boolean> future : sent) {
+            assertTrue(future.getNow(false));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals("msg batcher: f" + i, received.next());
+        }
+    }
+
+    @Test
+    public void testDisconnectFailsPending() throws Exception {
+        sender.enableBatching(LARGE_BATCH, NEVER_MILLIS);
+        CompletableFuture<Boolean> first = sender.sendPublicMessageAsync("lost 1");
+        CompletableFuture<Boolean> second = sender.sendPublicMessageAsync("lost 2");
+        sender.disconnect();
+        assertFalse(first.get(5, TimeUnit.SECONDS));
+        assertFalse(second.get(5, TimeUnit.SECONDS));
+        // Not sent later either
+        sender.flush();
+        assertNull(received.next(300));
+    }
+}
@@ -0,0 +1,91 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ChatClientPool, against a ChatServer running in the test.
+ */
+public class ChatClientPoolTest {
+    private ChatServer server;
+    private ChatClientPool pool;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ChatServer(0);
+        server.start();
+        pool = new ChatClientPool("localhost", server.getPort(), TransportMode.BLOCKING, "bot", 2);
+    }
+
+    @After
+    public void stopServer() {
+        pool.close();
+        server.stop();
+    }
+
+    @Test
+    public void testPrewarmAndReuse() throws Exception {
+        assertEquals(2, pool.prewarm(2));
+        assertEquals(2, pool.getIdleCount());
+
+        ChatClientPool.Session first = pool.acquire(1, TimeUnit.SECONDS);
+        assertTrue(first.getClient().isConnectionActive());
+        assertTrue(first.getUsername().startsWith("bot"));
+        first.close();
+        // The session which was just released is handed out again
+        ChatClientPool.Session again = pool.acquire(1, TimeUnit.SECONDS);
+        assertSame(first, again);
+        again.close();
+        assertEquals(2, pool.getOpenCount());
+    }
+
+    @Test
+    public void testPoolLimit() throws Exception {
+        ChatClientPool.Session a = pool.acquire(1, TimeUnit.SECONDS);
+        ChatClientPool.Session b = pool.acquire(1, TimeUnit.SECONDS);
+        assertNotEquals(a.getUsername(), b.getUsername());
+        try {
+            pool.acquire(10, TimeUnit.MILLISECONDS);
+            fail("The pool should be full");
+        } catch (TimeoutException expected) {
+            // OK
+        }
+        b.close();
+        b.close();
+        assertSame(b, pool.acquire(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPrewarmWhileAcquiring() throws Exception {
+        CompletableFuture<Integer> prewarmed = CompletableFuture.supplyAsync(() -> pool.prewarm(2));
+        ChatClientPool.Session a = pool.acquire(5, TimeUnit.SECONDS);
+        ChatClientPool.Session b = pool.acquire(5, TimeUnit.SECONDS);
+        assertNotSame(a, b);
+        prewarmed.get(5, TimeUnit.SECONDS);
+        // The sessions being prewarmed count against the limit, no third one is opened
+        assertEquals(2, pool.getOpenCount());
+        assertEquals(2, server.getClientCount());
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void testPrewarmAfterClose() throws Exception {
+        CompletableFuture<Integer> prewarmed = CompletableFuture.supplyAsync(() -> pool.prewarm(2));
+        pool.close();
+        prewarmed.get(5, TimeUnit.SECONDS);
+        // Whether they were opened before or after close(), none of them is kept
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getOpenCount());
+        assertEquals(0, pool.prewarm(2));
+    }
+}
@@ -0,0 +1,79 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ClientMetrics of a TCPClient talking to a ChatServer running in the test.
+ */
+public class ClientMetricsTest {
+
+    @Test
+    public void testCountsAndRoundTrips() throws Exception {
+        ChatServer server = new ChatServer(0);
+        server.start();
+        TCPClient client = new TCPClient();
+        ClientMetrics metrics = client.getMetrics();
+        try {
+            assertTrue(client.connect("localhost", server.getPort()));
+            client.startListenThread();
+            assertTrue(client.loginAsync("metric").get(5, TimeUnit.SECONDS).isSuccess());
+            assertTrue(client.usersAsync().get(5, TimeUnit.SECONDS).contains("metric"));
+
+            assertEquals(1, metrics.getConnectLatency().getCount());
+            assertEquals(0, metrics.getConnectFailures());
+            assertEquals(1, metrics.getSent(Command.LOGIN));
+            assertEquals(1, metrics.getSent(Command.USERS));
+            assertEquals(1, metrics.getReceived(Command.LOGINOK));
+            assertEquals(1, metrics.getReceived(Command.USERS));
+            assertEquals(1, metrics.getLoginRoundTrip().getCount());
+            assertEquals(1, metrics.getUsersRoundTrip().getCount());
+            // "login metric\n" and "users\n"
+            assertEquals(19, metrics.getBytesSent());
+            assertTrue(metrics.getBytesReceived() >= "loginok\nusers metric\n".length());
+        } finally {
+            client.disconnect();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testFailedConnect() {
+        TCPClient client = new TCPClient();
+        // Nothing listens on port 1 of localhost
+        assertFalse(client.connect("localhost", 1));
+        assertEquals(1, client.getMetrics().getConnectFailures());
+        assertEquals(0, client.getMetrics().getConnectLatency().getCount());
+    }
+
+    @Test
+    public void testJmxRegistration() throws Exception {
+        ClientMetrics metrics = new ClientMetrics();
+        metrics.commandSent(Command.MSG);
+        metrics.commandSent(Command.MSG);
+        metrics.loginLatency().record(2_000_000);
+        ObjectName name = metrics.register("jmx test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertTrue(server.isRegistered(name));
+            // An MXBean map is a table with "key" and "value" columns over JMX
+            TabularData sent = (TabularData) server.getAttribute(name, "SentByCommand");
+            assertEquals(2L, sent.get(new Object[]{"msg"}).get("value"));
+            CompositeData login = (CompositeData) server.getAttribute(name, "LoginRoundTrip");
+            assertEquals(1L, login.get("count"));
+            assertEquals(2.0, (Double) login.get("averageMillis"), 1e-9);
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,116 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommandDecoderTest {
+
+    /**
+     * Remembers the last decoded command, with the arguments cut out of the line.
+     */
+    private static class RecordingHandler implements CommandDecoder.Handler {
+        Boolean loginSuccess;
+        String[] list;
+        TextMessage message;
+        String errorLine;
+        String joke;
+
+        @Override
+        public void onLoginResult(boolean success, String line) {
+            loginSuccess = success;
+        }
+
+        @Override
+        public void onUsers(String line, int listStart) {
+            list = CommandDecoder.words(line, listStart);
+        }
+
+        @Override
+        public void onMessage(boolean priv, String line, int senderStart, int senderEnd, int textStart) {
+            message = new TextMessage(line.substring(senderStart, senderEnd), priv, line.substring(textStart));
+        }
+
+        @Override
+        public void onMessageError(String line) {
+            errorLine = line;
+        }
+
+        @Override
+        public void onCommandError(String line) {
+            errorLine = line;
+        }
+
+        @Override
+        public void onSupported(String line, int listStart) {
+            list = CommandDecoder.words(line, listStart);
+        }
+
+        @Override
+        public void onJoke(String line) {
+            joke = line;
+        }
+    }
+
+    /**
+     * Test that login results are recognized
+     */
+    @Test
+    public void testLoginResults() {
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(Command.LOGINOK, CommandDecoder.decode("loginok", handler));
+        assertEquals(Boolean.TRUE, handler.loginSuccess);
+        assertEquals(Command.LOGINERR, CommandDecoder.decode("loginerr incorrect username format", handler));
+        assertEquals(Boolean.FALSE, handler.loginSuccess);
+    }
+
+    /**
+     * Test that sender and text offsets of public and private messages are correct
+     */
+    @Test
+    public void testMessages() {
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(Command.MSG, CommandDecoder.decode("msg alice Hello there, bob!", handler));
+        assertEquals(new TextMessage("alice", false, "Hello there, bob!"), handler.message);
+
+        assertEquals(Command.PRIVMSG, CommandDecoder.decode("privmsg bob  two  spaces ", handler));
+        assertEquals(new TextMessage("bob", true, " two  spaces "), handler.message);
+
+        // A message without text must not break the decoder
+        assertEquals(Command.MSG, CommandDecoder.decode("msg alice", handler));
+        assertEquals(new TextMessage("alice", false, ""), handler.message);
+    }
+
+    /**
+     * Test that lists are split into words without the command word
+     */
+    @Test
+    public void testLists() {
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(Command.USERS, CommandDecoder.decode("users alice  bob carol", handler));
+        assertArrayEquals(new String[]{"alice", "bob", "carol"}, handler.list);
+
+        assertEquals(Command.USERS, CommandDecoder.decode("users", handler));
+        assertEquals(0, handler.list.length);
+
+        assertEquals(Command.SUPPORTED, CommandDecoder.decode("supported msg privmsg login users help", handler));
+        assertArrayEquals(new String[]{"msg", "privmsg", "login", "users", "help"}, handler.list);
+    }
+
+    /**
+     * Test that the command word must match completely, not just the beginning
+     */
+    @Test
+    public void testUnknownCommands() {
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(Command.UNKNOWN, CommandDecoder.decode("", handler));
+        assertEquals(Command.UNKNOWN, CommandDecoder.decode("msgx alice hi", handler));
+        assertEquals(Command.UNKNOWN, CommandDecoder.decode("login alice", handler));
+        assertEquals(Command.UNKNOWN, CommandDecoder.decode(" msg alice hi", handler));
+        assertNull(handler.message);
+        assertEquals(Command.MSGERR, CommandDecoder.decode("msgerr unknown user", handler));
+        assertEquals("msgerr unknown user", handler.errorLine);
+        assertEquals(Command.JOKE, CommandDecoder.decode("joke Why did the chicken", handler));
+        assertEquals("joke Why did the chicken", handler.joke);
+    }
+}
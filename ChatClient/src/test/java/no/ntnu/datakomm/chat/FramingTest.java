@@ -0,0 +1,240 @@
+package no.ntnu.datakomm.chat;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary framing: the FrameCodec and InboundDecoder, and a switch to binary
+ * frames and compression against a ChatServer running in the test.
+ */
+public class FramingTest {
+
+    /**
+     * Collects what the decoder delivers as "keyword:args" strings.
+     */
+    private static class CollectingSink implements InboundDecoder.Sink {
+        private final List<String> received = new ArrayList<>();
+        private InboundDecoder decoder;
+
+        @Override
+        public void onCommand(Command command, ByteSlice args) {
+            received.add(command.getKeyword() + ":" + args);
+            if (command == Command.FRAMINGOK) {
+                decoder.setBinary(true);
+            }
+        }
+    }
+
+    /**
+     * Queues the messages received.
+     */
+    private static class MessageQueue extends EmptyChatListener {
+        private final BlockingQueue<TextMessage> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            messages.add(message);
+        }
+
+        TextMessage next() throws InterruptedException {
+            TextMessage message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No message received", message);
+            return message;
+        }
+    }
+
+    @Test
+    public void testDecodeOneByteAtATime() throws ProtocolException {
+        byte[] lines = "loginok\r\nframingok binary\n".getBytes(StandardCharsets.UTF_8);
+        byte[] msg = FrameCodec.encodeFrame("msg alice hei på deg\nandre linje");
+        byte[] users = FrameCodec.encodeFrame("users");
+        byte[] other = FrameCodec.encodeFrame("whatever this is");
+        byte[] all = new byte[lines.length + msg.length + users.length + other.length];
+        int pos = 0;
+        for (byte[] part : new byte[][]{lines, msg, users, other}) {
+            System.arraycopy(part, 0, all, pos, part.length);
+            pos += part.length;
+        }
+
+        CollectingSink sink = new CollectingSink();
+        sink.decoder = new InboundDecoder(sink);
+        for (byte b : all) {
+            sink.decoder.feed(new byte[]{b}, 0, 1);
+        }
+        assertEquals(List.of("loginok:", "framingok:binary", "msg:alice hei på deg\nandre linje",
+                "users:", ":whatever this is"), sink.received);
+    }
+
+    @Test
+    public void testLongFrameLength() throws ProtocolException {
+        String text = "x".repeat(300);
+        byte[] frame = FrameCodec.encodeFrame("msg " + text);
+        // 301 bytes of opcode and payload need a two-byte length
+        assertEquals(2 + 301, frame.length);
+
+        CollectingSink sink = new CollectingSink();
+        sink.decoder = new InboundDecoder(sink);
+        sink.decoder.setBinary(true);
+        sink.decoder.feed(frame, 0, frame.length);
+        assertEquals(List.of("msg:" + text), sink.received);
+    }
+
+    @Test
+    public void testCommandLargerThanBuffer() throws ProtocolException {
+        String text = "y".repeat(50000);
+        byte[] line = FrameCodec.encodeLine("privmsg bob " + text);
+
+        CollectingSink sink = new CollectingSink();
+        sink.decoder = new InboundDecoder(sink);
+        sink.decoder.feed(line, 0, line.length);
+        assertEquals(List.of("privmsg:bob " + text), sink.received);
+    }
+
+    @Test
+    public void testLineInManyReads() throws ProtocolException {
+        String text = "z".repeat(20000);
+        byte[] lines = ("msg " + text + "\r\nusers\n").getBytes(StandardCharsets.UTF_8);
+
+        // Every read resumes the search for the line end where the previous one stopped, also
+        // after the buffer was compacted and grown
+        CollectingSink sink = new CollectingSink();
+        sink.decoder = new InboundDecoder(sink);
+        int crAt = lines.length - "\r\nusers\n".length();
+        sink.decoder.feed(lines, 0, crAt);
+        sink.decoder.feed(lines, crAt, 1);
+        assertTrue(sink.received.isEmpty());
+        sink.decoder.feed(lines, crAt + 1, lines.length - crAt - 1);
+        sink.decoder.feed(new byte[]{'h', 'e'}, 0, 2);
+        sink.decoder.feed(new byte[]{'l', 'p', '\n'}, 0, 3);
+        assertEquals(List.of("msg:" + text, "users:", "help:"), sink.received);
+    }
+
+    @Test
+    public void testLineTooLong() throws ProtocolException {
+        CollectingSink sink = new CollectingSink();
+        sink.decoder = new InboundDecoder(sink);
+        sink.decoder.setMaxLineLength(100);
+        byte[] ok = FrameCodec.encodeLine("msg " + "a".repeat(96));
+        sink.decoder.feed(ok, 0, ok.length);
+        assertEquals(1, sink.received.size());
+
+        byte[] tooLong = ("msg " + "b".repeat(200)).getBytes(StandardCharsets.UTF_8);
+        try {
+            sink.decoder.feed(tooLong, 0, tooLong.length);
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException e) {
+            assertEquals("Line too long", e.getMessage());
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testUnknownOpcode() throws ProtocolException {
+        InboundDecoder decoder = new InboundDecoder(new CollectingSink());
+        decoder.setBinary(true);
+        decoder.feed(new byte[]{2, 99, 'x'}, 0, 3);
+    }
+
+    @Test
+    public void testBinaryChat() throws Exception {
+        ChatServer server = new ChatServer(0);
+        server.start();
+        try {
+            for (TransportMode mode : TransportMode.values()) {
+                chatInBinary(server.getPort(), mode);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void chatInBinary(int port, TransportMode mode) throws Exception {
+        TCPClient sender = new TCPClient(mode);
+        TCPClient receiver = new TCPClient(mode);
+        MessageQueue received = new MessageQueue();
+        receiver.addListener(received);
+        try {
+            for (TCPClient client : new TCPClient[]{sender, receiver}) {
+                assertTrue(client.connect("localhost", port));
+                client.startListenThread();
+                assertTrue(client.negotiateBinaryFraming().get(5, TimeUnit.SECONDS));
+                assertTrue(client.isBinaryFraming());
+            }
+            assertTrue(sender.loginAsync("bin" + mode).get(5, TimeUnit.SECONDS).isSuccess());
+            assertTrue(receiver.loginAsync("bout" + mode).get(5, TimeUnit.SECONDS).isSuccess());
+            // A newline can't be sent as a text line, but fits in a frame
+            assertTrue(sender.sendPrivateMessage("bout" + mode, "two\nlines"));
+            TextMessage message = received.next();
+            assertEquals("bin" + mode, message.getSender());
+            assertTrue(message.isPrivate());
+            assertEquals("two\nlines", message.getText());
+        } finally {
+            sender.disconnect();
+            receiver.disconnect();
+        }
+    }
+
+    @Test
+    public void testCompressedChat() throws Exception {
+        StringBuilder trace = new StringBuilder("Exception in thread \"main\" java.lang.IllegalStateException: boom");
+        for (int i = 0; i < 40; i++) {
+            trace.append("\n\tat no.ntnu.datakomm.chat.TCPClient.method").append(i).append("(TCPClient.java:").append(100 + i)
+                    .append(')');
+        }
+        String text = trace.toString();
+
+        ChatServer server = new ChatServer(0);
+        server.start();
+        TCPClient sender = new TCPClient();
+        TCPClient compressed = new TCPClient(TransportMode.NIO);
+        TCPClient plain = new TCPClient();
+        MessageQueue toCompressed = new MessageQueue();
+        MessageQueue toPlain = new MessageQueue();
+        compressed.addListener(toCompressed);
+        plain.addListener(toPlain);
+        try {
+            int n = 0;
+            for (TCPClient client : new TCPClient[]{sender, compressed, plain}) {
+                assertTrue(client.connect("localhost", server.getPort()));
+                client.startListenThread();
+                if (client != plain) {
+                    assertTrue(client.negotiateCompression(256).get(5, TimeUnit.SECONDS));
+                }
+                assertTrue(client.loginAsync("z" + n++).get(5, TimeUnit.SECONDS).isSuccess());
+            }
+            assertTrue(sender.isCompressing());
+            assertFalse(plain.isBinaryFraming());
+
+            // Too short to be compressed
+            assertTrue(sender.sendPrivateMessage("z1", "short"));
+            assertEquals("short", toCompressed.next().getText());
+            assertEquals(1, sender.getCompressor().getSkippedCount());
+
+            // The server relays the deflated text to z1, and decompresses it for z2
+            assertTrue(sender.sendPublicMessage(text));
+            TextMessage message = toCompressed.next();
+            assertEquals("z0", message.getSender());
+            assertEquals(text, message.getText());
+            assertEquals(1, compressed.getCompressor().getDecompressedCount());
+            // z2 reads text lines, so the line breaks became spaces
+            assertEquals(text.replace('\n', ' '), toPlain.next().getText());
+            assertEquals(1, sender.getCompressor().getCompressedCount());
+            assertTrue(sender.getCompressor().getRatio() < 0.5);
+        } finally {
+            sender.disconnect();
+            compressed.disconnect();
+            plain.disconnect();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ListenerRegistry.
+ */
+public class ListenerRegistryTest {
+
+    @Test
+    public void testIdentityDedup() {
+        ListenerRegistry registry = new ListenerRegistry();
+        ChatListener a = new EqualListener();
+        ChatListener b = new EqualListener();
+        assertTrue(registry.add(a));
+        assertFalse(registry.add(a));
+        // Equal by equals(), but a different object
+        assertTrue(registry.add(b));
+        assertEquals(2, registry.size());
+        assertArrayEquals(new ChatListener[]{a, b}, registry.get(ChatEvent.MESSAGE));
+
+        assertTrue(registry.remove(a));
+        assertFalse(registry.remove(a));
+        assertArrayEquals(new ChatListener[]{b}, registry.get(ChatEvent.MESSAGE));
+    }
+
+    @Test
+    public void testEventTypes() {
+        ListenerRegistry registry = new ListenerRegistry();
+        ChatListener all = new EqualListener();
+        ChatListener messages = new EqualListener();
+        registry.add(all);
+        registry.add(messages, EnumSet.of(ChatEvent.MESSAGE, ChatEvent.MESSAGE_ERROR));
+        assertArrayEquals(new ChatListener[]{all, messages}, registry.get(ChatEvent.MESSAGE));
+        assertArrayEquals(new ChatListener[]{all}, registry.get(ChatEvent.USER_LIST));
+
+        // Registering again replaces the event types, but keeps the order
+        registry.add(messages, EnumSet.of(ChatEvent.USER_LIST));
+        assertEquals(2, registry.size());
+        assertArrayEquals(new ChatListener[]{all}, registry.get(ChatEvent.MESSAGE));
+        assertArrayEquals(new ChatListener[]{all, messages}, registry.get(ChatEvent.USER_LIST));
+    }
+
+    @Test
+    public void testSnapshotIsStable() {
+        ListenerRegistry registry = new ListenerRegistry();
+        ChatListener a = new EqualListener();
+        registry.add(a);
+        ChatListener[] snapshot = registry.get(ChatEvent.JOKE);
+        registry.remove(a);
+        assertArrayEquals(new ChatListener[]{a}, snapshot);
+        assertEquals(0, registry.get(ChatEvent.JOKE).length);
+    }
+
+    /**
+     * A listener which claims to be equal to any other listener of its class.
+     */
+    private static class EqualListener implements ChatListener {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof EqualListener;
+        }
+
+        @Override
+        public int hashCode() {
+            return 1;
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+        }
+
+        @Override
+        public void onMessageError(String errMsg) {
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+        }
+
+        @Override
+        public void onJoke(String joke) {
+        }
+    }
+}
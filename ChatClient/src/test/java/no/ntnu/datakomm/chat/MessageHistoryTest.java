@@ -0,0 +1,161 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the MessageHistory ring buffer and its index.
+ */
+public class MessageHistoryTest {
+
+    @Test
+    public void testLookupBySenderAndWords() {
+        MessageHistory history = new MessageHistory(100, 4096, false);
+        history.add(new TextMessage("alice", false, "Hello, World!"));
+        history.add(new TextMessage("bob", true, "hello alice"));
+        history.add(new TextMessage("alice", false, "the world is round"));
+
+        assertEquals(List.of(new TextMessage("alice", false, "the world is round"),
+                new TextMessage("alice", false, "Hello, World!")), history.fromSender("alice", 10));
+        assertEquals(1, history.fromSender("alice", 1).size());
+        assertTrue(history.fromSender("carol", 10).isEmpty());
+
+        // Case insensitive, all words must match, newest first
+        assertEquals(2, history.search("WORLD", 10).size());
+        assertEquals(List.of(new TextMessage("alice", false, "Hello, World!")), history.search("world hello", 10));
+        assertTrue(history.search("hello round", 10).isEmpty());
+        assertTrue(history.search("...", 10).isEmpty());
+        assertTrue(history.get(1).isPrivate());
+
+        // A private message we sent keeps its recipient, and is found by its sender
+        history.add(new TextMessage("alice", "bob", "secret plans"));
+        assertEquals(new TextMessage("alice", "bob", "secret plans"), history.fromSender("alice", 1).get(0));
+        assertEquals("bob", history.search("secret", 1).get(0).getRecipient());
+        assertNotEquals(new TextMessage("alice", true, "secret plans"), history.get(3));
+    }
+
+    @Test
+    public void testOldestDroppedWhenFull() {
+        MessageHistory history = new MessageHistory(3, 4096, true);
+        for (int i = 0; i < 5; i++) {
+            history.add(new TextMessage("u" + i, false, "message number " + i));
+        }
+        assertEquals(3, history.size());
+        assertEquals(2, history.getFirstSequence());
+        assertNull(history.get(1));
+        assertEquals("message number 2", history.get(2).getText());
+        assertTrue(history.fromSender("u0", 10).isEmpty());
+        assertTrue(history.search("0", 10).isEmpty());
+        assertEquals(3, history.search("message", 10).size());
+        assertEquals(List.of("message number 3", "message number 4"),
+                texts(history.latest(2)));
+    }
+
+    @Test
+    public void testSenderTableBounded() {
+        MessageHistory history = new MessageHistory(4, 4096, false);
+        for (int i = 0; i < 1000; i++) {
+            history.add(new TextMessage("s" + i, "r" + (i % 7), "message " + i));
+        }
+        // At most a sender and a recipient for each kept message
+        assertTrue(history.getNameCount() <= 8);
+        assertTrue(history.getNameTableSize() <= 8);
+        assertTrue(history.fromSender("s995", 10).isEmpty());
+        assertEquals(new TextMessage("s999", "r" + (999 % 7), "message 999"), history.fromSender("s999", 10).get(0));
+        assertEquals("r" + (998 % 7), history.latest(2).get(0).getRecipient());
+
+        // A message to oneself uses the name twice
+        history.add(new TextMessage("me", "me", "note"));
+        for (int i = 0; i < 4; i++) {
+            history.add(new TextMessage("other", false, "x"));
+        }
+        assertTrue(history.fromSender("me", 10).isEmpty());
+        assertEquals(1, history.getNameCount());
+
+        history.clear();
+        assertEquals(0, history.getNameCount());
+        assertEquals(0, history.getNameTableSize());
+        history.add(new TextMessage("again", false, "after clear"));
+        assertEquals(1, history.fromSender("again", 10).size());
+    }
+
+    @Test
+    public void testOldestDroppedWhenArenaFull() {
+        // Room for two texts of 10 bytes, but the ring could hold 100 messages
+        MessageHistory history = new MessageHistory(100, 25, false);
+        history.add(new TextMessage("a", false, "aaaa aaaaa"));
+        history.add(new TextMessage("b", false, "bbbb bbbbb"));
+        history.add(new TextMessage("c", false, "cccc ccccc"));
+        assertEquals(2, history.size());
+        assertEquals(List.of("bbbb bbbbb", "cccc ccccc"), texts(history.latest(10)));
+        // Longer than the arena: truncated
+        history.add(new TextMessage("d", false, "d".repeat(40)));
+        assertEquals(1, history.size());
+        assertEquals("d".repeat(25), history.latest(1).get(0).getText());
+    }
+
+    /**
+     * Random messages of random length against a simple list of the messages which should be
+     * kept, including the wrap-around of the arena.
+     */
+    @Test
+    public void testMatchesSimpleModel() {
+        Random random = new Random(42);
+        int capacity = 50;
+        int arenaBytes = 2000;
+        MessageHistory history = new MessageHistory(capacity, arenaBytes, true);
+        Deque<TextMessage> expected = new ArrayDeque<>();
+        String[] words = {"red", "green", "blue", "cat", "dog", "æøå"};
+        for (int n = 0; n < 5000; n++) {
+            StringBuilder text = new StringBuilder();
+            int wordCount = random.nextInt(random.nextInt(10) == 0 ? 60 : 8);
+            for (int i = 0; i < wordCount; i++) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            TextMessage message = new TextMessage("user" + random.nextInt(5), random.nextBoolean(), text.toString());
+            history.add(message);
+            expected.addLast(message);
+            while (expected.size() > capacity) {
+                expected.removeFirst();
+            }
+
+            // The history may drop more (when the arena is full), but keeps the newest ones
+            assertTrue(history.size() <= expected.size());
+            while (expected.size() > history.size()) {
+                expected.removeFirst();
+            }
+            assertEquals(new ArrayList<>(expected), history.latest(capacity));
+
+            String word = words[random.nextInt(words.length)];
+            List<TextMessage> withWord = new ArrayList<>();
+            List<TextMessage> fromUser0 = new ArrayList<>();
+            for (Iterator<TextMessage> it = expected.descendingIterator(); it.hasNext(); ) {
+                TextMessage m = it.next();
+                if (MessageHistory.words(m.getText()).contains(word)) {
+                    withWord.add(m);
+                }
+                if (m.getSender().equals("user0")) {
+                    fromUser0.add(m);
+                }
+            }
+            assertEquals(withWord, history.search(word, capacity));
+            assertEquals(fromUser0, history.fromSender("user0", capacity));
+        }
+    }
+
+    private static List<String> texts(List<TextMessage> messages) {
+        List<String> texts = new ArrayList<>();
+        for (TextMessage message : messages) {
+            texts.add(message.getText());
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,160 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.helpers.EventRecorder;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the non-blocking transport: NioSession and SelectorLoop directly, and TCPClient in
+ * NIO mode against a ChatServer running in the test.
+ */
+public class NioTest {
+    // Far more than the socket buffers hold, so most of it is written from the queue
+    private static final int LARGE_PAYLOAD = 16 * 1024 * 1024;
+
+    @Test
+    public void testConnectViaNio() throws Exception {
+        ChatServer server = new ChatServer(0);
+        server.start();
+        TCPClient sender = new TCPClient(TransportMode.NIO);
+        TCPClient receiver = new TCPClient(TransportMode.NIO);
+        EventRecorder received = new EventRecorder();
+        receiver.addListener(received);
+        try {
+            assertEquals(TransportMode.NIO, sender.getTransportMode());
+            for (TCPClient client : new TCPClient[]{sender, receiver}) {
+                assertTrue(client.connect("localhost", server.getPort()));
+                assertTrue(client.isConnectionActive());
+                client.startListenThread();
+            }
+            assertTrue(sender.loginAsync("nioalice").get(5, TimeUnit.SECONDS).isSuccess());
+            assertTrue(receiver.loginAsync("niobob").get(5, TimeUnit.SECONDS).isSuccess());
+            assertEquals(Set.of("nioalice", "niobob"), new HashSet<>(sender.usersAsync().get(5, TimeUnit.SECONDS)));
+            assertTrue(sender.sendPublicMessage("hello"));
+            assertTrue(sender.sendPrivateMessage("niobob", "secret"));
+            assertEquals("msg nioalice: hello", received.next());
+            assertEquals("privmsg nioalice: secret", received.next());
+        } finally {
+            sender.disconnect();
+            receiver.disconnect();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPartialWrites() throws Exception {
+        byte[] first = new byte[LARGE_PAYLOAD];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = (byte) (i % 251);
+        }
+        byte[] second = {1, 2, 3};
+        SelectorLoop loop = new SelectorLoop(1);
+        try (ServerSocket server = new ServerSocket(0)) {
+            CompletableFuture<byte[]> read = new CompletableFuture<>();
+            Thread reader = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    // Let the client fill the socket buffers first
+                    Thread.sleep(300);
+                    byte[] all = new byte[first.length + second.length];
+                    new DataInputStream(socket.getInputStream()).readFully(all);
+                    read.complete(all);
+                } catch (IOException | InterruptedException e) {
+                    read.completeExceptionally(e);
+                }
+            });
+            reader.start();
+
+            NioSession session = NioSession.open("localhost", server.getLocalPort(), loop,
+                    new InboundDecoder((command, args) -> { }), s -> { });
+            // Neither blocks: what the socket does not take is queued
+            assertTrue(session.send(first));
+            assertTrue(session.send(second));
+            byte[] all = read.get(10, TimeUnit.SECONDS);
+            assertArrayEquals(first, Arrays.copyOf(all, first.length));
+            assertArrayEquals(second, Arrays.copyOfRange(all, first.length, all.length));
+            session.close();
+            reader.join(5000);
+        } finally {
+            loop.shutdown();
+        }
+    }
+
+    @Test
+    public void testServerCloseDisconnectsOnce() throws Exception {
+        for (TransportMode mode : TransportMode.values()) {
+            ChatServer server = new ChatServer(0);
+            server.start();
+            TCPClient client = new TCPClient(mode);
+            EventRecorder events = new EventRecorder();
+            client.addListener(events);
+            assertTrue(client.connect("localhost", server.getPort()));
+            client.startListenThread();
+            assertTrue(client.loginAsync("closed" + mode).get(5, TimeUnit.SECONDS).isSuccess());
+            // Something still being written when the connection goes away
+            client.sendPublicMessage("x".repeat(100_000));
+
+            server.stop();
+            assertEquals("disconnect", events.next());
+            assertNull(events.next(300));
+            assertFalse(client.isConnectionActive());
+            assertFalse(client.sendPublicMessage("too late"));
+            client.disconnect();
+            assertNull(events.next(100));
+        }
+    }
+
+    @Test
+    public void testSessionsShareOneLoop() throws Exception {
+        ChatServer server = new ChatServer(0);
+        server.start();
+        SelectorLoop loop = new SelectorLoop(1);
+        List<NioSession> sessions = new ArrayList<>();
+        List<BlockingQueue<String>> replies = new ArrayList<>();
+        CountDownLatch closed = new CountDownLatch(5);
+        try {
+            for (int i = 0; i < 5; i++) {
+                BlockingQueue<String> received = new LinkedBlockingQueue<>();
+                NioSession session = NioSession.open("localhost", server.getPort(), loop,
+                        new InboundDecoder((command, args) -> received.add(command.getKeyword() + " " + args)),
+                        s -> closed.countDown());
+                session.startReading();
+                sessions.add(session);
+                replies.add(received);
+            }
+            // Every session gets its own answer, on the one I/O thread
+            for (int i = 0; i < sessions.size(); i++) {
+                assertTrue(sessions.get(i).send(("login shared" + i + "\n").getBytes()));
+            }
+            for (BlockingQueue<String> received : replies) {
+                assertEquals("loginok ", received.poll(5, TimeUnit.SECONDS));
+            }
+            assertEquals(sessions.size(), server.getClientCount());
+
+            server.stop();
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+        } finally {
+            for (NioSession session : sessions) {
+                session.close();
+            }
+            loop.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SortedUserIndexTest {
+
+    /**
+     * Applies the reported changes to a plain list, like the GUI does with its labels.
+     */
+    private static class MirrorList implements SortedUserIndex.Listener {
+        final List<String> users = new ArrayList<>();
+        int changes = 0;
+
+        @Override
+        public void onUserAdded(int index, String username) {
+            users.add(index, username);
+            changes++;
+        }
+
+        @Override
+        public void onUserRemoved(int index, String username) {
+            assertEquals(username, users.remove(index));
+            changes++;
+        }
+    }
+
+    /**
+     * Test that only the difference between two lists is reported, and that the result is sorted
+     */
+    @Test
+    public void testUpdateReportsOnlyChanges() {
+        SortedUserIndex index = new SortedUserIndex();
+        MirrorList mirror = new MirrorList();
+        index.update(new String[]{"carol", "alice", "Bob"}, mirror);
+        assertEquals(List.of("alice", "Bob", "carol"), mirror.users);
+        assertEquals(3, mirror.changes);
+
+        mirror.changes = 0;
+        index.update(new String[]{"dave", "alice", "carol", "carol"}, mirror);
+        assertEquals(List.of("alice", "carol", "dave"), mirror.users);
+        // Bob left, dave joined
+        assertEquals(2, mirror.changes);
+
+        mirror.changes = 0;
+        index.update(new String[]{"carol", "dave", "alice"}, mirror);
+        assertEquals(0, mirror.changes);
+
+        index.update(new String[0], mirror);
+        assertTrue(mirror.users.isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    /**
+     * Test single additions, removals and membership checks
+     */
+    @Test
+    public void testAddRemoveContains() {
+        SortedUserIndex index = new SortedUserIndex();
+        MirrorList mirror = new MirrorList();
+        index.add("mallory", mirror);
+        index.add("alice", mirror);
+        index.add("alice", mirror);
+        assertEquals(List.of("alice", "mallory"), mirror.users);
+        assertTrue(index.contains("alice"));
+        assertFalse(index.contains("bob"));
+
+        index.remove("bob", mirror);
+        index.remove("alice", mirror);
+        assertEquals(List.of("mallory"), mirror.users);
+        assertFalse(index.contains("alice"));
+    }
+}
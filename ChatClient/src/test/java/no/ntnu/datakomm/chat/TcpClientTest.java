@@ -4,17 +4,72 @@ import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
 import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
 import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
 import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import no.ntnu.datakomm.chat.helpers.EventRecorder;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import static org.junit.Assert.*;
 
+/**
+ * Tests of the TCPClient against a ChatServer started for each test on a free localhost port.
+ * Instead of sleeping, the tests wait for the expected responses with the latches in the
+ * helpers.
+ */
 public class TcpClientTest {
-    // Host and port to be used for all connection in the tests
-    private static final String SERVER_HOST = "datakomm.work";
-    private static final int SERVER_PORT = 1300;
+    // Host to be used for all connection in the tests. The port is picked by the server.
+    private static final String SERVER_HOST = "localhost";
+
+    private ChatServer server;
+    private int serverPort;
 
-    // How many ms to sleep when waiting for server response to arrive
-    private static final int THREAD_SLEEP_TIME = 2000;
+    @Before
+    public void startServer() throws IOException {
+        server = new ChatServer(0);
+        server.start();
+        serverPort = server.getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Log in and wait for the answer. The client must be listening already.
+     *
+     * @param client   The client
+     * @param username Username to use
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    private static void login(TCPClient client, String username) throws InterruptedException {
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        // The login result, and the user list tryLogin asks for
+        counter.expectResponses(2);
+        client.tryLogin(username);
+        assertTrue(counter.awaitResponses());
+        assertEquals(1, counter.loginSuccess);
+        client.removeListener(counter);
+    }
 
     /**
      * Test if opening and closing connection works
@@ -25,22 +80,21 @@ public class TcpClientTest {
         // connection to the right server. That would be a bit difficult to do, although it is doable.
         TCPClient client = new TCPClient();
         assertFalse(client.isConnectionActive());
-        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(client.connect(SERVER_HOST, serverPort));
         assertTrue(client.isConnectionActive());
         client.disconnect();
         assertFalse(client.isConnectionActive());
     }
 
     /**
-     * Test if login works correctly. Note: this test can fail if several students run the same test at the same
-     * time: several clients will try to use the same username.
+     * Test if login works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testLogin() throws InterruptedException {
         TCPClient client = new TCPClient();
-        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(client.connect(SERVER_HOST, serverPort));
         // The incoming messages will be received on another thread
         client.startListenThread();
         // Listen to how many messages of each type the client receives
@@ -49,10 +103,11 @@ public class TcpClientTest {
         assertEquals(0, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
-        // Try bad username
+        // Try bad username. Wait for the login response (loginerr), and the user list
+        // tryLogin asks for.
+        counter.expectResponses(2);
         client.tryLogin("Bad username");
-        // allow the login response (loginerr) to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(counter.awaitResponses());
         assertEquals(0, counter.loginSuccess);
         assertEquals(1, counter.loginError);
 
@@ -61,9 +116,9 @@ public class TcpClientTest {
         counter.loginError = 0;
 
         // Try ok username with letters only
+        counter.expectResponses(2);
         client.tryLogin("unittestnormal");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(counter.awaitResponses());
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
@@ -72,9 +127,9 @@ public class TcpClientTest {
         counter.loginError = 0;
 
         // Try ok username with big and small letters
+        counter.expectResponses(2);
         client.tryLogin("UnitTestCamel");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(counter.awaitResponses());
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
@@ -83,9 +138,9 @@ public class TcpClientTest {
         counter.loginError = 0;
 
         // Alphanumerics
+        counter.expectResponses(2);
         client.tryLogin("UnitTest35Alpha");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(counter.awaitResponses());
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
         counter.loginSuccess = 0;
@@ -97,7 +152,7 @@ public class TcpClientTest {
     /**
      * Test if sending public messages works
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testPublicMessages() throws InterruptedException {
@@ -105,27 +160,35 @@ public class TcpClientTest {
         TCPClient c1 = new TCPClient();
         TCPClient c2 = new TCPClient();
         TCPClient c3 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c1.connect(SERVER_HOST, serverPort));
+        assertTrue(c2.connect(SERVER_HOST, serverPort));
+        assertTrue(c3.connect(SERVER_HOST, serverPort));
 
-        // Client 1 logs in with a specific username
-        String C1_USERNAME = "UnitTestCC";
-        c1.tryLogin(C1_USERNAME);
-
-        // Clients 2 and 3 will listen for incoming messages, each on a different CPU thread
+        // Clients will listen for incoming messages, each on a different CPU thread
+        c1.startListenThread();
         c2.startListenThread();
         c3.startListenThread();
+
+        // Client 1 logs in with a specific username. Clients 2 and 3 log in too, then we know the
+        // server has taken their connections into use before the message is sent.
+        String C1_USERNAME = "UnitTestCC";
+        login(c1, C1_USERNAME);
+        login(c2, "UnitTestCC2");
+        login(c3, "UnitTestCC3");
+
         DummyMsgReceiver rec2 = new DummyMsgReceiver();
         DummyMsgReceiver rec3 = new DummyMsgReceiver();
         c2.addListener(rec2);
         c3.addListener(rec3);
+        rec2.expectMessages(1);
+        rec3.expectMessages(1);
 
         final String MSG_TEXT = "[Unittest] This is a specific text message, please, don't repeat it!";
         c1.sendPublicMessage(MSG_TEXT);
 
-        // Allow the messages to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Wait for the messages to arrive
+        assertTrue(rec2.awaitMessages());
+        assertTrue(rec3.awaitMessages());
 
         TextMessage expectedMsg = new TextMessage(C1_USERNAME, false, MSG_TEXT);
         assertTrue(rec2.hasReceived(expectedMsg));
@@ -140,7 +203,7 @@ public class TcpClientTest {
     /**
      * Test if sending private messages works.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testPrivateMessages() throws InterruptedException {
@@ -148,22 +211,23 @@ public class TcpClientTest {
         TCPClient c1 = new TCPClient();
         TCPClient c2 = new TCPClient();
         TCPClient c3 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c1.connect(SERVER_HOST, serverPort));
+        assertTrue(c2.connect(SERVER_HOST, serverPort));
+        assertTrue(c3.connect(SERVER_HOST, serverPort));
+
+        // Clients will listen for incoming messages, each on a different CPU thread
+        c1.startListenThread();
+        c2.startListenThread();
+        c3.startListenThread();
 
         // Clients log in with specific usernames
         String C1_USERNAME = "UnitTestC1";
         String C2_USERNAME = "UnitTestC2";
         String C3_USERNAME = "UnitTestC3";
-        c1.tryLogin(C1_USERNAME);
-        c2.tryLogin(C2_USERNAME);
-        c3.tryLogin(C3_USERNAME);
+        login(c1, C1_USERNAME);
+        login(c2, C2_USERNAME);
+        login(c3, C3_USERNAME);
 
-        // Clients will listen for incoming messages, each on a different CPU thread
-        c1.startListenThread();
-        c2.startListenThread();
-        c3.startListenThread();
         DummyMsgReceiver rec1 = new DummyMsgReceiver();
         DummyMsgReceiver rec2 = new DummyMsgReceiver();
         DummyMsgReceiver rec3 = new DummyMsgReceiver();
@@ -173,10 +237,11 @@ public class TcpClientTest {
 
         String MSG_TEXT = "[Unittest2] This is a specific text message, please, don't repeat it!";
         // Send to Client #2 only
+        rec2.expectMessages(1);
         c1.sendPrivateMessage(C2_USERNAME, MSG_TEXT);
 
-        // Allow the message to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Wait for the message to arrive
+        assertTrue(rec2.awaitMessages());
 
         TextMessage expectedMsg = new TextMessage(C1_USERNAME, true, MSG_TEXT);
         assertFalse(rec1.hasReceived(expectedMsg));
@@ -189,16 +254,23 @@ public class TcpClientTest {
 
         // Now send from C2 to C3
         MSG_TEXT = "[Unittest3] This is a specific text message, please, don't repeat it!";
+        rec3.expectMessages(1);
         c2.sendPrivateMessage(C3_USERNAME, MSG_TEXT);
 
-        // Allow the message to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Wait for the message to arrive
+        assertTrue(rec3.awaitMessages());
 
         expectedMsg = new TextMessage(C2_USERNAME, true, MSG_TEXT);
         assertFalse(rec1.hasReceived(expectedMsg));
         assertFalse(rec2.hasReceived(expectedMsg));
         assertTrue(rec3.hasReceived(expectedMsg));
 
+        // A message to someone who is not logged in comes back as an error
+        rec1.expectMessages(1);
+        c1.sendPrivateMessage("UnitTestNobody", MSG_TEXT);
+        assertTrue(rec1.awaitMessages());
+        assertNotNull(rec1.getMsgError());
+
         // Disconnect all clients
         c1.disconnect();
         c2.disconnect();
@@ -217,47 +289,42 @@ public class TcpClientTest {
     /**
      * Test if user listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testUserListing() throws InterruptedException {
-        // Create three clients. One sends message to another. Third one should not receive.
+        // Create three clients, all of them log in
         TCPClient c1 = new TCPClient();
         TCPClient c2 = new TCPClient();
         TCPClient c3 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
-
+        assertTrue(c1.connect(SERVER_HOST, serverPort));
+        assertTrue(c2.connect(SERVER_HOST, serverPort));
+        assertTrue(c3.connect(SERVER_HOST, serverPort));
 
-        // The incoming messages will be received on another thread
+        // The incoming messages will be received on other threads
         c1.startListenThread();
+        c2.startListenThread();
+        c3.startListenThread();
+
+        // Clients log in with specific usernames
+        String C1_USERNAME = "UnitTestC1";
+        String C2_USERNAME = "UnitTestC2";
+        String C3_USERNAME = "UnitTestC3";
+        login(c1, C1_USERNAME);
+        login(c2, C2_USERNAME);
+        login(c3, C3_USERNAME);
 
         // Listen to user listing.
         DummyUserListingReceiver userListing = new DummyUserListingReceiver();
         c1.addListener(userListing);
 
-        // Clients log in with specific usernames
-        // Get some randomness added to the usernames
-        int rand = (int) (Math.random() * 10000);
-        String C1_USERNAME = "UnitTestC1" + rand;
-        String C2_USERNAME = "UnitTestC2" + rand;
-        String C3_USERNAME = "UnitTestC3" + rand;
-        c1.tryLogin(C1_USERNAME);
-        c2.tryLogin(C2_USERNAME);
-        c3.tryLogin(C3_USERNAME);
-
-        // Allow the login to happen
-        Thread.sleep(THREAD_SLEEP_TIME);
-
-        // Try to get user listing
+        // Try to get user listing, and wait for the response to arrive
+        userListing.expectListings(1);
         c1.refreshUserList();
-
-        // Allow the user listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(userListing.awaitListings());
 
         // We should get all the users listed in a single message and it should contain all the three client names
-        assertTrue(userListing.getCount() >= 3);
+        assertEquals(3, userListing.getCount());
         assertTrue(userListing.contains(C1_USERNAME));
         assertTrue(userListing.contains(C2_USERNAME));
         assertTrue(userListing.contains(C3_USERNAME));
@@ -268,16 +335,46 @@ public class TcpClientTest {
         c3.disconnect();
     }
 
+    /**
+     * Test that a client subscribed to presence events hears of another user logging in and
+     * out, without asking for the user list.
+     *
+     * @throws Exception When something unexpected happens
+     */
+    @Test
+    public void testPresenceEvents() throws Exception {
+        TCPClient watcher = new TCPClient();
+        EventRecorder events = new EventRecorder();
+        watcher.addListener(events);
+        assertTrue(watcher.connect(SERVER_HOST, serverPort));
+        watcher.startListenThread();
+        assertTrue(watcher.loginAsync("watcher").get(5, TimeUnit.SECONDS).isSuccess());
+        assertTrue(watcher.negotiatePresence().get(5, TimeUnit.SECONDS));
+        assertTrue(watcher.isPresenceActive());
+
+        TCPClient visitor = new TCPClient();
+        assertTrue(visitor.connect(SERVER_HOST, serverPort));
+        visitor.startListenThread();
+        assertTrue(visitor.loginAsync("visitor").get(5, TimeUnit.SECONDS).isSuccess());
+        assertEquals("joined visitor", events.next());
+        visitor.disconnect();
+        assertEquals("left visitor", events.next());
+
+        assertNull(events.next(200));
+        assertEquals(0, watcher.getMetrics().getSent(Command.USERS));
+        watcher.disconnect();
+    }
+
     /**
      * Test if supported command listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testSupportedCommands() throws InterruptedException {
         // Create a TCP chat client.
         TCPClient c1 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c1.connect(SERVER_HOST, serverPort));
 
         // The incoming messages will be received on another thread
         c1.startListenThread();
@@ -286,20 +383,451 @@ public class TcpClientTest {
         DummySupportedReceiver supported = new DummySupportedReceiver();
         c1.addListener(supported);
 
-        // Try to get supported command listing
+        // Try to get supported command listing, and wait for the response to arrive
+        supported.expectListings(1);
         c1.askSupportedCommands();
+        assertTrue(supported.awaitListings());
 
-        // Allow the listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-
-        // We should get all the users listed in a single message and it should contain all the three client names
+        // The listing should contain at least the basic commands
         assertTrue(supported.contains("msg"));
         assertTrue(supported.contains("privmsg"));
         assertTrue(supported.contains("login"));
         assertTrue(supported.contains("users"));
         assertTrue(supported.contains("help"));
+        assertTrue(supported.contains("joke"));
 
         // Disconnect all clients
         c1.disconnect();
     }
+
+    /**
+     * Test jokes, and the error for messages sent before login.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testJokeAndMessageError() throws InterruptedException {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(SERVER_HOST, serverPort));
+        client.startListenThread();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+
+        // Messages need a login first
+        counter.expectResponses(1);
+        client.sendPublicMessage("Not logged in yet");
+        assertTrue(counter.awaitResponses());
+        assertEquals(1, counter.msgErr);
+
+        // "/joke" typed as a message asks for a joke
+        counter.expectResponses(1);
+        client.sendPublicMessage("/joke");
+        assertTrue(counter.awaitResponses());
+        assertEquals(1, counter.joke);
+
+        client.disconnect();
+    }
+
+    /**
+     * Test that the futures of the login, users and help requests complete with the replies.
+     *
+     * @throws Exception When a request fails or times out
+     */
+    @Test
+    public void testAsyncRequests() throws Exception {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(SERVER_HOST, serverPort));
+        client.startListenThread();
+
+        LoginResult refused = client.loginAsync("Bad username").get(5, TimeUnit.SECONDS);
+        assertFalse(refused.isSuccess());
+        assertNull(client.getUsername());
+        assertTrue(client.loginAsync("asyncbob").get(5, TimeUnit.SECONDS).isSuccess());
+        assertEquals("asyncbob", client.getUsername());
+        // Sent back to back, each reply completes its own request
+        CompletableFuture<List<String>> users = client.usersAsync();
+        CompletableFuture<List<String>> supported = client.supportedCommandsAsync();
+        assertEquals(List.of("asyncbob"), users.get(5, TimeUnit.SECONDS));
+        assertTrue(supported.get(5, TimeUnit.SECONDS).contains("login"));
+        client.disconnect();
+    }
+
+    /**
+     * Test that requests still waiting for their replies fail when the client disconnects, and
+     * when the server does not answer in time.
+     *
+     * @throws Exception When something unexpected happens
+     */
+    @Test
+    public void testRequestsFail() throws Exception {
+        try (ServerSocket silentServer = new ServerSocket(0)) {
+            Thread serverThread = new Thread(() -> {
+                // Reads the requests, never answers
+                for (int i = 0; i < 2; i++) {
+                    try (Socket socket = silentServer.accept()) {
+                        while (socket.getInputStream().read() >= 0) {
+                            // Ignored
+                        }
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            serverThread.start();
+
+            TCPClient client = new TCPClient();
+            assertTrue(client.connect(SERVER_HOST, silentServer.getLocalPort()));
+            client.startListenThread();
+            List<CompletableFuture<?>> requests = List.of(client.loginAsync("alice"), client.usersAsync(),
+                    client.supportedCommandsAsync());
+            client.disconnect();
+            for (CompletableFuture<?> request : requests) {
+                try {
+                    request.get(5, TimeUnit.SECONDS);
+                    fail("A request without a reply must fail");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+
+            client.setRequestTimeout(200, TimeUnit.MILLISECONDS);
+            assertTrue(client.connect(SERVER_HOST, silentServer.getLocalPort()));
+            client.startListenThread();
+            try {
+                client.usersAsync().get(5, TimeUnit.SECONDS);
+                fail("A request without a reply must time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            client.disconnect();
+            serverThread.join(5000);
+        }
+    }
+
+    /**
+     * Test that the supported commands are asked for once, and used to switch on the optional
+     * features.
+     *
+     * @throws Exception When the negotiation fails or times out
+     */
+    @Test
+    public void testNegotiateFeatures() throws Exception {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(SERVER_HOST, serverPort));
+        client.startListenThread();
+
+        ServerCapabilities supported = client.negotiateFeatures().get(5, TimeUnit.SECONDS);
+        assertTrue(supported.supports(Command.JOKE));
+        assertFalse(supported.supports(Command.LOGINOK));
+        assertSame(supported, client.getCapabilities());
+        assertTrue(client.isBinaryFraming());
+        assertTrue(client.isPresenceActive());
+        assertTrue(client.negotiateCompression(256).get(5, TimeUnit.SECONDS));
+        // Framing, presence and compression all used the first answer
+        assertEquals(1, client.getMetrics().getSent(Command.HELP));
+        login(client, "features");
+
+        // A new connection may go to another server, so it asks again
+        client.disconnect();
+        assertNull(client.getCapabilities());
+        assertTrue(client.connect(SERVER_HOST, serverPort));
+        client.startListenThread();
+        client.capabilitiesAsync().get(5, TimeUnit.SECONDS);
+        assertEquals(2, client.getMetrics().getSent(Command.HELP));
+        client.disconnect();
+    }
+
+    /**
+     * Test that the server's list only decides about the optional features: a joke which the
+     * server answers without listing it is still sent, presence and framing are not asked for.
+     *
+     * @throws Exception When the server thread fails or times out
+     */
+    @Test
+    public void testUnlistedBaseCommandsAreSent() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        try (ServerSocket minimalServer = new ServerSocket(0)) {
+            Thread serverThread = new Thread(() -> {
+                try (Socket socket = minimalServer.accept();
+                     BufferedReader in = new BufferedReader(
+                             new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                     PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        received.add(line);
+                        if (line.equals("help")) {
+                            // No presence, no framing, and jokes are not listed either
+                            out.println("supported login msg help");
+                        } else if (line.equals("joke")) {
+                            out.println("joke Unlisted, but here it is");
+                        }
+                    }
+                } catch (IOException e) {
+                    // Connection closed by the test
+                }
+            });
+            serverThread.start();
+
+            TCPClient client = new TCPClient();
+            assertTrue(client.connect(SERVER_HOST, minimalServer.getLocalPort()));
+            client.startListenThread();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            client.addListener(counter);
+            // The listeners hear of the supported commands after the negotiation has them
+            counter.expectResponses(1);
+            ServerCapabilities supported = client.negotiateFeatures().get(5, TimeUnit.SECONDS);
+            assertTrue(counter.awaitResponses());
+            assertFalse(supported.supports(Command.JOKE));
+            assertFalse(client.isBinaryFraming());
+            assertFalse(client.isPresenceActive());
+            assertFalse(client.negotiatePresence().get(5, TimeUnit.SECONDS));
+
+            counter.expectResponses(1);
+            assertTrue(client.sendPublicMessage("/joke"));
+            assertTrue(counter.awaitResponses());
+            assertEquals(1, counter.joke);
+            assertEquals(0, counter.cmdErr);
+            assertEquals(0, client.getMetrics().getRejectedCommands());
+
+            // Neither presence nor framing were asked for
+            assertTrue(client.sendPublicMessage("hello"));
+            assertEquals("help", received.poll(5, TimeUnit.SECONDS));
+            assertEquals("joke", received.poll(5, TimeUnit.SECONDS));
+            assertEquals("msg hello", received.poll(5, TimeUnit.SECONDS));
+            client.disconnect();
+            serverThread.join(5000);
+        }
+    }
+
+    /**
+     * Test that commands are only rejected locally when the supported commands were negotiated
+     * and the server listed some: not after a "help" sent by the user, and not when the list
+     * is empty.
+     *
+     * @throws Exception When something unexpected happens
+     */
+    @Test
+    public void testNoRejectWithoutNegotiatedList() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        try (ServerSocket minimalServer = new ServerSocket(0)) {
+            Thread serverThread = new Thread(() -> {
+                // The first connection gets a short list, the second an empty one
+                for (String supported : new String[]{"supported login msg help", "supported"}) {
+                    try (Socket socket = minimalServer.accept();
+                         BufferedReader in = new BufferedReader(
+                                 new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                         PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            received.add(line);
+                            if (line.equals("help")) {
+                                out.println(supported);
+                            }
+                        }
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            serverThread.start();
+
+            TCPClient client = new TCPClient();
+            DummyResponseCounter counter = new DummyResponseCounter();
+            client.addListener(counter);
+            assertTrue(client.connect(SERVER_HOST, minimalServer.getLocalPort()));
+            client.startListenThread();
+            counter.expectResponses(1);
+            client.askSupportedCommands();
+            assertTrue(counter.awaitResponses());
+            assertFalse(client.getCapabilities().supports(Command.JOKE));
+            assertTrue(client.sendPublicMessage("/joke"));
+            assertEquals("help", received.poll(5, TimeUnit.SECONDS));
+            assertEquals("joke", received.poll(5, TimeUnit.SECONDS));
+            client.disconnect();
+
+            assertTrue(client.connect(SERVER_HOST, minimalServer.getLocalPort()));
+            client.startListenThread();
+            assertTrue(client.negotiateFeatures().get(5, TimeUnit.SECONDS).getKeywords().isEmpty());
+            assertTrue(client.sendPublicMessage("/joke"));
+            assertEquals("help", received.poll(5, TimeUnit.SECONDS));
+            assertEquals("joke", received.poll(5, TimeUnit.SECONDS));
+            assertEquals(0, client.getMetrics().getRejectedCommands());
+            client.disconnect();
+            serverThread.join(5000);
+        }
+    }
+
+    /**
+     * Test that a refused switch to binary frames fails the request, and that a message sent
+     * while waiting for the answer is held back and then sent as a text line.
+     *
+     * @throws Exception When something unexpected happens
+     */
+    @Test
+    public void testBinaryFramingRefused() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        try (ServerSocket minimalServer = new ServerSocket(0)) {
+            Thread serverThread = new Thread(() -> {
+                try (Socket socket = minimalServer.accept();
+                     BufferedReader in = new BufferedReader(
+                             new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                     PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        received.add(line);
+                        if (line.equals("help")) {
+                            out.println("supported login msg help framing");
+                        } else if (line.equals("framing binary")) {
+                            // Answer late, so the client sends something meanwhile
+                            Thread.sleep(300);
+                            out.println("cmderr unknown framing binary");
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Connection closed by the test
+                }
+            });
+            serverThread.start();
+
+            TCPClient client = new TCPClient();
+            assertTrue(client.connect(SERVER_HOST, minimalServer.getLocalPort()));
+            client.startListenThread();
+            assertTrue(client.capabilitiesAsync().get(5, TimeUnit.SECONDS).supports(Command.FRAMING));
+            CompletableFuture<Boolean> framing = client.negotiateBinaryFraming();
+            assertEquals("help", received.poll(5, TimeUnit.SECONDS));
+            assertEquals("framing binary", received.poll(5, TimeUnit.SECONDS));
+            CompletableFuture<Boolean> sent = client.sendPublicMessageAsync("hello");
+
+            try {
+                framing.get(5, TimeUnit.SECONDS);
+                fail("The refused switch must fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ProtocolException);
+            }
+            assertFalse(client.isBinaryFraming());
+            assertTrue(sent.get(5, TimeUnit.SECONDS));
+            assertEquals("msg hello", received.poll(5, TimeUnit.SECONDS));
+            client.disconnect();
+            serverThread.join(5000);
+        }
+    }
+
+    /**
+     * Start a new server on the port of the stopped one.
+     *
+     * @throws IOException When the port could not be opened again
+     */
+    private void restartServer() throws IOException {
+        server = new ChatServer(serverPort);
+        server.start();
+    }
+
+    /**
+     * Test that a lost connection is restored, and that the messages sent meanwhile are kept in
+     * the outbox, delivered in order, and the oldest dropped when the outbox is full.
+     *
+     * @throws Exception When the test is interrupted or the server can't be restarted
+     */
+    @Test
+    public void testReconnectReplaysOutbox() throws Exception {
+        TCPClient sender = new TCPClient();
+        // Fixed delays, so the server can be restarted between two attempts
+        sender.enableReconnect(new ReconnectPolicy(500, 500, 0, 0, 3));
+        assertTrue(sender.connect(SERVER_HOST, serverPort));
+        sender.startListenThread();
+        login(sender, "sender");
+        EventRecorder events = new EventRecorder();
+        sender.addListener(events);
+
+        server.stop();
+        assertEquals("reconnecting 1", events.next());
+        assertTrue(sender.isReconnecting());
+        List<CompletableFuture<Boolean>> sent = new ArrayList<>();
+        for (String text : new String[]{"one", "two", "three", "four"}) {
+            sent.add(sender.sendPublicMessageAsync(text));
+        }
+        // The outbox holds three messages, the oldest was dropped
+        assertFalse(sent.get(0).get(5, TimeUnit.SECONDS));
+        assertEquals(1, sender.getOutboxDropped());
+
+        // The first attempt failed, the server is back before the second one
+        assertEquals("reconnecting 2", events.next());
+        restartServer();
+        TCPClient receiver = new TCPClient();
+        assertTrue(receiver.connect(SERVER_HOST, serverPort));
+        receiver.startListenThread();
+        login(receiver, "receiver");
+        EventRecorder received = new EventRecorder();
+        receiver.addListener(received);
+
+        assertEquals("reconnected", events.next());
+        assertFalse(sender.isReconnecting());
+        for (int i = 1; i < sent.size(); i++) {
+            assertTrue(sent.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals("msg sender: two", received.next());
+        assertEquals("msg sender: three", received.next());
+        assertEquals("msg sender: four", received.next());
+        assertEquals(1, sender.getMetrics().getReconnects());
+
+        sender.disconnect();
+        assertEquals("disconnect", events.next());
+        receiver.disconnect();
+    }
+
+    /**
+     * Test that the client gives up after the attempts the policy allows.
+     *
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void testReconnectGivesUp() throws InterruptedException {
+        TCPClient client = new TCPClient();
+        client.enableReconnect(new ReconnectPolicy(50, 50, 0, 2, 10));
+        assertTrue(client.connect(SERVER_HOST, serverPort));
+        client.startListenThread();
+        EventRecorder events = new EventRecorder();
+        client.addListener(events);
+
+        server.stop();
+        assertEquals("reconnecting 1", events.next());
+        assertEquals("reconnecting 2", events.next());
+        assertEquals("disconnect", events.next());
+        assertNull(events.next(200));
+        assertFalse(client.isReconnecting());
+        assertFalse(client.isConnectionActive());
+        assertEquals(2, client.getMetrics().getReconnectAttempts());
+        // Messages are not kept any more
+        assertFalse(client.sendPublicMessage("too late"));
+    }
+
+    /**
+     * Test that disconnect() while waiting for the next attempt stops reconnecting.
+     *
+     * @throws Exception When the test is interrupted or the server can't be restarted
+     */
+    @Test
+    public void testDisconnectDuringBackoff() throws Exception {
+        TCPClient client = new TCPClient();
+        client.enableReconnect(new ReconnectPolicy(300, 300, 0, 0, 10));
+        assertTrue(client.connect(SERVER_HOST, serverPort));
+        client.startListenThread();
+        EventRecorder events = new EventRecorder();
+        client.addListener(events);
+
+        server.stop();
+        assertEquals("reconnecting 1", events.next());
+        CompletableFuture<Boolean> queued = client.sendPublicMessageAsync("never sent");
+        client.disconnect();
+        assertEquals("disconnect", events.next());
+        assertFalse(queued.get(5, TimeUnit.SECONDS));
+
+        // The server is back, but the client does not come back to it
+        restartServer();
+        assertNull(events.next(700));
+        assertFalse(client.isConnectionActive());
+        assertFalse(client.isReconnecting());
+        assertEquals(0, client.getMetrics().getReconnectAttempts());
+        assertEquals(0, server.getClientCount());
+    }
 }
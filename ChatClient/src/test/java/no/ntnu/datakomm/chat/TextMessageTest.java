@@ -0,0 +1,62 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for TextMessage equality and the SymbolTable for senders.
+ */
+public class TextMessageTest {
+
+    @Test
+    public void testEqualsComparesFields() {
+        // "Aa" and "BB" have the same hash code
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertNotEquals(new TextMessage("alice", false, "Aa"), new TextMessage("alice", false, "BB"));
+        assertNotEquals(new TextMessage("Aa", false, "hei"), new TextMessage("BB", false, "hei"));
+        assertNotEquals(new TextMessage("alice", false, "hei"), new TextMessage("alice", true, "hei"));
+        assertNotEquals(new TextMessage("alice", false, "hei"), null);
+        assertEquals(new TextMessage("alice", true, "hei"), new TextMessage("alice", true, "hei"));
+    }
+
+    @Test
+    public void testUtf8Text() {
+        TextMessage text = new TextMessage("bob", false, "blåbærsyltetøy 🙂");
+        TextMessage utf8 = text.toUtf8();
+        assertEquals("blåbærsyltetøy 🙂", utf8.getText());
+        assertEquals(text, utf8);
+        assertEquals(utf8, text);
+        assertEquals(text.hashCode(), utf8.hashCode());
+        assertEquals(utf8, new TextMessage("bob", false, "blåbærsyltetøy 🙂".getBytes(StandardCharsets.UTF_8)));
+        assertNotEquals(utf8, new TextMessage("bob", false, "blåbærsyltetøy".getBytes(StandardCharsets.UTF_8)));
+        assertSame(utf8, utf8.toUtf8());
+    }
+
+    @Test
+    public void testSymbolTable() {
+        SymbolTable table = new SymbolTable(2);
+        String alice = table.intern(new String("alice"));
+        assertSame(alice, table.intern(new String("alice")));
+
+        // Found from the received bytes, without decoding them
+        ByteBuffer received = ByteBuffer.allocateDirect(64);
+        received.put("msg alice hei".getBytes(StandardCharsets.UTF_8));
+        ByteSlice args = new ByteSlice();
+        args.set(received, 4, 13);
+        assertSame(alice, table.intern(args, 0, 5));
+
+        String åse = table.intern(new String("åse"));
+        assertSame(åse, table.intern(new String("åse")));
+
+        // Full: new names are not kept
+        assertEquals(2, table.size());
+        String carol = table.intern(new String("carol"));
+        assertEquals("carol", carol);
+        assertNotSame(carol, table.intern(new String("carol")));
+        assertEquals(2, table.size());
+    }
+}
@@ -0,0 +1,139 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the TranscriptLog segment files.
+ */
+public class TranscriptLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static TranscriptLog open(Path dir, int segmentBytes) throws IOException {
+        return new TranscriptLog(dir, segmentBytes, TranscriptLog.SyncPolicy.NONE, 0);
+    }
+
+    @Test
+    public void testReloadAfterReopen() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (TranscriptLog log = open(dir, 4096)) {
+            log.append(new TextMessage("alice", false, "hei"));
+            log.append(new TextMessage("bob", true, "æøå – 🙂"));
+            log.append(new TextMessage("you", false, ""));
+        }
+        try (TranscriptLog log = open(dir, 4096)) {
+            // A private message we sent keeps its recipient
+            log.append(new TextMessage("carol", "bob", "see you"));
+            TextMessage sent = log.readLast(1).get(0);
+            assertEquals("bob", sent.getRecipient());
+            assertTrue(sent.isPrivate());
+            assertEquals("see you", sent.getText());
+            assertEquals(new TextMessage("carol", "bob", "see you"), sent);
+        }
+        try (TranscriptLog log = open(dir, 4096)) {
+            assertEquals(List.of(new TextMessage("you", false, ""), new TextMessage("carol", "bob", "see you")),
+                    log.readLast(2));
+            log.append(new TextMessage("carol", false, "after reopen"));
+            List<TextMessage> all = log.readLast(10);
+            assertEquals(5, all.size());
+            assertEquals(new TextMessage("bob", true, "æøå – 🙂"), all.get(1));
+            assertEquals("alice", all.get(0).getSender());
+            assertEquals("after reopen", all.get(4).getText());
+        }
+    }
+
+    @Test
+    public void testSegments() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        List<TextMessage> written = new ArrayList<>();
+        try (TranscriptLog log = open(dir, 128)) {
+            for (int i = 0; i < 20; i++) {
+                TextMessage message = new TextMessage("user" + i, false, "message " + i);
+                log.append(message);
+                written.add(message);
+            }
+            // A record larger than a segment gets a segment of its own
+            TextMessage large = new TextMessage("big", false, "x".repeat(1000));
+            log.append(large);
+            written.add(large);
+            log.append(new TextMessage("small", false, "after"));
+            written.add(new TextMessage("small", false, "after"));
+            assertTrue(log.getSegments().size() > 5);
+            assertEquals(written.subList(15, 22), log.readLast(7));
+        }
+        try (TranscriptLog log = open(dir, 128)) {
+            assertEquals(written, log.readLast(100));
+        }
+    }
+
+    @Test
+    public void testRecoverCutShortWrite() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (TranscriptLog log = open(dir, 4096)) {
+            log.append(new TextMessage("alice", false, "complete"));
+            log.append(new TextMessage("alice", false, "cut short"));
+        }
+        // Damage the text of the second record, as if the process died while writing it
+        Path segment = dir.resolve("transcript-000000.log");
+        int secondText = 8 + 11 + 5 + "complete".length() + 4 + 8 + 11 + 5;
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(new byte[]{'X'}), secondText);
+        }
+        try (TranscriptLog log = open(dir, 4096)) {
+            assertEquals(List.of(new TextMessage("alice", false, "complete")), log.readLast(10));
+            log.append(new TextMessage("bob", false, "next"));
+        }
+        try (TranscriptLog log = open(dir, 4096)) {
+            assertEquals(List.of(new TextMessage("alice", false, "complete"), new TextMessage("bob", false, "next")),
+                    log.readLast(10));
+        }
+    }
+
+    @Test
+    public void testListenerAndLock() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (TranscriptLog log = new TranscriptLog(dir, 4096, TranscriptLog.SyncPolicy.INTERVAL, 10)) {
+            new TranscriptListener(log).onMessageReceived(new TextMessage("dave", true, "hello"));
+            assertEquals(List.of(new TextMessage("dave", true, "hello")), log.readLast(1));
+            try {
+                open(dir, 4096).close();
+                fail("The transcript was opened twice");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testSyncWhileAppending() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (TranscriptLog log = new TranscriptLog(dir, 256, TranscriptLog.SyncPolicy.EVERY_MESSAGE, 0)) {
+            Thread syncer = new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    log.sync();
+                }
+            });
+            syncer.start();
+            // Small segments, so some syncs force a segment while the next one is being started
+            for (int i = 0; i < 200; i++) {
+                log.append(new TextMessage("alice", false, "message " + i));
+            }
+            syncer.join();
+            List<TextMessage> last = log.readLast(2);
+            assertEquals("message 198", last.get(0).getText());
+            assertEquals("message 199", last.get(1).getText());
+        }
+    }
+}
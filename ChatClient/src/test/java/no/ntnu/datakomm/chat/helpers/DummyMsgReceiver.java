@@ -11,16 +11,38 @@ import no.ntnu.datakomm.chat.TextMessage;
 public class DummyMsgReceiver extends EmptyChatListener {
 
     private final List<TextMessage> messages = new LinkedList<>();
-    private String msgError = null;
+    private volatile String msgError = null;
+    private final ResponseLatch received = new ResponseLatch();
 
     @Override
-    public void onMessageReceived(TextMessage message) {
+    public synchronized void onMessageReceived(TextMessage message) {
         messages.add(message);
+        received.countDown();
     }
 
     @Override
     public void onMessageError(String errMsg) {
         msgError = errMsg;
+        received.countDown();
+    }
+
+    /**
+     * Start waiting for messages or message errors.
+     *
+     * @param count Number of messages and errors to wait for
+     */
+    public void expectMessages(int count) {
+        received.expect(count);
+    }
+
+    /**
+     * Wait until the expected messages have arrived.
+     *
+     * @return true if they arrived, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean awaitMessages() throws InterruptedException {
+        return received.await();
     }
 
     /**
@@ -36,7 +58,7 @@ public class DummyMsgReceiver extends EmptyChatListener {
     /**
      * Delete all buffered messages
      */
-    public void clearMessages() {
+    public synchronized void clearMessages() {
         messages.clear();
     }
 
@@ -46,7 +68,7 @@ public class DummyMsgReceiver extends EmptyChatListener {
      * @param msg
      * @return
      */
-    public boolean hasReceived(TextMessage msg) {
+    public synchronized boolean hasReceived(TextMessage msg) {
         // return messages.contains(msg);
         for (TextMessage m : messages) {
             if (m.equals(msg)) return true;
@@ -4,7 +4,8 @@ import no.ntnu.datakomm.chat.ChatListener;
 import no.ntnu.datakomm.chat.TextMessage;
 
 /**
- * A class that just remembers what responses have been received
+ * A class that just remembers what responses have been received. Call expectResponses() before
+ * a request and awaitResponses() to wait for the answers.
  */
 public class DummyResponseCounter implements ChatListener {
 
@@ -15,8 +16,30 @@ public class DummyResponseCounter implements ChatListener {
     public int userList = 0;
     public int supported = 0;
     public int cmdErr = 0;
+    public int joke = 0;
     public int disconn = 0;
 
+    private final ResponseLatch responses = new ResponseLatch();
+
+    /**
+     * Start waiting for responses of any kind (disconnects are not counted).
+     *
+     * @param count Number of responses to wait for
+     */
+    public void expectResponses(int count) {
+        responses.expect(count);
+    }
+
+    /**
+     * Wait until the expected responses have arrived.
+     *
+     * @return true if they arrived, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean awaitResponses() throws InterruptedException {
+        return responses.await();
+    }
+
     @Override
     public void onLoginResult(boolean success, String errMsg) {
         if (success) {
@@ -24,35 +47,43 @@ public class DummyResponseCounter implements ChatListener {
         } else {
             loginError++;
         }
+        responses.countDown();
     }
 
     @Override
     public void onMessageReceived(TextMessage message) {
         msg++;
+        responses.countDown();
     }
 
     @Override
     public void onMessageError(String errMsg) {
         msgErr++;
+        responses.countDown();
     }
 
     @Override
     public void onUserList(String[] usernames) {
         userList++;
+        responses.countDown();
     }
 
     @Override
     public void onSupportedCommands(String[] commands) {
         supported++;
+        responses.countDown();
     }
 
     @Override
     public void onCommandError(String errMsg) {
         cmdErr++;
+        responses.countDown();
     }
 
     @Override
     public void onJoke(String joke) {
+        this.joke++;
+        responses.countDown();
     }
 
     @Override
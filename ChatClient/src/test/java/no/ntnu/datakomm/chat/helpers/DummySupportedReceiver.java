@@ -1,19 +1,40 @@
 package no.ntnu.datakomm.chat.helpers;
 
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Receive and remember last supported command listing.
  */
 public class DummySupportedReceiver extends EmptyChatListener {
-    private Set<String> commands = new HashSet<>();
+    private final Set<String> commands = ConcurrentHashMap.newKeySet();
+    private final ResponseLatch listings = new ResponseLatch();
 
     @Override
     public void onSupportedCommands(String[] commands) {
         // Convert the String[] to List<String>, then to HashMap<String>
         this.commands.addAll(Arrays.asList(commands));
+        listings.countDown();
+    }
+
+    /**
+     * Start waiting for command listings.
+     *
+     * @param count Number of listings to wait for
+     */
+    public void expectListings(int count) {
+        listings.expect(count);
+    }
+
+    /**
+     * Wait until the expected listings have arrived.
+     *
+     * @return true if they arrived, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean awaitListings() throws InterruptedException {
+        return listings.await();
     }
 
     /**
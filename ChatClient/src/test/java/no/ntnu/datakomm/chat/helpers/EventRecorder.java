@@ -0,0 +1,69 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.TextMessage;
+
+/**
+ * Records the connection, presence and message events in the order they arrive, as short
+ * strings like "reconnecting 1", "joined bob" or "msg alice: hi", so a test can check the order.
+ */
+public class EventRecorder extends EmptyChatListener {
+    // How long to wait for an event before giving up
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    /**
+     * Wait for the next event.
+     *
+     * @return The event, null on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public String next() throws InterruptedException {
+        return events.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Wait for an event, or make sure that none arrives.
+     *
+     * @param millis How long to wait
+     * @return The event, null if none arrived
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public String next(long millis) throws InterruptedException {
+        return events.poll(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        events.add((message.isPrivate() ? "privmsg " : "msg ") + message.getSender() + ": " + message.getText());
+    }
+
+    @Override
+    public void onDisconnect() {
+        events.add("disconnect");
+    }
+
+    @Override
+    public void onUserJoined(String username) {
+        events.add("joined " + username);
+    }
+
+    @Override
+    public void onUserLeft(String username) {
+        events.add("left " + username);
+    }
+
+    @Override
+    public void onReconnecting(int attempt, long delayMillis) {
+        events.add("reconnecting " + attempt);
+    }
+
+    @Override
+    public void onReconnected() {
+        events.add("reconnected");
+    }
+}
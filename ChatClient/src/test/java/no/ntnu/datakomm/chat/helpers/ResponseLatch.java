@@ -0,0 +1,41 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets a test wait for a number of responses instead of sleeping. Call expect() before sending
+ * the request, then await() for the responses.
+ */
+public class ResponseLatch {
+    // How long to wait for responses before giving up
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private volatile CountDownLatch latch = new CountDownLatch(0);
+
+    /**
+     * Start waiting for new responses.
+     *
+     * @param count Number of responses to wait for
+     */
+    public void expect(int count) {
+        latch = new CountDownLatch(count);
+    }
+
+    /**
+     * Count one response. Responses beyond the expected number are ignored.
+     */
+    public void countDown() {
+        latch.countDown();
+    }
+
+    /**
+     * Wait until the expected responses have arrived.
+     *
+     * @return true if they arrived, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean await() throws InterruptedException {
+        return latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
@@ -1,27 +1,48 @@
 package no.ntnu.datakomm;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * A class used to test whether the server can handle multiple TCP client simultaneously (a multi-threaded server)
+ * For load tests of the chat server, see no.ntnu.datakomm.chat.load.LoadGenerator in the Benchmarks module.
  */
 public class MultiClientTest {
+    // Creates one thread per simulated client
+    private static final ThreadFactory CLIENT_THREADS = SessionThreads.factory("client-");
 
     /**
      * Run multiple parallel clients that all connect to the same server
      *
-     * @param args Command-line arguments. Not used.
+     * @param args Command-line arguments. The first one is the number of clients to start (default 3).
      */
     public static void main(String args[]) {
-        log("Starting several clients to test servers multi-threading capability");
-        startNewClient();
-        startNewClient();
-        startNewClient();
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        log("Starting " + clientCount + " clients to test servers multi-threading capability"
+                + (SessionThreads.usesVirtualThreads() ? " (virtual threads)" : ""));
+        List<Thread> clients = new ArrayList<>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            clients.add(startNewClient());
+        }
+        // The client threads are daemon threads, wait for them before the JVM exits
+        for (Thread t : clients) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
         log("Multi client app main thread done");
     }
 
     /**
      * Start a new client in a new thread.
+     *
+     * @return The started thread
      */
-    private static void startNewClient() {
+    private static Thread startNewClient() {
         final SimpleTcpClient client = new SimpleTcpClient();
         Runnable taskToBeExecutedOnAnotherThread = new Runnable() {
             public void run() {
@@ -36,8 +57,9 @@ public class MultiClientTest {
                 }
             }
         };
-        Thread t = new Thread(taskToBeExecutedOnAnotherThread);
+        Thread t = CLIENT_THREADS.newThread(taskToBeExecutedOnAnotherThread);
         t.start();
+        return t;
     }
 
     /**
@@ -0,0 +1,63 @@
+package no.ntnu.datakomm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the threads used for simulated client sessions. Virtual threads (Java 21+) are used by
+ * default, so a session costs a few kilobytes instead of a full thread stack. On older runtimes,
+ * or when -Dchat.threads=platform is given, daemon platform threads with a small stack are used.
+ * Note that all these threads are daemon threads: join them if the JVM must wait for them.
+ */
+public final class SessionThreads {
+    // Stack size for platform threads
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private static final Method OF_VIRTUAL = findOfVirtual();
+
+    private SessionThreads() {
+    }
+
+    /**
+     * @return true if virtual threads are supported by the runtime and not disabled
+     */
+    public static boolean usesVirtualThreads() {
+        return OF_VIRTUAL != null && !"platform".equalsIgnoreCase(System.getProperty("chat.threads"));
+    }
+
+    /**
+     * Get a thread factory for session threads.
+     *
+     * @param namePrefix Prefix of the thread names, a sequence number is appended
+     * @return The thread factory
+     */
+    public static ThreadFactory factory(String namePrefix) {
+        if (usesVirtualThreads()) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Fall back to platform threads below
+            }
+        }
+        AtomicLong counter = new AtomicLong();
+        return task -> {
+            Thread t = new Thread(null, task, namePrefix + counter.getAndIncrement(), PLATFORM_STACK_SIZE);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static Method findOfVirtual() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            ofVirtual.invoke(null);
+            return ofVirtual;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -1,84 +1,222 @@
 package no.ntnu.datakomm;
 
-import javax.sound.sampled.Port;
-import javax.swing.*;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Locale;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 /**
- * A Simple TCP server, used as a warm-up exercise for assignment A4.
+ * A Simple TCP server, used as a warm-up exercise for assignment A4. Every client connection is
+ * handled on a thread of a bounded pool, and the server keeps accepting new clients until it is
+ * stopped.
  */
 public class SimpleTcpServer {
     private static final int PORT = 1301;
+    // How many clients are served in parallel
+    private static final int DEFAULT_WORKERS = 64;
+    // How many accepted clients may wait for a free worker before new ones are turned away
+    private static final int DEFAULT_BACKLOG = 256;
+    // How long stop() waits for the clients to finish their conversation
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
 
     private final Logger logger;
+    private final int port;
+    private final ThreadPoolExecutor workers;
+    private final Set<Socket> activeClients = ConcurrentHashMap.newKeySet();
+
+    private volatile ServerSocket welcomeSocket;
+    private volatile boolean mustRun = true;
 
     public SimpleTcpServer() {
+        this(PORT, DEFAULT_WORKERS, DEFAULT_BACKLOG);
+    }
+
+    /**
+     * @param port        TCP port to listen on, 0 to pick a free port
+     * @param workerCount Maximum number of clients served in parallel
+     * @param backlog     Maximum number of accepted clients waiting for a worker
+     */
+    public SimpleTcpServer(int port, int workerCount, int backlog) {
         this.logger = Logger.getLogger(getClass().toString());
+        this.port = port;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(backlog));
+        this.workers.allowCoreThreadTimeOut(true);
     }
 
 
     public static void main(String[] args) {
 
         SimpleTcpServer server = new SimpleTcpServer();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
         log("Simple TCP server starting");
         server.run();
-        log("ERROR: the server should never go out of the run() method! After handling one client");
+        log("Simple TCP server stopped");
     }
 
+    /**
+     * Accept clients until stop() is called. Each client is handed over to the worker pool, so
+     * this method returns only when the server is stopped (or the socket could not be opened).
+     */
     public void run() {
-        try{
-        ServerSocket welcomeSocket = new ServerSocket(PORT);
-        System.out.println("Server started on port " + PORT);
+        try (ServerSocket socket = new ServerSocket(port)) {
+            welcomeSocket = socket;
+            System.out.println("Server started on port " + socket.getLocalPort());
+
+            while (mustRun) {
+                Socket clientSocket = socket.accept();
+                try {
+                    workers.execute(new ClientTask(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    logger.log(Level.WARNING, "Too many clients, closing the new connection");
+                    closeQuietly(clientSocket);
+                }
+            }
 
-        String response;
+        } catch (SocketException e) {
+            if (mustRun) {
+                logger.log(Level.WARNING, "Error, the welcome socket was closed");
+                e.printStackTrace();
+            }
+        }catch (IOException e){
+            logger.log(Level.WARNING, "Error, not able to open socket");
+            e.printStackTrace();
+        }catch (SecurityException s){
+            logger.log(Level.WARNING, "The operation is not allowed to run");
+            s.printStackTrace();
+        }catch (IllegalArgumentException i){
+            logger.log(Level.WARNING, "The port is invalid");
+            i.printStackTrace();
+        }
+    }
 
-        boolean mustRun = true;
-        while(mustRun) {
-            Socket clientSocket = welcomeSocket.accept();
+    /**
+     * Stop accepting new clients, let the connected clients finish and close whatever is still
+     * open after the shutdown timeout.
+     */
+    public void stop() {
+        mustRun = false;
+        ServerSocket socket = welcomeSocket;
+        if (socket != null) {
+            closeQuietly(socket);
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                for (Socket client : activeClients) {
+                    closeQuietly(client);
+                }
+                // The clients still waiting for a worker are never served, close them as well
+                for (Runnable waiting : workers.shutdownNow()) {
+                    if (waiting instanceof ClientTask) {
+                        closeQuietly(((ClientTask) waiting).clientSocket);
+                    }
+                }
+                // The workers stop as soon as they notice their closed sockets
+                workers.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    /**
+     * @return true when stop() has finished: no worker is running and no client is connected
+     */
+    public boolean isTerminated() {
+        return workers.isTerminated() && activeClients.isEmpty();
+    }
 
-            InputStreamReader reader = new InputStreamReader(clientSocket.getInputStream());
-            BufferedReader bufReader = new BufferedReader(reader);
+    /**
+     * @return The number of clients being served right now, not counting those waiting for a
+     * worker
+     */
+    public int getActiveClientCount() {
+        return activeClients.size();
+    }
 
-            String clientInput = bufReader.readLine();
-            System.out.println("Client sent: " + clientInput);
-            String[] parts = clientInput.split(" ");
+    /**
+     * @return The port the server listens on, or -1 when it is not running
+     */
+    public int getLocalPort() {
+        ServerSocket socket = welcomeSocket;
+        return socket != null ? socket.getLocalPort() : -1;
+    }
 
-            if (parts.length == 3){
-                response = parts[0] + " " + parts[1].toUpperCase() + " " + parts[2];
-            } else {
-                response = "ERROR";
+    /**
+     * Serve one client: answer its requests one by one until it says "game over" or closes the
+     * connection. Runs on a worker thread.
+     *
+     * @param clientSocket The socket of the accepted client
+     */
+    private void handleClient(Socket clientSocket) {
+        activeClients.add(clientSocket);
+        try (Socket socket = clientSocket) {
+            BufferedReader bufReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+
+            String clientInput = bufReader.readLine();
+            while (mustRun && clientInput != null && !clientInput.equals("game over")) {
+                System.out.println("Client sent: " + clientInput);
+                writer.println(handleRequest(clientInput));
+                clientInput = bufReader.readLine();
             }
-            PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(),true);
-            writer.println(response);
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Client connection closed: " + e.getMessage());
+        } finally {
+            activeClients.remove(clientSocket);
+        }
+    }
 
-            clientSocket.close();
+    /**
+     * Serves one accepted client on a worker. A named class rather than a lambda, so that stop()
+     * can find the sockets of the clients still waiting in the queue.
+     */
+    private class ClientTask implements Runnable {
+        private final Socket clientSocket;
 
-            welcomeSocket.close();
+        ClientTask(Socket clientSocket) {
+            this.clientSocket = clientSocket;
+        }
 
+        @Override
+        public void run() {
+            handleClient(clientSocket);
         }
+    }
 
+    /**
+     * Produce the response for one client request.
+     *
+     * @param clientInput The request line sent by the client
+     * @return The response line
+     */
+    private String handleRequest(String clientInput) {
+        String[] parts = clientInput.split(" ");
+        if (parts.length == 3){
+            return parts[0] + " " + parts[1].toUpperCase() + " " + parts[2];
+        } else {
+            return "ERROR";
+        }
+    }
 
-        }catch (IOException e){
-            logger.log(Level.WARNING, "Error, not able to open socket");
-            e.printStackTrace();
-        }catch (SecurityException s){
-            logger.log(Level.WARNING, "The operation is not allowed to run");
-            s.printStackTrace();
-        }catch (IllegalArgumentException i){
-            logger.log(Level.WARNING, "The port is invalid");
-            i.printStackTrace();
+    private void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error while closing: " + e.getMessage());
         }
-        // TODO - implement the logic of the server, according to the protocol.
-        // Take a look at the tutorial to understand the basic blocks: creating a listening socket,
-        // accepting the next client connection, sending and receiving messages and closing the connection
     }
 
     /**
@@ -0,0 +1,115 @@
+package no.ntnu.datakomm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the SimpleTcpServer with several clients connected at the same time.
+ */
+public class SimpleTcpServerTest {
+    private SimpleTcpServer server;
+    private Thread serverThread;
+
+    @After
+    public void stopServer() throws InterruptedException {
+        if (server != null) {
+            server.stop();
+            serverThread.join(5000);
+        }
+    }
+
+    /**
+     * Start a server on a free port and wait until it listens.
+     *
+     * @param workerCount Clients served in parallel
+     * @param backlog     Clients waiting for a worker
+     * @return The port
+     */
+    private int startServer(int workerCount, int backlog) throws InterruptedException {
+        server = new SimpleTcpServer(0, workerCount, backlog);
+        serverThread = new Thread(server::run, "simple-tcp-server");
+        serverThread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getLocalPort() < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("The server did not start", server.getLocalPort() > 0);
+        return server.getLocalPort();
+    }
+
+    @Test
+    public void testConcurrentClients() throws Exception {
+        int port = startServer(8, 16);
+        List<CompletableFuture<Void>> clients = new ArrayList<>();
+        for (int c = 0; c < 8; c++) {
+            int client = c;
+            clients.add(CompletableFuture.runAsync(() -> {
+                try (Socket socket = new Socket("localhost", port);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                     PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                    for (int i = 0; i < 20; i++) {
+                        out.println("c" + client + " request" + i + " end");
+                        assertEquals("c" + client + " REQUEST" + i + " end", in.readLine());
+                    }
+                    out.println("bad request");
+                    assertEquals("ERROR", in.readLine());
+                    out.println("game over");
+                    // The server closes the connection
+                    assertNull(in.readLine());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, command -> new Thread(command).start()));
+        }
+        for (CompletableFuture<Void> client : clients) {
+            client.get(10, TimeUnit.SECONDS);
+        }
+        server.stop();
+        assertTrue(server.isTerminated());
+        assertEquals(0, server.getActiveClientCount());
+    }
+
+    @Test
+    public void testStopClosesAllClients() throws Exception {
+        // Two clients are served, two wait for a worker
+        int port = startServer(2, 4);
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(10000);
+                sockets.add(socket);
+            }
+            for (int i = 0; i < 2; i++) {
+                PrintWriter out = new PrintWriter(sockets.get(i).getOutputStream(), true);
+                out.println("a b c");
+                BufferedReader in = new BufferedReader(new InputStreamReader(sockets.get(i).getInputStream()));
+                assertEquals("a B c", in.readLine());
+            }
+            assertEquals(2, server.getActiveClientCount());
+
+            // The idle clients don't finish, so they are closed after the shutdown timeout
+            server.stop();
+            assertTrue(server.isTerminated());
+            for (Socket socket : sockets) {
+                assertEquals(-1, socket.getInputStream().read());
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}